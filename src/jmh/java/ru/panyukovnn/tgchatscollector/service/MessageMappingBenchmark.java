@@ -0,0 +1,137 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.tdlight.jni.TdApi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Бенчмарк обработки страниц истории: отбор сообщений, поиск ответов и преобразование в DTO.
+ * TDLib заменен заглушкой, отвечающей мгновенно, поэтому измеряется только работа сервиса
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageMappingBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+    /**
+     * Глубина упреждающей загрузки по умолчанию, следующие страницы к началу обработки уже загружены
+     */
+    private static final int READ_AHEAD_DEPTH = 2;
+
+    @Param({"10"})
+    int pageCount;
+
+    @Param({"0", "30"})
+    int replyPercent;
+
+    private TgClientService tgClientService;
+    private TgMessageMapper tgMessageMapper;
+    private TdApi.Messages[] pages;
+    private TdApi.Message[] firstPageMessages;
+    private Map<TgClientService.ReplyKey, TgClientService.ReplyToMessage> allReplies;
+
+    @Setup
+    public void setUp() {
+        tgMessageMapper = new TgMessageMapper();
+
+        tgClientService = new TgClientService();
+        tgClientService.tgMessageMapper = tgMessageMapper;
+        tgClientService.tgRequestExecutor = new StubTgRequestExecutor();
+        tgClientService.meterRegistry = new SimpleMeterRegistry();
+        // Индекс не открыт, сообщения не индексируются
+        tgClientService.messageSearchIndex = new MessageSearchIndex();
+        tgClientService.initMetrics();
+
+        pages = SyntheticMessages.generatePages(pageCount, PAGE_SIZE, replyPercent, 42L);
+        firstPageMessages = pages[0].messages;
+
+        allReplies = new HashMap<>();
+        for (TdApi.Messages page : pages) {
+            for (TdApi.Message message : page.messages) {
+                allReplies.put(
+                    new TgClientService.ReplyKey(message.chatId, message.id),
+                    new TgClientService.ReplyToMessage(message.id, tgMessageMapper.extractMessageTextSafely(message.content))
+                );
+            }
+        }
+    }
+
+    /**
+     * Полный сбор: все страницы обрабатываются последовательно с общим кэшем ответов и заранее загруженными страницами, как при реальной загрузке истории
+     */
+    @Benchmark
+    public void processMessagesBatch(Blackhole blackhole) {
+        AtomicLong oldestLoadedMessageId = new AtomicLong(Long.MAX_VALUE);
+        Map<TgClientService.ReplyKey, TgClientService.ReplyToMessage> replyCandidates = TgClientService.createReplyCandidatesCache();
+
+        for (int i = 0; i < pages.length; i++) {
+            List<TdApi.Messages> readAheadPages = Arrays.asList(pages).subList(i + 1, Math.min(pages.length, i + 1 + READ_AHEAD_DEPTH));
+            List<TgMessageDto> pageMessages = tgClientService.processMessagesBatch(
+                pages[i], readAheadPages, null, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, oldestLoadedMessageId, replyCandidates
+            ).join();
+
+            blackhole.consume(pageMessages);
+        }
+    }
+
+    @Benchmark
+    public void mapToMessageDto(Blackhole blackhole) {
+        for (TdApi.Message message : firstPageMessages) {
+            blackhole.consume(tgClientService.mapToMessageDto(message, allReplies));
+        }
+    }
+
+    @Benchmark
+    public void extractMessageTextSafely(Blackhole blackhole) {
+        for (TdApi.Message message : firstPageMessages) {
+            blackhole.consume(tgMessageMapper.extractMessageTextSafely(message.content));
+        }
+    }
+
+    /**
+     * Отвечает на GetMessages сообщениями с запрошенными идентификаторами, остальные запросы не ожидаются
+     */
+    private static class StubTgRequestExecutor extends TgRequestExecutor {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <R extends TdApi.Object> CompletableFuture<R> send(TdApi.Function<R> function) {
+            if (!(function instanceof TdApi.GetMessages getMessages)) {
+                return CompletableFuture.failedFuture(new UnsupportedOperationException(function.getClass().getSimpleName()));
+            }
+
+            TdApi.Message[] messages = Arrays.stream(getMessages.messageIds)
+                .mapToObj(messageId -> {
+                    TdApi.Message message = new TdApi.Message();
+                    message.id = messageId;
+                    message.chatId = getMessages.chatId;
+                    TdApi.MessageText content = new TdApi.MessageText();
+                    content.text = new TdApi.FormattedText("исходное сообщение", new TdApi.TextEntity[0]);
+                    message.content = content;
+
+                    return message;
+                })
+                .toArray(TdApi.Message[]::new);
+
+            return CompletableFuture.completedFuture((R) new TdApi.Messages(messages.length, messages));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import it.tdlight.jni.TdApi;
+
+import java.util.Random;
+
+/**
+ * Генератор синтетической истории чата для бенчмарков.
+ * Состав сообщений приближен к реальной переписке в группе: в основном текст,
+ * часть медиа с подписями и без, стикеры; часть сообщений отвечает на более старые
+ */
+public final class SyntheticMessages {
+
+    public static final long CHAT_ID = -1001234567890L;
+
+    private static final int FIRST_MESSAGE_DATE = 1_700_000_000;
+    private static final long MESSAGE_ID_STEP = 1L << 20;
+    private static final String[] WORDS = {
+        "привет", "сегодня", "созвон", "релиз", "в", "пятницу", "кто", "посмотрит", "pull", "request",
+        "ошибка", "воспроизводится", "только", "на", "проде", "спасибо", "ок", "завтра", "обсудим", "логи"
+    };
+
+    private SyntheticMessages() {
+    }
+
+    /**
+     * Генерирует страницы истории от новых сообщений к старым, как их отдает GetChatHistory
+     *
+     * @param pageCount    количество страниц
+     * @param pageSize     количество сообщений на странице
+     * @param replyPercent доля сообщений-ответов в процентах
+     * @param seed         зерно генератора, чтобы данные совпадали между запусками
+     * @return страницы истории
+     */
+    public static TdApi.Messages[] generatePages(int pageCount, int pageSize, int replyPercent, long seed) {
+        Random random = new Random(seed);
+        int totalCount = pageCount * pageSize;
+        TdApi.Messages[] pages = new TdApi.Messages[pageCount];
+
+        for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
+            TdApi.Message[] messages = new TdApi.Message[pageSize];
+
+            for (int i = 0; i < pageSize; i++) {
+                // Порядковый номер сообщения от начала чата, страницы идут от новых к старым
+                int ordinal = totalCount - (pageIndex * pageSize + i);
+                messages[i] = generateMessage(random, ordinal, replyPercent);
+            }
+
+            pages[pageIndex] = new TdApi.Messages(totalCount, messages);
+        }
+
+        return pages;
+    }
+
+    private static TdApi.Message generateMessage(Random random, int ordinal, int replyPercent) {
+        TdApi.Message message = new TdApi.Message();
+        message.id = ordinal * MESSAGE_ID_STEP;
+        message.chatId = CHAT_ID;
+        message.date = FIRST_MESSAGE_DATE + ordinal * 37;
+        message.senderId = new TdApi.MessageSenderUser(100_000L + random.nextInt(50));
+        message.content = generateContent(random);
+
+        if (ordinal > 1 && random.nextInt(100) < replyPercent) {
+            TdApi.MessageReplyToMessage replyTo = new TdApi.MessageReplyToMessage();
+            replyTo.chatId = CHAT_ID;
+            // Чаще отвечают на недавние сообщения, реже на давно ушедшие вверх
+            int distance = random.nextInt(100) < 80 ? 1 + random.nextInt(20) : 1 + random.nextInt(2_000);
+            replyTo.messageId = Math.max(1, ordinal - distance) * MESSAGE_ID_STEP;
+            message.replyTo = replyTo;
+        }
+
+        return message;
+    }
+
+    private static TdApi.MessageContent generateContent(Random random) {
+        int kind = random.nextInt(100);
+
+        if (kind < 70) {
+            TdApi.MessageText messageText = new TdApi.MessageText();
+            messageText.text = formattedText(random, 3 + random.nextInt(40));
+
+            return messageText;
+        }
+
+        if (kind < 82) {
+            TdApi.MessagePhoto photo = new TdApi.MessagePhoto();
+            photo.caption = formattedText(random, random.nextBoolean() ? 0 : 1 + random.nextInt(10));
+
+            return photo;
+        }
+
+        if (kind < 87) {
+            TdApi.MessageVideo video = new TdApi.MessageVideo();
+            video.caption = formattedText(random, random.nextInt(5));
+
+            return video;
+        }
+
+        if (kind < 91) {
+            TdApi.MessageDocument document = new TdApi.MessageDocument();
+            document.caption = formattedText(random, random.nextInt(5));
+
+            return document;
+        }
+
+        if (kind < 95) {
+            TdApi.MessageVoiceNote voiceNote = new TdApi.MessageVoiceNote();
+            voiceNote.caption = formattedText(random, 0);
+
+            return voiceNote;
+        }
+
+        if (kind < 98) {
+            return new TdApi.MessageSticker();
+        }
+
+        return new TdApi.MessageVideoNote();
+    }
+
+    private static TdApi.FormattedText formattedText(Random random, int wordCount) {
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < wordCount; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+
+        return new TdApi.FormattedText(text.toString(), new TdApi.TextEntity[0]);
+    }
+}
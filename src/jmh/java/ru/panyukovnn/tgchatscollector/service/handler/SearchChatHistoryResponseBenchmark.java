@@ -0,0 +1,89 @@
+package ru.panyukovnn.tgchatscollector.service.handler;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import it.tdlight.jni.TdApi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryResponse;
+import ru.panyukovnn.tgchatscollector.dto.telegram.ChatInfo;
+import ru.panyukovnn.tgchatscollector.service.SyntheticMessages;
+import ru.panyukovnn.tgchatscollector.service.TgMessageMapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Бенчмарк формирования ответа на поиск истории: сортировка сообщений и сериализация в JSON
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SearchChatHistoryResponseBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+    private static final ChatInfo CHAT_INFO = new ChatInfo(SyntheticMessages.CHAT_ID, "benchmark_chat", "ChatTypeSupergroup", "Чат для бенчмарка");
+
+    @Param({"100", "1000", "10000"})
+    int messageCount;
+
+    private ObjectMapper objectMapper;
+    private List<TgMessageDto> collectedMessages;
+    private SearchChatHistoryResponse response;
+
+    @Setup
+    public void setUp() {
+        // Настройки совпадают с ObjectMapper Quarkus по умолчанию
+        objectMapper = new ObjectMapper()
+            .registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+
+        TgMessageMapper tgMessageMapper = new TgMessageMapper();
+        TdApi.Messages[] pages = SyntheticMessages.generatePages(Math.ceilDiv(messageCount, PAGE_SIZE), PAGE_SIZE, 30, 42L);
+
+        // Сообщения собираются от новых к старым, как их отдает сервис
+        collectedMessages = new ArrayList<>(messageCount);
+        for (TdApi.Messages page : pages) {
+            for (TdApi.Message message : page.messages) {
+                if (collectedMessages.size() < messageCount) {
+                    collectedMessages.add(tgMessageMapper.toMessageDto(message, null, null));
+                }
+            }
+        }
+
+        List<TgMessageDto> sortedMessages = TgCollectorHandler.sortByDateTime(collectedMessages);
+        response = TgCollectorHandler.createSearchChatHistoryResponse(CHAT_INFO, null, sortedMessages.size(), sortedMessages);
+    }
+
+    @Benchmark
+    public List<TgMessageDto> sortByDateTime() {
+        return TgCollectorHandler.sortByDateTime(collectedMessages);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(response);
+    }
+
+    /**
+     * Весь путь от собранных сообщений до тела ответа
+     */
+    @Benchmark
+    public byte[] sortAndSerialize() throws JsonProcessingException {
+        List<TgMessageDto> sortedMessages = TgCollectorHandler.sortByDateTime(collectedMessages);
+
+        return objectMapper.writeValueAsBytes(
+            TgCollectorHandler.createSearchChatHistoryResponse(CHAT_INFO, null, sortedMessages.size(), sortedMessages)
+        );
+    }
+}
@@ -1,15 +1,21 @@
 package ru.panyukovnn.tgchatscollector.config;
 
+import io.quarkus.runtime.Quarkus;
 import it.tdlight.client.SimpleTelegramClient;
+import it.tdlight.jni.TdApi;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.event.Observes;
 import jakarta.inject.Inject;
 import io.quarkus.runtime.StartupEvent;
 import lombok.extern.slf4j.Slf4j;
+import ru.panyukovnn.tgchatscollector.property.TgStartupProperty;
+import ru.panyukovnn.tgchatscollector.service.LiveMessageBuffer;
+import ru.panyukovnn.tgchatscollector.service.TgAccountPool;
+import ru.panyukovnn.tgchatscollector.service.TgClientService;
+import ru.panyukovnn.tgchatscollector.service.TgClientState;
 
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 @Slf4j
 @ApplicationScoped
@@ -18,20 +24,79 @@ public class TgLightAuthorizeConfig {
     @Inject
     SimpleTelegramClient tgClient;
 
+    @Inject
+    TgClientService tgClientService;
+
+    @Inject
+    LiveMessageBuffer liveMessageBuffer;
+
+    @Inject
+    TgClientState tgClientState;
+
+    @Inject
+    TgStartupProperty tgStartupProperty;
+
+    @Inject
+    TgAccountPool tgAccountPool;
+
     /**
      * При первом обращении к сервису необходимо выполнить автоирзацию для сохранения сессии.
+     * Загрузка TDLib и авторизация выполняются в фоне и не задерживают старт приложения,
+     * о готовности клиента сообщает readiness проверка
      *
      * @param event событие старта приложения
      */
     void onStart(@Observes StartupEvent event) {
+        Thread.ofPlatform()
+            .name("tdlib-startup")
+            .daemon()
+            .start(this::authorize);
+    }
+
+    private void authorize() {
+        log.info("Authorizing Telegram client...");
+
+        CompletableFuture<TdApi.User> me;
         try {
-            log.info("Authorizing Telegram client...");
-            tgClient.getMeAsync()
-                .get(10, TimeUnit.MINUTES);
-            log.info("Telegram client authorized successfully");
-        } catch (ExecutionException | InterruptedException | TimeoutException e) {
-            log.error("Failed to authorize Telegram client", e);
-            throw new RuntimeException("Failed to authorize Telegram client", e);
+            // Первое обращение к клиенту загружает нативную библиотеку TDLib и создает клиент в этом потоке
+            me = tgClient.getMeAsync();
+        } catch (RuntimeException e) {
+            me = CompletableFuture.failedFuture(e);
         }
+
+        me.orTimeout(tgStartupProperty.authorizationTimeout().toMillis(), TimeUnit.MILLISECONDS)
+            .thenCompose(user -> {
+                log.info("Telegram client authorized successfully");
+
+                return warmUp();
+            })
+            .whenComplete((ignored, e) -> {
+                if (e != null) {
+                    // Без авторизации сервис никогда не станет готов, перезапуск дает сессии еще одну попытку
+                    log.error("Failed to authorize Telegram client, shutting down", e);
+                    Quarkus.asyncExit(1);
+
+                    return;
+                }
+
+                tgClientState.markWarmedUp();
+                liveMessageBuffer.openTrackedChats();
+                // Сервис уже готов, дополнительные аккаунты подключаются к распределению запросов по мере авторизации
+                tgAccountPool.startAdditionalAccounts();
+            });
+    }
+
+    private CompletableFuture<Void> warmUp() {
+        if (!tgStartupProperty.prewarmChatList()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return tgClientService.loadChatTitleIndex()
+            .exceptionally(e -> {
+                // Индекс будет построен при первом поиске чата
+                log.warn("Failed to build chat title index", e);
+
+                return null;
+            });
     }
 }
@@ -12,8 +12,14 @@ import jakarta.enterprise.inject.Produces;
 import lombok.extern.slf4j.Slf4j;
 import io.quarkus.runtime.ShutdownEvent;
 import ru.panyukovnn.tgchatscollector.property.TgCollectorProperty;
+import ru.panyukovnn.tgchatscollector.service.ChatMetadataCache;
+import ru.panyukovnn.tgchatscollector.service.ChatTitleIndex;
+import ru.panyukovnn.tgchatscollector.service.HistoryPageCache;
+import ru.panyukovnn.tgchatscollector.service.LiveMessageBuffer;
+import ru.panyukovnn.tgchatscollector.service.MessageStoreService;
+import ru.panyukovnn.tgchatscollector.service.TgAccountPool;
+import ru.panyukovnn.tgchatscollector.service.TgClientState;
 
-import java.nio.file.Path;
 import java.nio.file.Paths;
 
 @Slf4j
@@ -35,28 +41,50 @@ public class TgLightConfig {
     @Produces
     @ApplicationScoped
     public SimpleTelegramClient tgClient(TgCollectorProperty tgCollectorProperty,
-                                         SimpleTelegramClientFactory simpleTelegramClientFactory) {
-        APIToken apiToken = new APIToken(tgCollectorProperty.apiId(), tgCollectorProperty.apiHash());
-
-        Path sessionPath = Paths.get("tdlight-session");
-
-        TDLibSettings settings = TDLibSettings.create(apiToken);
-        settings.setDatabaseDirectoryPath(sessionPath.resolve("data"));
-        settings.setDownloadedFilesDirectoryPath(sessionPath.resolve("downloads"));
-
-        SimpleAuthenticationSupplier<?> authenticationData = AuthenticationSupplier.user(tgCollectorProperty.phone());
-        SimpleTelegramClient client = simpleTelegramClientFactory.builder(settings)
-            .build(authenticationData);
-
+                                         TgAccountPool tgAccountPool,
+                                         ChatMetadataCache chatMetadataCache,
+                                         ChatTitleIndex chatTitleIndex,
+                                         LiveMessageBuffer liveMessageBuffer,
+                                         HistoryPageCache historyPageCache,
+                                         MessageStoreService messageStoreService,
+                                         TgClientState tgClientState) {
+        SimpleTelegramClient client = tgAccountPool.createClient(tgCollectorProperty.phone(), Paths.get("tdlight-session"));
+
+        // Кеши и буфер новых сообщений заполняются только обновлениями основного аккаунта:
+        // у личных чатов дополнительных аккаунтов могут совпадать идентификаторы чатов, но не сообщений
         client.addUpdateHandler(TdApi.UpdateAuthorizationState.class, this::onUpdateAuthorizationState);
-//        client.addUpdateHandler(TdApi.UpdateNewMessage.class, this::onUpdateNewMessage);
+        client.addUpdateHandler(TdApi.UpdateAuthorizationState.class, tgClientState::onUpdateAuthorizationState);
+        client.addUpdateHandler(TdApi.UpdateNewChat.class, chatMetadataCache::onUpdateNewChat);
+        client.addUpdateHandler(TdApi.UpdateChatTitle.class, chatMetadataCache::onUpdateChatTitle);
+        client.addUpdateHandler(TdApi.UpdateSupergroup.class, chatMetadataCache::onUpdateSupergroup);
+        client.addUpdateHandler(TdApi.UpdateNewChat.class, chatTitleIndex::onUpdateNewChat);
+        client.addUpdateHandler(TdApi.UpdateChatTitle.class, chatTitleIndex::onUpdateChatTitle);
+        client.addUpdateHandler(TdApi.UpdateChatPosition.class, chatTitleIndex::onUpdateChatPosition);
+        client.addUpdateHandler(TdApi.UpdateChatLastMessage.class, chatTitleIndex::onUpdateChatLastMessage);
+        client.addUpdateHandler(TdApi.UpdateNewMessage.class, liveMessageBuffer::onUpdateNewMessage);
+        client.addUpdateHandler(TdApi.UpdateMessageContent.class, liveMessageBuffer::onUpdateMessageContent);
+        client.addUpdateHandler(TdApi.UpdateDeleteMessages.class, liveMessageBuffer::onUpdateDeleteMessages);
+        client.addUpdateHandler(TdApi.UpdateMessageContent.class, historyPageCache::onUpdateMessageContent);
+        client.addUpdateHandler(TdApi.UpdateMessageEdited.class, historyPageCache::onUpdateMessageEdited);
+        client.addUpdateHandler(TdApi.UpdateDeleteMessages.class, historyPageCache::onUpdateDeleteMessages);
+        client.addUpdateHandler(TdApi.UpdateMessageContent.class, messageStoreService::onUpdateMessageContent);
+        client.addUpdateHandler(TdApi.UpdateDeleteMessages.class, messageStoreService::onUpdateDeleteMessages);
+
+        tgAccountPool.registerMainClient(client);
+        tgClientState.markClientCreated();
 
         return client;
     }
 
     void onStop(@Observes ShutdownEvent event,
                SimpleTelegramClient client,
-               SimpleTelegramClientFactory factory) {
+               SimpleTelegramClientFactory factory,
+               TgClientState tgClientState) {
+        // Клиент создается в фоне при старте, обращение к нему до этого загрузило бы TDLib только ради закрытия
+        if (!tgClientState.isClientCreated()) {
+            return;
+        }
+
         try {
             log.info("Closing Telegram client...");
             client.close();
@@ -79,24 +107,4 @@ public class TgLightConfig {
             log.info("Logging out...");
         }
     }
-
-    private void onUpdateNewMessage(TdApi.UpdateNewMessage update) {
-        TdApi.MessageContent messageContent = update.message.content;
-
-        String text;
-        if (messageContent instanceof TdApi.MessageText messageText) {
-            text = messageText.text.text;
-        } else {
-            text = String.format("(%s)", messageContent.getClass().getSimpleName());
-        }
-
-        if (text.length() > 100) {
-            text = text.substring(0, 100) + "...";
-        }
-
-        long chatId = update.message.chatId;
-        long topicId = update.message.messageThreadId;
-
-        log.info("Received new message from chat {}/{}: {}", chatId, topicId, text);
-    }
 }
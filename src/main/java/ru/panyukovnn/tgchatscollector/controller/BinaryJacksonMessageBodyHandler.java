@@ -0,0 +1,71 @@
+package ru.panyukovnn.tgchatscollector.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.inject.Inject;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.MessageBodyReader;
+import jakarta.ws.rs.ext.MessageBodyWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+/**
+ * Чтение и запись тел запросов в бинарных форматах Jackson.
+ * Настройки сериализации копируются из ObjectMapper приложения, поэтому DTO выглядят так же, как в JSON
+ */
+abstract class BinaryJacksonMessageBodyHandler implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    private ObjectMapper binaryObjectMapper;
+
+    @PostConstruct
+    void init() {
+        binaryObjectMapper = objectMapper.copyWith(createFactory())
+            // Потоками запроса и ответа управляет сервер
+            .configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false)
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    }
+
+    protected abstract JsonFactory createFactory();
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return true;
+    }
+
+    @Override
+    public Object readFrom(Class<Object> type,
+                           Type genericType,
+                           Annotation[] annotations,
+                           MediaType mediaType,
+                           MultivaluedMap<String, String> httpHeaders,
+                           InputStream entityStream) throws IOException {
+        return binaryObjectMapper.readValue(entityStream, binaryObjectMapper.constructType(genericType));
+    }
+
+    @Override
+    public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return true;
+    }
+
+    @Override
+    public void writeTo(Object value,
+                        Class<?> type,
+                        Type genericType,
+                        Annotation[] annotations,
+                        MediaType mediaType,
+                        MultivaluedMap<String, Object> httpHeaders,
+                        OutputStream entityStream) throws IOException {
+        binaryObjectMapper.writeValue(entityStream, value);
+    }
+}
@@ -0,0 +1,18 @@
+package ru.panyukovnn.tgchatscollector.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.ext.Provider;
+
+@Provider
+@Consumes(ApiMediaType.APPLICATION_CBOR)
+@Produces(ApiMediaType.APPLICATION_CBOR)
+public class CborMessageBodyHandler extends BinaryJacksonMessageBodyHandler {
+
+    @Override
+    protected JsonFactory createFactory() {
+        return new CBORFactory();
+    }
+}
@@ -1,20 +1,27 @@
 package ru.panyukovnn.tgchatscollector.controller;
 
 import jakarta.inject.Inject;
+import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
 import ru.panyukovnn.tgchatscollector.dto.lastchats.LastChatsResponse;
 import ru.panyukovnn.tgchatscollector.dto.searchchat.SearchChatsResponse;
 import ru.panyukovnn.tgchatscollector.dto.searchchat.SearchPrivateChatRequest;
 import ru.panyukovnn.tgchatscollector.dto.searchchat.SearchPublicChannelByIdRequest;
 import ru.panyukovnn.tgchatscollector.service.handler.TgCollectorHandler;
 
+import java.util.concurrent.CompletionStage;
+
 /**
  * Контроллер для работы с чатами
  */
 @Path("/api/v1/chats")
+@Consumes({MediaType.APPLICATION_JSON, ApiMediaType.APPLICATION_CBOR, ApiMediaType.APPLICATION_SMILE})
+@Produces({MediaType.APPLICATION_JSON, ApiMediaType.APPLICATION_CBOR, ApiMediaType.APPLICATION_SMILE})
 public class ChatController implements ChatApi {
 
     @Inject
@@ -23,21 +30,21 @@ public class ChatController implements ChatApi {
     @GET
     @Path("/last")
     @Override
-    public LastChatsResponse getLastChats(@QueryParam("count") Integer count) {
+    public CompletionStage<LastChatsResponse> getLastChats(@QueryParam("count") Integer count) {
         return tgCollectorHandler.handleLastChats(count);
     }
 
     @POST
     @Path("/search-private")
     @Override
-    public SearchChatsResponse searchPrivateChat(SearchPrivateChatRequest request) {
+    public CompletionStage<SearchChatsResponse> searchPrivateChat(SearchPrivateChatRequest request) {
         return tgCollectorHandler.handleFindPrivateChat(request);
     }
 
     @POST
     @Path("/search-public")
     @Override
-    public SearchChatsResponse searchPublicChannel(SearchPublicChannelByIdRequest request) {
+    public CompletionStage<SearchChatsResponse> searchPublicChannel(SearchPublicChannelByIdRequest request) {
         return tgCollectorHandler.handleFindPublicChannelById(request);
     }
 }
\ No newline at end of file
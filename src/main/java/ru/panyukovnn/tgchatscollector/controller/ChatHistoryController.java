@@ -1,25 +1,155 @@
 package ru.panyukovnn.tgchatscollector.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.smallrye.common.annotation.RunOnVirtualThread;
 import jakarta.inject.Inject;
+import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.StreamingOutput;
+import lombok.extern.slf4j.Slf4j;
+import ru.panyukovnn.tgchatscollector.dto.bulkexport.BulkExportRequest;
+import ru.panyukovnn.tgchatscollector.dto.recentmessages.RecentMessagesRequest;
+import ru.panyukovnn.tgchatscollector.dto.response.CommonResponseError;
+import ru.panyukovnn.tgchatscollector.dto.searchchathistory.ChatHistoryStreamRecord;
 import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryRequest;
 import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryResponse;
+import ru.panyukovnn.tgchatscollector.dto.searchmessages.SearchMessagesRequest;
+import ru.panyukovnn.tgchatscollector.dto.searchmessages.SearchMessagesResponse;
+import ru.panyukovnn.tgchatscollector.exception.BusinessException;
 import ru.panyukovnn.tgchatscollector.service.handler.TgCollectorHandler;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Контроллер для работы с историей сообщений
  */
+@Slf4j
 @Path("/api/v1/chat-history")
+@Consumes({MediaType.APPLICATION_JSON, ApiMediaType.APPLICATION_CBOR, ApiMediaType.APPLICATION_SMILE})
+@Produces({MediaType.APPLICATION_JSON, ApiMediaType.APPLICATION_CBOR, ApiMediaType.APPLICATION_SMILE})
 public class ChatHistoryController implements ChatHistoryApi {
 
+    private static final String FATAL_DEFAULT_MESSAGE = "Что-то пошло не так, обратитесь к администратору";
+
+    @Inject
+    ObjectMapper objectMapper;
+
     @Inject
     TgCollectorHandler tgCollectorHandler;
 
     @POST
     @Path("/search")
     @Override
-    public SearchChatHistoryResponse searchHistory(SearchChatHistoryRequest request) {
+    public CompletionStage<SearchChatHistoryResponse> searchHistory(SearchChatHistoryRequest request) {
         return tgCollectorHandler.handleSearchChatHistoryByPeriod(request);
     }
-}
\ No newline at end of file
+
+    @POST
+    @Path("/recent")
+    @Override
+    public CompletionStage<SearchChatHistoryResponse> recentMessages(RecentMessagesRequest request) {
+        return tgCollectorHandler.handleRecentMessages(request);
+    }
+
+    @POST
+    @Path("/search-text")
+    @Override
+    public CompletionStage<SearchMessagesResponse> searchMessages(SearchMessagesRequest request) {
+        return tgCollectorHandler.handleSearchMessages(request);
+    }
+
+    /**
+     * Потоковая выгрузка истории сообщений в формате NDJSON: каждое сообщение отправляется
+     * отдельной строкой сразу после загрузки, последней строкой идет итоговая информация либо ошибка.
+     * Запись в ответ блокирующая, поэтому ее ведет виртуальный поток, а сбор передает ему страницы
+     * через ограниченную очередь и при медленном клиенте продолжается, только когда в ней освобождается место
+     *
+     * @param request запрос на поиск истории сообщений
+     * @return поток строк выгрузки
+     */
+    @POST
+    @Path("/search-stream")
+    @Produces(ApiMediaType.APPLICATION_NDJSON)
+    @RunOnVirtualThread
+    @Override
+    public StreamingOutput searchHistoryStream(SearchChatHistoryRequest request) {
+        return output -> {
+            NdjsonRecordQueue recordQueue = new NdjsonRecordQueue();
+
+            try {
+                CompletableFuture<Void> export = tgCollectorHandler.handleStreamChatHistory(request, recordQueue::put);
+
+                recordQueue.drain(export, records -> writeRecords(output, records));
+                export.join();
+            } catch (IOException e) {
+                // Клиент закрыл соединение, дописывать нечего
+                throw e;
+            } catch (Exception e) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+                log.error("Потоковая выгрузка истории прервана: {}", cause.getMessage(), cause);
+
+                writeRecords(output, List.of(toErrorRecord(cause)));
+            }
+        };
+    }
+
+    /**
+     * Выгрузка истории нескольких чатов в формате NDJSON: каждая строка - результат по одному чату,
+     * строки идут в порядке завершения выгрузки чатов, а не в порядке запроса.
+     * Как и в потоковой выгрузке, результаты передаются пишущему ответ виртуальному потоку через ограниченную очередь
+     *
+     * @param request запрос на выгрузку
+     * @return поток строк выгрузки
+     */
+    @POST
+    @Path("/bulk-export")
+    @Produces(ApiMediaType.APPLICATION_NDJSON)
+    @RunOnVirtualThread
+    @Override
+    public StreamingOutput bulkExport(BulkExportRequest request) {
+        return output -> {
+            NdjsonRecordQueue recordQueue = new NdjsonRecordQueue();
+            CompletableFuture<Void> export = tgCollectorHandler.handleBulkExport(
+                request, chatResult -> recordQueue.put(List.of(chatResult)));
+
+            recordQueue.drain(export, records -> writeRecords(output, records));
+            export.join();
+        };
+    }
+
+    private void writeRecords(OutputStream output, List<?> records) throws IOException {
+        for (Object record : records) {
+            output.write(objectMapper.writeValueAsBytes(record));
+            output.write('\n');
+        }
+
+        output.flush();
+    }
+
+    private ChatHistoryStreamRecord toErrorRecord(Throwable e) {
+        CommonResponseError error = e instanceof BusinessException businessException
+            ? CommonResponseError.builder()
+                .location(businessException.getLocation())
+                .code(businessException.getCode())
+                .message(businessException.getDisplayMessage())
+                .build()
+            : CommonResponseError.builder()
+                .code("fatal")
+                .message(FATAL_DEFAULT_MESSAGE)
+                .build();
+
+        return ChatHistoryStreamRecord.builder()
+            .type(ChatHistoryStreamRecord.Type.ERROR)
+            .error(error)
+            .build();
+    }
+}
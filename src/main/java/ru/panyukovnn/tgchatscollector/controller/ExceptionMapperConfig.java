@@ -11,6 +11,7 @@ import ru.panyukovnn.tgchatscollector.dto.response.CommonResponseFieldValidation
 import ru.panyukovnn.tgchatscollector.exception.BusinessException;
 
 import java.util.List;
+import java.util.concurrent.CompletionException;
 
 /**
  * Обработчик исключений для REST-контроллеров
@@ -64,6 +65,24 @@ public class ExceptionMapperConfig {
                 .build();
     }
 
+    /**
+     * Исключения асинхронных обработчиков приходят обернутыми, разбираем их по причине
+     */
+    @ServerExceptionMapper
+    public Response handleCompletionException(CompletionException e) {
+        Throwable cause = e.getCause();
+
+        if (cause instanceof BusinessException businessException) {
+            return handleBusinessException(businessException);
+        }
+
+        if (cause instanceof ConstraintViolationException constraintViolationException) {
+            return handleConstraintViolationException(constraintViolationException);
+        }
+
+        return handleException(cause instanceof Exception exception ? exception : e);
+    }
+
     @ServerExceptionMapper
     public Response handleException(Exception e) {
         log.error("Непредвиденное критическое исключение: {}", e.getMessage(), e);
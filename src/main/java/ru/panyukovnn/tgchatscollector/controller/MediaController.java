@@ -0,0 +1,31 @@
+package ru.panyukovnn.tgchatscollector.controller;
+
+import jakarta.inject.Inject;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import ru.panyukovnn.tgchatscollector.service.handler.TgCollectorHandler;
+
+import java.io.File;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Контроллер для загрузки фото и документов из сообщений
+ */
+@Path("/api/v1/media")
+// JSON нужен для ответа с ошибкой
+@Produces({MediaType.APPLICATION_OCTET_STREAM, MediaType.APPLICATION_JSON})
+public class MediaController implements MediaApi {
+
+    @Inject
+    TgCollectorHandler tgCollectorHandler;
+
+    @GET
+    @Path("/{uniqueId}")
+    @Override
+    public CompletionStage<File> getMedia(@PathParam("uniqueId") String uniqueId) {
+        return tgCollectorHandler.handleGetMedia(uniqueId);
+    }
+}
@@ -0,0 +1,169 @@
+package ru.panyukovnn.tgchatscollector.controller;
+
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ограниченная очередь строк потоковой выгрузки между сбором истории и виртуальным потоком, пишущим ответ.
+ * Сбор сам в ответ не пишет и не ждет: пачка строк принимается сразу, пока в очереди есть место,
+ * иначе результат {@link #put(List)} завершается, когда пишущий поток освободит для нее место.
+ * Сбор продолжается после этого, так медленный клиент притормаживает загрузку истории, не занимая потоков
+ */
+class NdjsonRecordQueue {
+
+    /**
+     * Вместимость в пачках строк: страница истории в потоковой выгрузке или результат по чату в выгрузке нескольких чатов
+     */
+    private static final int CAPACITY = 16;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    /**
+     * Принятые пачки, ожидающие записи, не больше CAPACITY
+     */
+    private final Queue<Batch> accepted = new ArrayDeque<>();
+    /**
+     * Пачки, ожидающие места в очереди
+     */
+    private final Queue<Batch> waiting = new ArrayDeque<>();
+    private boolean closed;
+
+    @FunctionalInterface
+    interface RecordWriter {
+
+        void write(List<?> records) throws IOException;
+    }
+
+    /**
+     * Кладет пачку строк в очередь. Может вызываться одновременно из нескольких сборов
+     *
+     * @param records строки выгрузки
+     * @return завершается, когда пачка принята в очередь, с ошибкой - если ответ уже не пишется,
+     * например клиент закрыл соединение
+     */
+    CompletableFuture<Void> put(List<?> records) {
+        if (records.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Batch batch = new Batch(records, new CompletableFuture<>());
+
+        lock.lock();
+        try {
+            if (closed) {
+                return CompletableFuture.failedFuture(closedException());
+            }
+
+            if (accepted.size() < CAPACITY) {
+                accepted.add(batch);
+                batch.accepted().complete(null);
+            } else {
+                waiting.add(batch);
+            }
+
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        return batch.accepted();
+    }
+
+    /**
+     * Пишет строки из очереди, пока выгрузка не завершится и очередь не опустеет.
+     * При ошибке записи очередь закрывается, сбор, ожидающий места в ней, завершается ошибкой
+     *
+     * @param export выгрузка, заполняющая очередь
+     * @param writer запись строк в ответ
+     */
+    void drain(CompletableFuture<?> export, RecordWriter writer) throws IOException {
+        export.whenComplete((ignored, e) -> signal());
+
+        try {
+            while (true) {
+                Batch batch;
+                Batch nextAccepted;
+
+                lock.lock();
+                try {
+                    while ((batch = accepted.poll()) == null) {
+                        // Строки кладутся в очередь до завершения выгрузки, после него новых уже не будет
+                        if (export.isDone()) {
+                            return;
+                        }
+
+                        changed.await();
+                    }
+
+                    nextAccepted = waiting.poll();
+
+                    if (nextAccepted != null) {
+                        accepted.add(nextAccepted);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                // Сбор продолжается в пуле воркеров, а этот поток сразу пишет принятую пачку
+                if (nextAccepted != null) {
+                    nextAccepted.accepted().completeAsync(() -> null, Infrastructure.getDefaultWorkerPool());
+                }
+
+                writer.write(batch.records());
+            }
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Запись выгрузки прервана");
+        } catch (IOException | RuntimeException e) {
+            close();
+
+            throw e;
+        }
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void close() {
+        lock.lock();
+        try {
+            closed = true;
+
+            for (Batch batch : waiting) {
+                batch.accepted().completeExceptionally(closedException());
+            }
+
+            waiting.clear();
+            accepted.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static IOException closedException() {
+        return new IOException("Ответ выгрузки больше не пишется");
+    }
+
+    /**
+     * @param records  строки выгрузки
+     * @param accepted завершается, когда пачка принята в очередь
+     */
+    private record Batch(List<?> records, CompletableFuture<Void> accepted) {
+    }
+}
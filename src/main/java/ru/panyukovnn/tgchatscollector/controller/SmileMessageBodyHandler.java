@@ -0,0 +1,22 @@
+package ru.panyukovnn.tgchatscollector.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.ext.Provider;
+
+@Provider
+@Consumes(ApiMediaType.APPLICATION_SMILE)
+@Produces(ApiMediaType.APPLICATION_SMILE)
+public class SmileMessageBodyHandler extends BinaryJacksonMessageBodyHandler {
+
+    @Override
+    protected JsonFactory createFactory() {
+        // Повторяющиеся короткие строки, например текст сообщения в ответах на него, передаются ссылкой на первое вхождение
+        return SmileFactory.builder()
+            .enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES)
+            .build();
+    }
+}
@@ -0,0 +1,22 @@
+package ru.panyukovnn.tgchatscollector.dto.store;
+
+/**
+ * Состояние синхронизации чата (или топика) с локальным хранилищем.
+ * Все сообщения с идентификаторами от lowMessageId до highMessageId и датой не раньше
+ * coveredFromDate гарантированно сохранены в хранилище
+ *
+ * @param chatId              идентификатор чата
+ * @param topicId             идентификатор топика, 0 для чата целиком
+ * @param highMessageId       самое новое сохраненное сообщение (верхняя граница синхронизации)
+ * @param lowMessageId        самое старое сохраненное сообщение непрерывного отрезка
+ * @param coveredFromDate     дата в секундах UTC, начиная с которой история сохранена без пропусков
+ * @param historyStartReached достигнуто ли начало истории чата
+ */
+public record ChatSyncState(
+    long chatId,
+    long topicId,
+    long highMessageId,
+    long lowMessageId,
+    long coveredFromDate,
+    boolean historyStartReached) {
+}
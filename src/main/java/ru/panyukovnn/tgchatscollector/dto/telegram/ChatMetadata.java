@@ -0,0 +1,8 @@
+package ru.panyukovnn.tgchatscollector.dto.telegram;
+
+public record ChatMetadata(
+    Long chatId,
+    String title,
+    String type,
+    Long supergroupId) {
+}
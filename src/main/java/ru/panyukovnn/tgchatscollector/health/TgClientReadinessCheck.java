@@ -0,0 +1,27 @@
+package ru.panyukovnn.tgchatscollector.health;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Readiness;
+import ru.panyukovnn.tgchatscollector.service.TgClientState;
+
+/**
+ * Готовность клиента телеграм: UP после авторизации и прогрева, до этого запросы к TDLib отклоняются
+ */
+@Readiness
+@ApplicationScoped
+public class TgClientReadinessCheck implements HealthCheck {
+
+    @Inject
+    TgClientState tgClientState;
+
+    @Override
+    public HealthCheckResponse call() {
+        return HealthCheckResponse.named("tdlib-client")
+            .status(tgClientState.isReady())
+            .withData("authorizationState", tgClientState.getAuthorizationState())
+            .build();
+    }
+}
@@ -0,0 +1,33 @@
+package ru.panyukovnn.tgchatscollector.health;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import org.eclipse.microprofile.health.HealthCheck;
+import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.Liveness;
+import ru.panyukovnn.tgchatscollector.service.TgRequestExecutor;
+
+/**
+ * Состояние ограничителя запросов к TDLib: очередь, время ожидания и паузы по FLOOD_WAIT.
+ * Всегда UP, используется для наблюдения за нагрузкой
+ */
+@Liveness
+@ApplicationScoped
+public class TgRequestLimiterHealthCheck implements HealthCheck {
+
+    @Inject
+    TgRequestExecutor tgRequestExecutor;
+
+    @Override
+    public HealthCheckResponse call() {
+        return HealthCheckResponse.named("tdlib-request-limiter")
+            .up()
+            .withData("inFlight", tgRequestExecutor.getInFlight())
+            .withData("queueDepth", tgRequestExecutor.getQueueDepth())
+            .withData("averageWaitMs", tgRequestExecutor.getAverageWait().toMillis())
+            .withData("maxWaitMs", tgRequestExecutor.getMaxWait().toMillis())
+            .withData("floodWaits", tgRequestExecutor.getFloodWaitCount())
+            .withData("remainingPauseMs", tgRequestExecutor.getRemainingPause().toMillis())
+            .build();
+    }
+}
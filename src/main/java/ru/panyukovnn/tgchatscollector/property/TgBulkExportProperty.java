@@ -0,0 +1,12 @@
+package ru.panyukovnn.tgchatscollector.property;
+
+import io.smallrye.config.ConfigMapping;
+
+@ConfigMapping(prefix = "tg-collector.bulk-export")
+public interface TgBulkExportProperty {
+
+    /**
+     * Количество чатов, выгружаемых одновременно
+     */
+    Integer parallelism();
+}
@@ -0,0 +1,19 @@
+package ru.panyukovnn.tgchatscollector.property;
+
+import io.smallrye.config.ConfigMapping;
+
+import java.time.Duration;
+
+@ConfigMapping(prefix = "tg-collector.chat-cache")
+public interface TgChatCacheProperty {
+
+    /**
+     * Максимальное количество чатов (и отдельно супергрупп) в кеше
+     */
+    Integer maxSize();
+
+    /**
+     * Время жизни записи в кеше, страхует от пропущенных обновлений от TDLib
+     */
+    Duration expireAfterWrite();
+}
@@ -20,4 +20,9 @@ public interface TgChatLoaderProperty {
      */
     Integer dateRangeMessagesLimit();
 
+    /**
+     * Количество страниц истории, запрашиваемых заранее, пока обрабатывается текущая
+     */
+    Integer historyReadAheadDepth();
+
 }
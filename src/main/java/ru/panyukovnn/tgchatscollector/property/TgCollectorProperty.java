@@ -2,6 +2,9 @@ package ru.panyukovnn.tgchatscollector.property;
 
 import io.smallrye.config.ConfigMapping;
 
+import java.util.Map;
+import java.util.Optional;
+
 @ConfigMapping(prefix = "tg-collector.telegram.client")
 public interface TgCollectorProperty {
 
@@ -10,4 +13,20 @@ public interface TgCollectorProperty {
     String apiHash();
 
     String phone();
+
+    /**
+     * Дополнительные аккаунты, между которыми распределяются запросы к чатам, доступным нескольким аккаунтам.
+     * Ключ - имя аккаунта, используется в логах и как имя каталога сессии по умолчанию
+     */
+    Map<String, Account> accounts();
+
+    interface Account {
+
+        String phone();
+
+        /**
+         * Каталог сессии TDLib аккаунта, по умолчанию tdlight-session/accounts/{имя аккаунта}
+         */
+        Optional<String> sessionPath();
+    }
 }
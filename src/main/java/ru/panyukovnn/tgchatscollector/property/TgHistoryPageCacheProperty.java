@@ -0,0 +1,25 @@
+package ru.panyukovnn.tgchatscollector.property;
+
+import io.quarkus.runtime.configuration.MemorySize;
+import io.smallrye.config.ConfigMapping;
+
+import java.time.Duration;
+
+@ConfigMapping(prefix = "tg-collector.history-page-cache")
+public interface TgHistoryPageCacheProperty {
+
+    /**
+     * Включен ли кеш загруженных страниц истории
+     */
+    Boolean enabled();
+
+    /**
+     * Предельный объем памяти под страницы. Размер страницы оценивается по количеству сообщений и длине их текста
+     */
+    MemorySize maxMemory();
+
+    /**
+     * Время жизни страницы в кеше, страхует от пропущенных обновлений от TDLib
+     */
+    Duration expireAfterWrite();
+}
@@ -0,0 +1,25 @@
+package ru.panyukovnn.tgchatscollector.property;
+
+import io.smallrye.config.ConfigMapping;
+
+import java.util.Optional;
+import java.util.Set;
+
+@ConfigMapping(prefix = "tg-collector.live-ingestion")
+public interface TgLiveIngestionProperty {
+
+    /**
+     * Включено ли накопление новых сообщений из обновлений телеграм
+     */
+    Boolean enabled();
+
+    /**
+     * Идентификаторы чатов, новые сообщения которых накапливаются в памяти
+     */
+    Optional<Set<Long>> chatIds();
+
+    /**
+     * Максимальное количество сообщений в буфере одного чата
+     */
+    Integer bufferSize();
+}
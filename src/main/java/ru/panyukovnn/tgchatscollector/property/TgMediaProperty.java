@@ -0,0 +1,33 @@
+package ru.panyukovnn.tgchatscollector.property;
+
+import io.quarkus.runtime.configuration.MemorySize;
+import io.smallrye.config.ConfigMapping;
+
+@ConfigMapping(prefix = "tg-collector.media")
+public interface TgMediaProperty {
+
+    /**
+     * Каталог загруженных файлов, имя файла - его постоянный идентификатор в телеграм
+     */
+    String path();
+
+    /**
+     * Сколько файлов загружается из телеграм одновременно, остальные ждут в очереди
+     */
+    Integer maxConcurrentDownloads();
+
+    /**
+     * Файлы больше этого размера не загружаются
+     */
+    MemorySize maxFileSize();
+
+    /**
+     * Файлы больше этого размера передаются ссылкой, даже если запрошено содержимое в base64
+     */
+    MemorySize maxInlineSize();
+
+    /**
+     * Сколько описаний файлов помнить для загрузки по ссылке
+     */
+    Integer maxKnownFiles();
+}
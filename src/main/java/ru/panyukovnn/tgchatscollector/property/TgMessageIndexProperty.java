@@ -0,0 +1,35 @@
+package ru.panyukovnn.tgchatscollector.property;
+
+import io.smallrye.config.ConfigMapping;
+
+import java.time.Duration;
+
+@ConfigMapping(prefix = "tg-collector.message-index")
+public interface TgMessageIndexProperty {
+
+    /**
+     * Включен ли полнотекстовый индекс собранных сообщений
+     */
+    Boolean enabled();
+
+    /**
+     * Каталог, в котором хранится индекс
+     */
+    String path();
+
+    /**
+     * Как часто изменения индекса сохраняются на диск. Поиск видит новые сообщения сразу,
+     * но при аварийной остановке изменения за последний интервал теряются
+     */
+    Duration commitInterval();
+
+    /**
+     * Сколько пачек сообщений может ожидать индексации. Пачки сверх этого не индексируются, чтобы индекс не задерживал сбор
+     */
+    Integer queueCapacity();
+
+    /**
+     * Количество сообщений в ответе на поиск, если оно не указано в запросе
+     */
+    Integer defaultSearchLimit();
+}
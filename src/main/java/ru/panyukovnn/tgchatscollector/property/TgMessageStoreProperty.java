@@ -0,0 +1,18 @@
+package ru.panyukovnn.tgchatscollector.property;
+
+import io.smallrye.config.ConfigMapping;
+
+@ConfigMapping(prefix = "tg-collector.message-store")
+public interface TgMessageStoreProperty {
+
+    /**
+     * Включено ли локальное хранилище собранных сообщений
+     */
+    Boolean enabled();
+
+    /**
+     * Максимальное количество новых сообщений, догружаемых из телеграм за один запрос.
+     * Если новых сообщений больше, ранее сохраненная история считается разорванной и синхронизируется заново
+     */
+    Integer maxDeltaMessages();
+}
@@ -0,0 +1,35 @@
+package ru.panyukovnn.tgchatscollector.property;
+
+import io.smallrye.config.ConfigMapping;
+
+import java.time.Duration;
+import java.util.Map;
+
+@ConfigMapping(prefix = "tg-collector.request-limiter")
+public interface TgRequestLimiterProperty {
+
+    /**
+     * Максимальное количество одновременно выполняемых запросов к TDLib, остальные ждут в очереди
+     */
+    Integer maxInFlight();
+
+    /**
+     * Допустимое количество запросов в секунду для типов запросов, не указанных в ratePerSecond
+     */
+    Double defaultRatePerSecond();
+
+    /**
+     * Допустимое количество запросов в секунду по типу запроса (имени класса TdApi, например GetChatHistory)
+     */
+    Map<String, Double> ratePerSecond();
+
+    /**
+     * Сколько раз повторять запрос, отклоненный телеграм с FLOOD_WAIT
+     */
+    Integer floodWaitMaxRetries();
+
+    /**
+     * Максимальное ожидание по FLOOD_WAIT, при большем запрос завершается ошибкой без повтора
+     */
+    Duration floodWaitMaxDelay();
+}
@@ -0,0 +1,18 @@
+package ru.panyukovnn.tgchatscollector.property;
+
+import io.smallrye.config.ConfigMapping;
+
+@ConfigMapping(prefix = "tg-collector.request-logging")
+public interface TgRequestLoggingProperty {
+
+    /**
+     * Сколько первых байт тела запроса и ответа попадает в лог, остальное отбрасывается
+     */
+    Integer maxBodySize();
+
+    /**
+     * Доля запросов от 0 до 1, для которых в лог пишутся тела запроса и ответа.
+     * Сводка по запросу (статус, время, объем ответа) пишется всегда
+     */
+    Double bodySampleRate();
+}
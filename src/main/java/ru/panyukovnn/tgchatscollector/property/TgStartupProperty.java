@@ -0,0 +1,21 @@
+package ru.panyukovnn.tgchatscollector.property;
+
+import io.smallrye.config.ConfigMapping;
+
+import java.time.Duration;
+
+@ConfigMapping(prefix = "tg-collector.startup")
+public interface TgStartupProperty {
+
+    /**
+     * Загружать ли после авторизации список чатов и индекс их названий до того, как сервис станет готов.
+     * Без прогрева первые запросы ждут загрузки чатов из TDLib
+     */
+    Boolean prewarmChatList();
+
+    /**
+     * Сколько ждать авторизации клиента, включая ввод кода подтверждения при первом входе.
+     * Если клиент не авторизован за это время, приложение завершается, чтобы оркестратор его перезапустил
+     */
+    Duration authorizationTimeout();
+}
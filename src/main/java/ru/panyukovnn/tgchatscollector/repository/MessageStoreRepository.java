@@ -0,0 +1,303 @@
+package ru.panyukovnn.tgchatscollector.repository;
+
+import io.quarkus.runtime.StartupEvent;
+import jakarta.annotation.Nullable;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+import ru.panyukovnn.tgchatscollector.dto.store.ChatSyncState;
+import ru.panyukovnn.tgchatscollector.property.TgMessageStoreProperty;
+import ru.panyukovnn.tgchatscollector.service.TgMessageMapper;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Локальное хранилище собранных сообщений и состояния синхронизации чатов
+ */
+@Slf4j
+@ApplicationScoped
+public class MessageStoreRepository {
+
+    private static final String CREATE_MESSAGE_TABLE = """
+        CREATE TABLE IF NOT EXISTS tg_message (
+            chat_id BIGINT NOT NULL,
+            topic_id BIGINT NOT NULL,
+            message_id BIGINT NOT NULL,
+            sender_id BIGINT,
+            message_date BIGINT NOT NULL,
+            message_text VARCHAR,
+            reply_to_text VARCHAR,
+            reply_to_message_id BIGINT,
+            media_type VARCHAR,
+            PRIMARY KEY (chat_id, topic_id, message_id)
+        )""";
+    /**
+     * Хранилище, созданное до появления типа вложения
+     */
+    private static final String ADD_MEDIA_TYPE_COLUMN = """
+        ALTER TABLE tg_message ADD COLUMN IF NOT EXISTS media_type VARCHAR""";
+    private static final String CREATE_SYNC_TABLE = """
+        CREATE TABLE IF NOT EXISTS tg_chat_sync (
+            chat_id BIGINT NOT NULL,
+            topic_id BIGINT NOT NULL,
+            high_message_id BIGINT NOT NULL,
+            low_message_id BIGINT NOT NULL,
+            covered_from_date BIGINT NOT NULL,
+            history_start_reached BOOLEAN NOT NULL,
+            PRIMARY KEY (chat_id, topic_id)
+        )""";
+    private static final String MERGE_MESSAGE = """
+        MERGE INTO tg_message (chat_id, topic_id, message_id, sender_id, message_date, message_text, reply_to_text, reply_to_message_id, media_type)
+        KEY (chat_id, topic_id, message_id)
+        VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)""";
+    private static final String MERGE_SYNC_STATE = """
+        MERGE INTO tg_chat_sync (chat_id, topic_id, high_message_id, low_message_id, covered_from_date, history_start_reached)
+        KEY (chat_id, topic_id)
+        VALUES (?, ?, ?, ?, ?, ?)""";
+    private static final String UPDATE_MESSAGE_CONTENT = """
+        UPDATE tg_message
+        SET message_text = ?, media_type = ?
+        WHERE chat_id = ? AND message_id = ?""";
+    private static final String UPDATE_REPLY_TO_TEXT = """
+        UPDATE tg_message
+        SET reply_to_text = ?
+        WHERE chat_id = ? AND reply_to_message_id = ?""";
+    private static final String DELETE_MESSAGE = """
+        DELETE FROM tg_message
+        WHERE chat_id = ? AND message_id = ?""";
+    private static final String SELECT_SYNC_STATE = """
+        SELECT high_message_id, low_message_id, covered_from_date, history_start_reached
+        FROM tg_chat_sync
+        WHERE chat_id = ? AND topic_id = ?""";
+    private static final String COUNT_MESSAGES = """
+        SELECT COUNT(*)
+        FROM tg_message
+        WHERE chat_id = ? AND topic_id = ? AND message_id BETWEEN ? AND ? AND message_date >= ?""";
+    private static final String SELECT_MESSAGES = """
+        SELECT message_id, sender_id, message_date, message_text, reply_to_text, reply_to_message_id, media_type
+        FROM tg_message
+        WHERE chat_id = ? AND topic_id = ? AND message_id BETWEEN ? AND ? AND message_date >= ?
+        ORDER BY message_id DESC
+        LIMIT ?""";
+
+    @Inject
+    DataSource dataSource;
+
+    @Inject
+    TgMessageStoreProperty tgMessageStoreProperty;
+
+    @SneakyThrows
+    void onStart(@Observes StartupEvent event) {
+        if (!tgMessageStoreProperty.enabled()) {
+            return;
+        }
+
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute(CREATE_MESSAGE_TABLE);
+            statement.execute(ADD_MEDIA_TYPE_COLUMN);
+            statement.execute(CREATE_SYNC_TABLE);
+        }
+
+        log.info("Локальное хранилище сообщений инициализировано");
+    }
+
+    @SneakyThrows
+    public Optional<ChatSyncState> findSyncState(long chatId, long topicId) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_SYNC_STATE)) {
+            statement.setLong(1, chatId);
+            statement.setLong(2, topicId);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return Optional.empty();
+                }
+
+                return Optional.of(new ChatSyncState(
+                    chatId,
+                    topicId,
+                    resultSet.getLong("high_message_id"),
+                    resultSet.getLong("low_message_id"),
+                    resultSet.getLong("covered_from_date"),
+                    resultSet.getBoolean("history_start_reached")
+                ));
+            }
+        }
+    }
+
+    @SneakyThrows
+    public void saveSyncState(ChatSyncState syncState) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(MERGE_SYNC_STATE)) {
+            statement.setLong(1, syncState.chatId());
+            statement.setLong(2, syncState.topicId());
+            statement.setLong(3, syncState.highMessageId());
+            statement.setLong(4, syncState.lowMessageId());
+            statement.setLong(5, syncState.coveredFromDate());
+            statement.setBoolean(6, syncState.historyStartReached());
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Сохраняет сообщения, уже сохраненные перезаписываются
+     */
+    @SneakyThrows
+    public void saveMessages(long chatId, long topicId, List<TgMessageDto> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(MERGE_MESSAGE)) {
+            for (TgMessageDto message : messages) {
+                statement.setLong(1, chatId);
+                statement.setLong(2, topicId);
+                statement.setLong(3, message.getMessageId());
+                setNullableLong(statement, 4, message.getSenderId());
+                statement.setLong(5, message.getDateTime().toEpochSecond(TgMessageMapper.MESSAGE_DATE_TIME_OFFSET));
+                statement.setString(6, message.getText());
+                statement.setString(7, message.getReplyToText());
+                setNullableLong(statement, 8, message.getReplyToMessageId());
+                statement.setString(9, message.getMediaType());
+                statement.addBatch();
+            }
+
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * Заменяет текст и тип вложения сохраненного сообщения во всех топиках, а текст - и в ответах на него.
+     * Несохраненное сообщение не добавляется
+     *
+     * @param mediaType тип вложения (может быть null)
+     */
+    @SneakyThrows
+    public void updateMessageContent(long chatId, long messageId, String text, @Nullable String mediaType) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement messageStatement = connection.prepareStatement(UPDATE_MESSAGE_CONTENT);
+             PreparedStatement replyStatement = connection.prepareStatement(UPDATE_REPLY_TO_TEXT)) {
+            messageStatement.setString(1, text);
+            messageStatement.setString(2, mediaType);
+            messageStatement.setLong(3, chatId);
+            messageStatement.setLong(4, messageId);
+            messageStatement.executeUpdate();
+
+            replyStatement.setString(1, text);
+            replyStatement.setLong(2, chatId);
+            replyStatement.setLong(3, messageId);
+            replyStatement.executeUpdate();
+        }
+    }
+
+    /**
+     * Удаляет сообщения чата во всех топиках
+     */
+    @SneakyThrows
+    public void deleteMessages(long chatId, long[] messageIds) {
+        if (messageIds.length == 0) {
+            return;
+        }
+
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(DELETE_MESSAGE)) {
+            for (long messageId : messageIds) {
+                statement.setLong(1, chatId);
+                statement.setLong(2, messageId);
+                statement.addBatch();
+            }
+
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * Считает сохраненные сообщения в отрезке идентификаторов
+     *
+     * @param dateFrom дата в секундах UTC, более ранние сообщения не учитываются (может быть null)
+     */
+    @SneakyThrows
+    public int countMessages(long chatId, long topicId, long lowMessageId, long highMessageId, @Nullable Long dateFrom) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(COUNT_MESSAGES)) {
+            statement.setLong(1, chatId);
+            statement.setLong(2, topicId);
+            statement.setLong(3, lowMessageId);
+            statement.setLong(4, highMessageId);
+            statement.setLong(5, dateFrom != null ? dateFrom : Long.MIN_VALUE);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+
+                return resultSet.getInt(1);
+            }
+        }
+    }
+
+    /**
+     * Возвращает самые новые сохраненные сообщения в отрезке идентификаторов
+     *
+     * @param dateFrom дата в секундах UTC, более ранние сообщения не возвращаются (может быть null)
+     * @param limit    предельное количество сообщений
+     * @return сообщения от новых к старым
+     */
+    @SneakyThrows
+    public List<TgMessageDto> findMessages(long chatId,
+                                           long topicId,
+                                           long lowMessageId,
+                                           long highMessageId,
+                                           @Nullable Long dateFrom,
+                                           int limit) {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SELECT_MESSAGES)) {
+            statement.setLong(1, chatId);
+            statement.setLong(2, topicId);
+            statement.setLong(3, lowMessageId);
+            statement.setLong(4, highMessageId);
+            statement.setLong(5, dateFrom != null ? dateFrom : Long.MIN_VALUE);
+            statement.setInt(6, limit);
+
+            List<TgMessageDto> messages = new ArrayList<>();
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    messages.add(TgMessageDto.builder()
+                        .messageId(resultSet.getLong("message_id"))
+                        .senderId(resultSet.getObject("sender_id", Long.class))
+                        .dateTime(LocalDateTime.ofEpochSecond(
+                            resultSet.getLong("message_date"), 0, TgMessageMapper.MESSAGE_DATE_TIME_OFFSET))
+                        .text(resultSet.getString("message_text"))
+                        .replyToText(resultSet.getString("reply_to_text"))
+                        .replyToMessageId(resultSet.getObject("reply_to_message_id", Long.class))
+                        .mediaType(resultSet.getString("media_type"))
+                        .build());
+                }
+            }
+
+            return messages;
+        }
+    }
+
+    private static void setNullableLong(PreparedStatement statement, int index, @Nullable Long value) throws SQLException {
+        if (value != null) {
+            statement.setLong(index, value);
+        } else {
+            statement.setNull(index, Types.BIGINT);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import it.tdlight.jni.TdApi;
+import jakarta.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+/**
+ * Постраничная загрузка истории чата с упреждением.
+ * Запрос следующей страницы отправляется сразу, как только стал известен идентификатор
+ * самого старого сообщения текущей, не дожидаясь ее обработки.
+ * Не потокобезопасен, используется в рамках одного сбора сообщений, страницы запрашиваются последовательно
+ */
+@Slf4j
+class ChatHistoryPager implements AutoCloseable {
+
+    private final LongFunction<CompletableFuture<TdApi.Messages>> pageLoader;
+    private final Predicate<TdApi.Messages> lastPagePredicate;
+    private final int readAheadDepth;
+    private final Deque<CompletableFuture<HistoryPage>> pendingPages = new ArrayDeque<>();
+
+    private CompletableFuture<HistoryPage> lastRequestedPage;
+    private volatile boolean closed;
+
+    /**
+     * @param fromMessageId     ID сообщения, с которого начинается загрузка (0 для последних сообщений)
+     * @param readAheadDepth    количество страниц, запрашиваемых заранее
+     * @param pageLoader        загрузчик страницы по ID сообщения, с которого она начинается
+     * @param lastPagePredicate признак того, что после страницы загружать историю дальше не нужно
+     */
+    ChatHistoryPager(long fromMessageId,
+                     int readAheadDepth,
+                     LongFunction<CompletableFuture<TdApi.Messages>> pageLoader,
+                     Predicate<TdApi.Messages> lastPagePredicate) {
+        this.pageLoader = pageLoader;
+        this.lastPagePredicate = lastPagePredicate;
+        this.readAheadDepth = Math.max(0, readAheadDepth);
+
+        lastRequestedPage = pageLoader.apply(fromMessageId)
+            .thenApply(messages -> new HistoryPage(fromMessageId, messages));
+        pendingPages.add(lastRequestedPage);
+        fillReadAhead();
+    }
+
+    /**
+     * Возвращает следующую страницу истории, не дожидаясь ее загрузки.
+     * Следующую страницу можно запрашивать только после завершения загрузки предыдущей
+     *
+     * @return загрузка страницы, завершается null, если история закончилась
+     */
+    CompletableFuture<HistoryPage> nextAsync() {
+        if (pendingPages.isEmpty()) {
+            requestNextPage();
+        }
+
+        CompletableFuture<HistoryPage> page = pendingPages.poll();
+        fillReadAhead();
+
+        return page.thenApply(loadedPage -> loadedPage.isEnd() ? null : loadedPage);
+    }
+
+    /**
+     * Страницы, загруженные заранее и еще не отданные через nextAsync, без ожидания загрузки остальных
+     *
+     * @return сообщения страниц от новых к старым
+     */
+    List<TdApi.Messages> loadedReadAheadPages() {
+        List<TdApi.Messages> loadedPages = new ArrayList<>();
+
+        // Каждая страница запрашивается после загрузки предыдущей, поэтому после незагруженной загруженных нет
+        for (CompletableFuture<HistoryPage> pendingPage : pendingPages) {
+            if (!pendingPage.isDone() || pendingPage.isCompletedExceptionally() || pendingPage.join().isEnd()) {
+                break;
+            }
+
+            loadedPages.add(pendingPage.join().messages());
+        }
+
+        return loadedPages;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        // Уже отправленные в TDLib запросы не отменить, но цепочка дальнейших запросов прерывается
+        pendingPages.forEach(pendingPage -> pendingPage.cancel(false));
+        pendingPages.clear();
+    }
+
+    private void fillReadAhead() {
+        while (pendingPages.size() < readAheadDepth && !isEndKnown()) {
+            requestNextPage();
+        }
+    }
+
+    private void requestNextPage() {
+        lastRequestedPage = lastRequestedPage.thenCompose(previousPage -> {
+            if (closed || !hasNextPage(previousPage)) {
+                return CompletableFuture.completedFuture(HistoryPage.END);
+            }
+
+            long nextFromMessageId = previousPage.oldestMessageId();
+            log.debug("Запрошена следующая страница истории, начиная с сообщения: {}", nextFromMessageId);
+
+            return pageLoader.apply(nextFromMessageId)
+                .thenApply(messages -> new HistoryPage(nextFromMessageId, messages));
+        });
+        pendingPages.add(lastRequestedPage);
+    }
+
+    private boolean isEndKnown() {
+        return lastRequestedPage.isDone()
+            && !lastRequestedPage.isCompletedExceptionally()
+            && lastRequestedPage.join().isEnd();
+    }
+
+    private boolean hasNextPage(HistoryPage page) {
+        if (page.isEnd()) {
+            return false;
+        }
+
+        // Если самое старое сообщение совпадает с начальным, новых сообщений больше нет
+        if (page.oldestMessageId() == page.fromMessageId()) {
+            return false;
+        }
+
+        return !lastPagePredicate.test(page.messages());
+    }
+
+    /**
+     * Страница истории чата
+     *
+     * @param fromMessageId ID сообщения, с которого запрашивалась страница
+     * @param messages      сообщения страницы, от новых к старым
+     */
+    record HistoryPage(long fromMessageId, @Nullable TdApi.Messages messages) {
+
+        private static final HistoryPage END = new HistoryPage(0L, null);
+
+        boolean isEnd() {
+            return messages == null || messages.messages == null || messages.messages.length == 0;
+        }
+
+        long oldestMessageId() {
+            return messages.messages[messages.messages.length - 1].id;
+        }
+    }
+}
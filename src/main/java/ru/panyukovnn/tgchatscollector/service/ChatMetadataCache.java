@@ -0,0 +1,136 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import it.tdlight.jni.TdApi;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import ru.panyukovnn.tgchatscollector.dto.telegram.ChatMetadata;
+import ru.panyukovnn.tgchatscollector.property.TgChatCacheProperty;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Кеш метаданных чатов и публичных имен супергрупп.
+ * Актуальность поддерживается обработчиками обновлений TDLib, зарегистрированными в TgLightConfig
+ */
+@Slf4j
+@ApplicationScoped
+public class ChatMetadataCache {
+
+    @Inject
+    TgChatCacheProperty tgChatCacheProperty;
+
+    /**
+     * Асинхронные кеши: одновременные запросы одного и того же чата ожидают одну загрузку
+     */
+    private AsyncCache<Long, ChatMetadata> chats;
+    private AsyncCache<Long, Optional<String>> supergroupPublicNames;
+
+    @PostConstruct
+    void init() {
+        chats = Caffeine.newBuilder()
+            .maximumSize(tgChatCacheProperty.maxSize())
+            .expireAfterWrite(tgChatCacheProperty.expireAfterWrite())
+            .buildAsync();
+        supergroupPublicNames = Caffeine.newBuilder()
+            .maximumSize(tgChatCacheProperty.maxSize())
+            .expireAfterWrite(tgChatCacheProperty.expireAfterWrite())
+            .buildAsync();
+    }
+
+    /**
+     * Возвращает метаданные чата из кеша, при отсутствии загружает
+     *
+     * @param chatId     идентификатор чата
+     * @param chatLoader загрузчик метаданных чата из TDLib
+     * @return метаданные чата
+     */
+    public CompletableFuture<ChatMetadata> getChat(long chatId, Function<Long, CompletableFuture<ChatMetadata>> chatLoader) {
+        return chats.get(chatId, (id, executor) -> chatLoader.apply(id));
+    }
+
+    public void putChat(TdApi.Chat chat) {
+        chats.synchronous().put(chat.id, toChatMetadata(chat));
+    }
+
+    /**
+     * Возвращает публичное имя супергруппы из кеша, при отсутствии загружает
+     *
+     * @param supergroupId     идентификатор супергруппы
+     * @param publicNameLoader загрузчик публичного имени, завершается null, если загрузить не удалось
+     * @return публичное имя, null если его нет
+     */
+    public CompletableFuture<String> getSupergroupPublicName(long supergroupId,
+                                                             Function<Long, CompletableFuture<Optional<String>>> publicNameLoader) {
+        // Незагруженное имя (null) Caffeine не сохраняет, повторная попытка будет при следующем запросе
+        return supergroupPublicNames.get(supergroupId, (id, executor) -> publicNameLoader.apply(id))
+            .thenApply(publicName -> publicName != null ? publicName.orElse(null) : null);
+    }
+
+    public void onUpdateChatTitle(TdApi.UpdateChatTitle update) {
+        // Обновления приходят в потоке TDLib, поэтому не ждем загрузки чата, которая еще не завершилась
+        ChatMetadata chat = chats.synchronous().getIfPresent(update.chatId);
+
+        if (chat != null) {
+            chats.synchronous().put(update.chatId, new ChatMetadata(chat.chatId(), update.title, chat.type(), chat.supergroupId()));
+        }
+    }
+
+    public void onUpdateNewChat(TdApi.UpdateNewChat update) {
+        // На старте TDLib присылает все чаты, поэтому обновляем только уже закешированные
+        if (chats.synchronous().getIfPresent(update.chat.id) != null) {
+            putChat(update.chat);
+        }
+    }
+
+    public void onUpdateSupergroup(TdApi.UpdateSupergroup update) {
+        TdApi.Supergroup supergroup = update.supergroup;
+
+        if (supergroupPublicNames.synchronous().getIfPresent(supergroup.id) != null) {
+            supergroupPublicNames.synchronous().put(supergroup.id, Optional.ofNullable(extractPublicName(supergroup.usernames)));
+        }
+    }
+
+    static ChatMetadata toChatMetadata(TdApi.Chat chat) {
+        Long supergroupId = chat.type instanceof TdApi.ChatTypeSupergroup supergroup
+            ? supergroup.supergroupId
+            : null;
+
+        return new ChatMetadata(chat.id, chat.title, defineChatType(chat), supergroupId);
+    }
+
+    @Nullable
+    static String extractPublicName(@Nullable TdApi.Usernames usernames) {
+        return Optional.ofNullable(usernames)
+            .map(it -> it.activeUsernames)
+            .filter(activeUsernames -> activeUsernames.length > 0)
+            .map(activeUsernames -> activeUsernames[0])
+            .orElse(null);
+    }
+
+    static String defineChatType(TdApi.Chat chat) {
+        if (chat.type instanceof TdApi.ChatTypePrivate) {
+            return "private";
+        }
+
+        if (chat.type instanceof TdApi.ChatTypeBasicGroup) {
+            return "group";
+        }
+
+        if (chat.type instanceof TdApi.ChatTypeSupergroup sg) {
+            return sg.isChannel ? "channel" : "supergroup";
+        }
+
+        if (chat.type instanceof TdApi.ChatTypeSecret) {
+            return "secret";
+        }
+
+        return "undefined";
+    }
+}
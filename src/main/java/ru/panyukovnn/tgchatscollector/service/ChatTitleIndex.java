@@ -0,0 +1,326 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import it.tdlight.jni.TdApi;
+import jakarta.enterprise.context.ApplicationScoped;
+import lombok.extern.slf4j.Slf4j;
+import ru.panyukovnn.tgchatscollector.dto.telegram.ChatMetadata;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Триграммный индекс названий чатов из основного списка и архива.
+ * Строится при старте приложения и поддерживается в актуальном состоянии обновлениями TDLib,
+ * поиск выполняется без обращений к TDLib
+ */
+@Slf4j
+@ApplicationScoped
+public class ChatTitleIndex {
+
+    private static final int NGRAM_SIZE = 3;
+    private static final int MAIN_LIST = 1;
+    private static final int ARCHIVE_LIST = 2;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Все известные TDLib чаты, в том числе не входящие в списки
+     */
+    private final Map<Long, ChatMetadata> knownChats = new HashMap<>();
+    /**
+     * Списки, в которые входит чат, битовая маска MAIN_LIST и ARCHIVE_LIST
+     */
+    private final Map<Long, Integer> chatLists = new HashMap<>();
+    private final Map<Long, String> indexedTitles = new HashMap<>();
+    private final Map<String, Set<Long>> postings = new HashMap<>();
+
+    private volatile boolean loaded;
+
+    /**
+     * Полностью перестраивает индекс по чатам основного списка и архива
+     *
+     * @param mainChats    чаты основного списка
+     * @param archiveChats чаты архива
+     */
+    public void rebuild(Collection<TdApi.Chat> mainChats, Collection<TdApi.Chat> archiveChats) {
+        lock.writeLock().lock();
+
+        try {
+            chatLists.clear();
+            indexedTitles.clear();
+            postings.clear();
+
+            mainChats.forEach(chat -> rebuildChat(chat, MAIN_LIST));
+            archiveChats.forEach(chat -> rebuildChat(chat, ARCHIVE_LIST));
+
+            loaded = true;
+
+            log.info("Индекс названий чатов построен, чатов: {}", indexedTitles.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Ищет чаты, название которых содержит строку
+     *
+     * @param namePart часть названия
+     * @param limit    предельное количество чатов
+     * @return чаты в порядке релевантности: точное совпадение, совпадение с начала названия,
+     * с начала слова, затем остальные; при равенстве короткие названия выше
+     */
+    public List<ChatMetadata> search(String namePart, int limit) {
+        String query = normalize(namePart);
+
+        lock.readLock().lock();
+
+        try {
+            Collection<Long> candidates = query.length() < NGRAM_SIZE
+                ? indexedTitles.keySet()
+                : findCandidates(query);
+
+            List<RankedChat> rankedChats = new ArrayList<>();
+
+            for (Long chatId : candidates) {
+                String title = indexedTitles.get(chatId);
+                int matchIndex = title.indexOf(query);
+
+                if (matchIndex >= 0) {
+                    rankedChats.add(new RankedChat(knownChats.get(chatId), rank(title, query, matchIndex), title.length()));
+                }
+            }
+
+            return rankedChats.stream()
+                .sorted(Comparator.comparingInt(RankedChat::rank)
+                    .thenComparingInt(RankedChat::titleLength)
+                    .thenComparing(rankedChat -> rankedChat.chat().chatId()))
+                .limit(limit)
+                .map(RankedChat::chat)
+                .toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void onUpdateNewChat(TdApi.UpdateNewChat update) {
+        lock.writeLock().lock();
+
+        try {
+            knownChats.put(update.chat.id, ChatMetadataCache.toChatMetadata(update.chat));
+
+            for (TdApi.ChatPosition position : update.chat.positions) {
+                applyPosition(update.chat.id, position);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void onUpdateChatTitle(TdApi.UpdateChatTitle update) {
+        lock.writeLock().lock();
+
+        try {
+            ChatMetadata chat = knownChats.get(update.chatId);
+
+            if (chat == null) {
+                return;
+            }
+
+            knownChats.put(update.chatId, new ChatMetadata(chat.chatId(), update.title, chat.type(), chat.supergroupId()));
+
+            if (indexedTitles.containsKey(update.chatId)) {
+                removeFromIndex(update.chatId);
+                addToIndex(update.chatId, update.title);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void onUpdateChatPosition(TdApi.UpdateChatPosition update) {
+        lock.writeLock().lock();
+
+        try {
+            applyPosition(update.chatId, update.position);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void onUpdateChatLastMessage(TdApi.UpdateChatLastMessage update) {
+        lock.writeLock().lock();
+
+        try {
+            for (TdApi.ChatPosition position : update.positions) {
+                applyPosition(update.chatId, position);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void rebuildChat(TdApi.Chat chat, int list) {
+        knownChats.put(chat.id, ChatMetadataCache.toChatMetadata(chat));
+        chatLists.merge(chat.id, list, (lists, newList) -> lists | newList);
+
+        if (!indexedTitles.containsKey(chat.id)) {
+            addToIndex(chat.id, chat.title);
+        }
+    }
+
+    /**
+     * Учитывает изменение позиции чата в списке, нулевой порядок означает удаление из списка
+     */
+    private void applyPosition(long chatId, TdApi.ChatPosition position) {
+        int list = toListMask(position.list);
+
+        if (list == 0) {
+            return;
+        }
+
+        int previousLists = chatLists.getOrDefault(chatId, 0);
+        int actualLists = position.order != 0 ? previousLists | list : previousLists & ~list;
+
+        if (actualLists == previousLists) {
+            return;
+        }
+
+        if (actualLists == 0) {
+            chatLists.remove(chatId);
+            removeFromIndex(chatId);
+
+            return;
+        }
+
+        chatLists.put(chatId, actualLists);
+        ChatMetadata chat = knownChats.get(chatId);
+
+        if (previousLists == 0 && chat != null) {
+            addToIndex(chatId, chat.title());
+        }
+    }
+
+    private void addToIndex(long chatId, String title) {
+        String normalizedTitle = normalize(title);
+        indexedTitles.put(chatId, normalizedTitle);
+
+        for (String ngram : ngrams(normalizedTitle)) {
+            postings.computeIfAbsent(ngram, key -> new HashSet<>()).add(chatId);
+        }
+    }
+
+    private void removeFromIndex(long chatId) {
+        String normalizedTitle = indexedTitles.remove(chatId);
+
+        if (normalizedTitle == null) {
+            return;
+        }
+
+        for (String ngram : ngrams(normalizedTitle)) {
+            Set<Long> chatIds = postings.get(ngram);
+
+            if (chatIds != null) {
+                chatIds.remove(chatId);
+
+                if (chatIds.isEmpty()) {
+                    postings.remove(ngram);
+                }
+            }
+        }
+    }
+
+    /**
+     * Пересекает списки чатов по всем триграммам запроса, начиная с самого короткого
+     */
+    private Collection<Long> findCandidates(String query) {
+        List<Set<Long>> queryPostings = new ArrayList<>();
+
+        for (String ngram : ngrams(query)) {
+            Set<Long> chatIds = postings.get(ngram);
+
+            if (chatIds == null) {
+                return List.of();
+            }
+
+            queryPostings.add(chatIds);
+        }
+
+        queryPostings.sort(Comparator.comparingInt(Set::size));
+
+        Set<Long> candidates = new HashSet<>(queryPostings.get(0));
+
+        for (int i = 1; i < queryPostings.size() && !candidates.isEmpty(); i++) {
+            candidates.retainAll(queryPostings.get(i));
+        }
+
+        return candidates;
+    }
+
+    private static int rank(String title, String query, int matchIndex) {
+        if (title.length() == query.length()) {
+            return 0;
+        }
+
+        if (matchIndex == 0) {
+            return 1;
+        }
+
+        if (isWordStart(title, matchIndex)) {
+            return 2;
+        }
+
+        // Совпадение может встречаться в названии несколько раз, ищем вхождение с начала слова
+        for (int index = title.indexOf(query, matchIndex + 1); index >= 0; index = title.indexOf(query, index + 1)) {
+            if (isWordStart(title, index)) {
+                return 2;
+            }
+        }
+
+        return 3;
+    }
+
+    private static boolean isWordStart(String title, int index) {
+        return !Character.isLetterOrDigit(title.charAt(index - 1));
+    }
+
+    private static Set<String> ngrams(String normalizedText) {
+        Set<String> ngrams = new HashSet<>();
+
+        for (int i = 0; i + NGRAM_SIZE <= normalizedText.length(); i++) {
+            ngrams.add(normalizedText.substring(i, i + NGRAM_SIZE));
+        }
+
+        return ngrams;
+    }
+
+    private static String normalize(String text) {
+        return text.toLowerCase(Locale.ROOT).replace('ё', 'е');
+    }
+
+    private static int toListMask(TdApi.ChatList chatList) {
+        if (chatList instanceof TdApi.ChatListMain) {
+            return MAIN_LIST;
+        }
+
+        if (chatList instanceof TdApi.ChatListArchive) {
+            return ARCHIVE_LIST;
+        }
+
+        return 0;
+    }
+
+    private record RankedChat(ChatMetadata chat, int rank, int titleLength) {
+    }
+}
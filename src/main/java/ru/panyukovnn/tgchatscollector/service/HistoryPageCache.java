@@ -0,0 +1,285 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import it.tdlight.jni.TdApi;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import ru.panyukovnn.tgchatscollector.property.TgHistoryPageCacheProperty;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Кеш загруженных из TDLib страниц истории. Страница, начинающаяся с конкретного сообщения,
+ * не меняется при появлении новых сообщений, поэтому повторный сбор той же истории не обращается к TDLib.
+ * Изменения и удаления сообщений применяются к страницам обработчиками обновлений, зарегистрированными в TgLightConfig
+ */
+@ApplicationScoped
+public class HistoryPageCache {
+
+    /**
+     * Оценка объема сообщения без текста в байтах: поля сообщения, отправитель, ответ
+     */
+    private static final int MESSAGE_WEIGHT = 512;
+    /**
+     * Оценка объема медиа контента в байтах: описания файлов, миниатюры, подпись
+     */
+    private static final int MEDIA_CONTENT_WEIGHT = 2048;
+
+    @Inject
+    TgHistoryPageCacheProperty tgHistoryPageCacheProperty;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    private Cache<PageKey, TdApi.Messages> pages;
+
+    /**
+     * Версии чатов, история которых загружалась. Меняются при каждом обновлении сообщений чата,
+     * чтобы не положить в кеш страницу, загруженную до обновления, но полученную после него
+     */
+    private final Map<Long, AtomicLong> chatVersions = new ConcurrentHashMap<>();
+
+    /**
+     * Ключи закешированных страниц по чатам, чтобы обновление сообщений чата не перебирало страницы всех чатов.
+     * Меняются под блокировкой записи кеша по ключу: при добавлении страницы, ее удалении и вытеснении
+     */
+    private final Map<Long, Set<PageKey>> chatPageKeys = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    void init() {
+        if (!tgHistoryPageCacheProperty.enabled()) {
+            return;
+        }
+
+        pages = Caffeine.newBuilder()
+            .maximumWeight(tgHistoryPageCacheProperty.maxMemory().asLongValue())
+            .weigher((PageKey key, TdApi.Messages page) -> weigh(page))
+            .expireAfterWrite(tgHistoryPageCacheProperty.expireAfterWrite())
+            .evictionListener((PageKey key, TdApi.Messages page, RemovalCause cause) -> unindexPage(key))
+            .recordStats()
+            .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, pages, "history-pages");
+    }
+
+    /**
+     * Возвращает страницу истории из кеша, при отсутствии загружает.
+     * Последние сообщения (fromMessageId = 0) не кешируются, так как меняются с каждым новым сообщением
+     *
+     * @param chatId        идентификатор чата
+     * @param threadId      идентификатор треда, по которому загружается страница, 0 для всей истории чата
+     * @param fromMessageId ID сообщения, с которого начинается страница
+     * @param pageLoader    загрузчик страницы из TDLib
+     * @return страница истории
+     */
+    public CompletableFuture<TdApi.Messages> getPage(long chatId,
+                                                     long threadId,
+                                                     long fromMessageId,
+                                                     Supplier<CompletableFuture<TdApi.Messages>> pageLoader) {
+        if (pages == null || fromMessageId == 0) {
+            return pageLoader.get();
+        }
+
+        PageKey key = new PageKey(chatId, threadId, fromMessageId);
+        TdApi.Messages cachedPage = pages.getIfPresent(key);
+
+        if (cachedPage != null) {
+            return CompletableFuture.completedFuture(cachedPage);
+        }
+
+        AtomicLong chatVersion = chatVersions.computeIfAbsent(chatId, id -> new AtomicLong());
+        long loadVersion = chatVersion.get();
+
+        return pageLoader.get()
+            .thenApply(page -> {
+                // Пустая страница может означать, что TDLib еще не загрузил историю с сервера
+                if (page.messages.length > 0 && chatVersion.get() == loadVersion) {
+                    pages.asMap().compute(key, (pageKey, previousPage) -> {
+                        indexPage(pageKey);
+
+                        return page;
+                    });
+                }
+
+                return page;
+            });
+    }
+
+    public void onUpdateMessageContent(TdApi.UpdateMessageContent update) {
+        patchMessage(update.chatId, update.messageId, message -> message.content = update.newContent);
+    }
+
+    public void onUpdateMessageEdited(TdApi.UpdateMessageEdited update) {
+        patchMessage(update.chatId, update.messageId, message -> {
+            message.editDate = update.editDate;
+            message.replyMarkup = update.replyMarkup;
+        });
+    }
+
+    public void onUpdateDeleteMessages(TdApi.UpdateDeleteMessages update) {
+        // Сообщения, удаленные только из кэша TDLib, в телеграм остаются
+        if (pages == null || !update.isPermanent || update.fromCache) {
+            return;
+        }
+
+        bumpChatVersion(update.chatId);
+
+        // Страницы без удаленных сообщений начинались бы с других сообщений, поэтому страница удаляется целиком
+        for (PageKey pageKey : chatPageKeys.getOrDefault(update.chatId, Set.of())) {
+            TdApi.Messages cachedPage = pages.getIfPresent(pageKey);
+
+            if (cachedPage == null || !containsAny(cachedPage, update.messageIds)) {
+                continue;
+            }
+
+            pages.asMap().computeIfPresent(pageKey, (key, page) -> {
+                if (!containsAny(page, update.messageIds)) {
+                    return page;
+                }
+
+                unindexPage(key);
+
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Изменяет сообщение во всех страницах, в которые оно попало. Выданные из кеша страницы в это время
+     * могут обрабатываться сбором, поэтому ни страница, ни сообщение не меняются на месте: в кеш кладется копия
+     * страницы с измененной копией сообщения, при этом пересчитывается объем страницы
+     */
+    private void patchMessage(long chatId, long messageId, Consumer<TdApi.Message> patch) {
+        if (pages == null) {
+            return;
+        }
+
+        // До замены страниц, чтобы загруженная до обновления страница не попала в кеш после него
+        bumpChatVersion(chatId);
+
+        for (PageKey pageKey : chatPageKeys.getOrDefault(chatId, Set.of())) {
+            TdApi.Messages cachedPage = pages.getIfPresent(pageKey);
+
+            if (cachedPage == null || indexOf(cachedPage, messageId) < 0) {
+                continue;
+            }
+
+            pages.asMap().computeIfPresent(pageKey, (key, page) -> patchPage(page, messageId, patch));
+        }
+    }
+
+    private static TdApi.Messages patchPage(TdApi.Messages page, long messageId, Consumer<TdApi.Message> patch) {
+        int index = indexOf(page, messageId);
+
+        if (index < 0) {
+            return page;
+        }
+
+        TdApi.Message patchedMessage = copyOf(page.messages[index]);
+        patch.accept(patchedMessage);
+
+        TdApi.Message[] patchedMessages = page.messages.clone();
+        patchedMessages[index] = patchedMessage;
+
+        return new TdApi.Messages(page.totalCount, patchedMessages);
+    }
+
+    /**
+     * Копия сообщения для изменения обработчиком обновления. Копируются поля, которые читает сбор истории,
+     * и поля, меняющиеся обновлениями. Вложенные объекты общие: обработчики обновлений заменяют их, не изменяя
+     */
+    private static TdApi.Message copyOf(TdApi.Message message) {
+        TdApi.Message copy = new TdApi.Message();
+        copy.id = message.id;
+        copy.senderId = message.senderId;
+        copy.chatId = message.chatId;
+        copy.isTopicMessage = message.isTopicMessage;
+        copy.date = message.date;
+        copy.editDate = message.editDate;
+        copy.interactionInfo = message.interactionInfo;
+        copy.replyTo = message.replyTo;
+        copy.content = message.content;
+        copy.replyMarkup = message.replyMarkup;
+
+        return copy;
+    }
+
+    private void indexPage(PageKey pageKey) {
+        chatPageKeys.compute(pageKey.chatId(), (chatId, pageKeys) -> {
+            Set<PageKey> chatPages = pageKeys != null ? pageKeys : ConcurrentHashMap.newKeySet();
+            chatPages.add(pageKey);
+
+            return chatPages;
+        });
+    }
+
+    private void unindexPage(PageKey pageKey) {
+        chatPageKeys.computeIfPresent(pageKey.chatId(), (chatId, pageKeys) -> {
+            pageKeys.remove(pageKey);
+
+            return pageKeys.isEmpty() ? null : pageKeys;
+        });
+    }
+
+    private static int indexOf(TdApi.Messages page, long messageId) {
+        for (int i = 0; i < page.messages.length; i++) {
+            if (page.messages[i].id == messageId) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void bumpChatVersion(long chatId) {
+        AtomicLong chatVersion = chatVersions.get(chatId);
+
+        if (chatVersion != null) {
+            chatVersion.incrementAndGet();
+        }
+    }
+
+    private static boolean containsAny(TdApi.Messages page, long[] messageIds) {
+        for (TdApi.Message message : page.messages) {
+            for (long messageId : messageIds) {
+                if (message.id == messageId) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static int weigh(TdApi.Messages page) {
+        long weight = 0;
+
+        for (TdApi.Message message : page.messages) {
+            weight += MESSAGE_WEIGHT;
+            weight += message.content instanceof TdApi.MessageText messageText
+                ? (long) messageText.text.text.length() * Character.BYTES
+                : MEDIA_CONTENT_WEIGHT;
+        }
+
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param chatId        идентификатор чата
+     * @param threadId      идентификатор треда, 0 для всей истории чата
+     * @param fromMessageId ID сообщения, с которого начинается страница
+     */
+    private record PageKey(long chatId, long threadId, long fromMessageId) {
+    }
+}
@@ -0,0 +1,258 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import it.tdlight.jni.TdApi;
+import jakarta.annotation.Nullable;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+import ru.panyukovnn.tgchatscollector.dto.telegram.TopicInfo;
+import ru.panyukovnn.tgchatscollector.property.TgLiveIngestionProperty;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Буфер новых сообщений отслеживаемых чатов.
+ * Наполняется обновлениями TDLib, последние сообщения отдаются без запросов истории.
+ * Для каждого чата хранится не более bufferSize последних сообщений
+ */
+@Slf4j
+@ApplicationScoped
+public class LiveMessageBuffer {
+
+    private final Map<Long, Map<Long, LiveMessage>> chatBuffers = new ConcurrentHashMap<>();
+
+    @Inject
+    TgRequestExecutor tgRequestExecutor;
+
+    @Inject
+    TgMessageMapper tgMessageMapper;
+
+    @Inject
+    TgLiveIngestionProperty tgLiveIngestionProperty;
+
+    /**
+     * Проверяет, накапливаются ли новые сообщения чата в буфере
+     *
+     * @param chatId идентификатор чата
+     * @return true, если чат отслеживается
+     */
+    public boolean isTracked(long chatId) {
+        return tgLiveIngestionProperty.enabled()
+            && tgLiveIngestionProperty.chatIds()
+                .map(chatIds -> chatIds.contains(chatId))
+                .orElse(false);
+    }
+
+    /**
+     * Открывает отслеживаемые чаты, иначе телеграм может не присылать обновления по крупным каналам и группам
+     */
+    public void openTrackedChats() {
+        if (!tgLiveIngestionProperty.enabled()) {
+            return;
+        }
+
+        Set<Long> chatIds = tgLiveIngestionProperty.chatIds().orElse(Set.of());
+
+        for (Long chatId : chatIds) {
+            tgRequestExecutor.send(new TdApi.OpenChat(chatId))
+                .whenComplete((ok, e) -> {
+                    if (e != null) {
+                        log.warn("Не удалось открыть отслеживаемый чат {}: {}", chatId, e.getMessage());
+                    }
+                });
+        }
+
+        log.info("Отслеживание новых сообщений включено для чатов: {}", chatIds);
+    }
+
+    /**
+     * Возвращает последние накопленные сообщения чата
+     *
+     * @param chatId идентификатор чата
+     * @param topic  топик (может быть null)
+     * @param limit  предельное количество сообщений, если не задано - весь буфер
+     * @return сообщения от старых к новым
+     */
+    public List<TgMessageDto> findRecentMessages(long chatId, @Nullable TopicInfo topic, @Nullable Integer limit) {
+        Map<Long, LiveMessage> buffer = chatBuffers.get(chatId);
+
+        if (buffer == null) {
+            return List.of();
+        }
+
+        List<LiveMessage> bufferedMessages;
+        synchronized (buffer) {
+            bufferedMessages = new ArrayList<>(buffer.values());
+        }
+
+        int effectiveLimit = limit != null ? limit : tgLiveIngestionProperty.bufferSize();
+        List<TgMessageDto> result = new ArrayList<>();
+
+        for (int i = bufferedMessages.size() - 1; i >= 0 && result.size() < effectiveLimit; i--) {
+            LiveMessage liveMessage = bufferedMessages.get(i);
+
+            if (liveMessage.isFromTopic(topic)) {
+                result.add(liveMessage.message());
+            }
+        }
+
+        Collections.reverse(result);
+
+        return result;
+    }
+
+    public void onUpdateNewMessage(TdApi.UpdateNewMessage update) {
+        TdApi.Message message = update.message;
+
+        if (!isTracked(message.chatId)) {
+            return;
+        }
+
+        Map<Long, LiveMessage> buffer = chatBuffers.computeIfAbsent(message.chatId, chatId -> createBuffer());
+        Long replyToMessageId = extractReplyToMessageId(message);
+        boolean replyResolved;
+
+        synchronized (buffer) {
+            LiveMessage replyToMessage = replyToMessageId != null ? buffer.get(replyToMessageId) : null;
+            replyResolved = replyToMessageId == null || replyToMessage != null;
+
+            TgMessageDto messageDto = tgMessageMapper.toMessageDto(
+                message,
+                replyToMessageId,
+                replyToMessage != null ? replyToMessage.message().getText() : null
+            );
+            buffer.put(message.id, new LiveMessage(message.messageThreadId, message.isTopicMessage, messageDto));
+        }
+
+        if (!replyResolved) {
+            // Сообщения, на которое отвечают, нет в буфере, догружаем его текст не блокируя поток обновлений
+            tgRequestExecutor.send(new TdApi.GetMessage(message.chatId, replyToMessageId))
+                .thenAccept(replyToMessage -> replaceMessage(buffer, message.id, messageDto -> tgMessageMapper.withReplyTo(
+                    messageDto,
+                    replyToMessageId,
+                    tgMessageMapper.extractMessageTextSafely(replyToMessage.content)
+                )))
+                .whenComplete((ok, e) -> {
+                    if (e != null) {
+                        log.warn("Не удалось загрузить сообщение {}, на которое отвечает сообщение {} в чате {}: {}",
+                            replyToMessageId, message.id, message.chatId, e.getMessage());
+                    }
+                });
+        }
+    }
+
+    public void onUpdateMessageContent(TdApi.UpdateMessageContent update) {
+        Map<Long, LiveMessage> buffer = chatBuffers.get(update.chatId);
+
+        if (buffer == null) {
+            return;
+        }
+
+        String text = tgMessageMapper.extractMessageTextSafely(update.newContent);
+
+        synchronized (buffer) {
+            replaceMessage(buffer, update.messageId, messageDto -> tgMessageMapper.withText(messageDto, text));
+
+            // Обновляем текст в ответах на измененное сообщение
+            for (Map.Entry<Long, LiveMessage> entry : buffer.entrySet()) {
+                TgMessageDto messageDto = entry.getValue().message();
+
+                if (Long.valueOf(update.messageId).equals(messageDto.getReplyToMessageId())) {
+                    entry.setValue(entry.getValue().withMessage(
+                        tgMessageMapper.withReplyTo(messageDto, messageDto.getReplyToMessageId(), text)
+                    ));
+                }
+            }
+        }
+    }
+
+    public void onUpdateDeleteMessages(TdApi.UpdateDeleteMessages update) {
+        // Сообщения, удаленные только из кэша TDLib, в телеграм остаются
+        if (!update.isPermanent || update.fromCache) {
+            return;
+        }
+
+        Map<Long, LiveMessage> buffer = chatBuffers.get(update.chatId);
+
+        if (buffer == null) {
+            return;
+        }
+
+        synchronized (buffer) {
+            for (long messageId : update.messageIds) {
+                buffer.remove(messageId);
+            }
+        }
+    }
+
+    private void replaceMessage(Map<Long, LiveMessage> buffer,
+                                long messageId,
+                                UnaryOperator<TgMessageDto> modifier) {
+        synchronized (buffer) {
+            LiveMessage liveMessage = buffer.get(messageId);
+
+            if (liveMessage != null) {
+                buffer.put(messageId, liveMessage.withMessage(modifier.apply(liveMessage.message())));
+            }
+        }
+    }
+
+    /**
+     * Буфер сообщений одного чата в порядке поступления, при переполнении вытесняются самые старые
+     */
+    private Map<Long, LiveMessage> createBuffer() {
+        int bufferSize = tgLiveIngestionProperty.bufferSize();
+
+        return new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, LiveMessage> eldest) {
+                return size() > bufferSize;
+            }
+        };
+    }
+
+    @Nullable
+    private static Long extractReplyToMessageId(TdApi.Message message) {
+        if (message.replyTo instanceof TdApi.MessageReplyToMessage replyToMessage
+            && replyToMessage.chatId == message.chatId
+            && replyToMessage.messageId != 0) {
+            return replyToMessage.messageId;
+        }
+
+        return null;
+    }
+
+    /**
+     * Сообщение в буфере
+     *
+     * @param messageThreadId идентификатор топика сообщения
+     * @param isTopicMessage  признак сообщения из топика, отличного от general
+     * @param message         сообщение
+     */
+    private record LiveMessage(long messageThreadId, boolean isTopicMessage, TgMessageDto message) {
+
+        LiveMessage withMessage(TgMessageDto message) {
+            return new LiveMessage(messageThreadId, isTopicMessage, message);
+        }
+
+        boolean isFromTopic(@Nullable TopicInfo topic) {
+            if (topic == null) {
+                return true;
+            }
+
+            if (topic.isGeneral()) {
+                return !isTopicMessage;
+            }
+
+            return messageThreadId == topic.topicId();
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import it.tdlight.jni.TdApi;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import ru.panyukovnn.tgchatscollector.dto.MediaMode;
+import ru.panyukovnn.tgchatscollector.dto.TgMediaDto;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+import ru.panyukovnn.tgchatscollector.exception.BusinessException;
+import ru.panyukovnn.tgchatscollector.property.TgMediaProperty;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Загрузка фото и документов из сообщений. Файл хранится на диске под своим постоянным идентификатором,
+ * поэтому один и тот же файл из разных сообщений и запросов загружается из телеграм один раз.
+ * Одновременные запросы одного файла ожидают одну загрузку, количество одновременных загрузок ограничено.
+ * Файлы загружает основной аккаунт: идентификаторы файлов в TDLib у каждого аккаунта свои,
+ * поэтому файл сначала находится по постоянному идентификатору в телеграм
+ */
+@Slf4j
+@ApplicationScoped
+public class MediaDownloadService {
+
+    public static final String MEDIA_URL_PREFIX = "/api/v1/media/";
+
+    private static final String PHOTO_MIME_TYPE = "image/jpeg";
+    /**
+     * Постоянные идентификаторы файлов телеграм состоят из символов base64url
+     */
+    private static final Pattern UNIQUE_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,128}");
+    private static final int GET_MESSAGES_BATCH_SIZE = 100;
+    private static final int DOWNLOAD_PRIORITY = 1;
+
+    private final SingleFlight<String, Path> downloads = new SingleFlight<>();
+    /**
+     * Загрузки, ожидающие освобождения места, защищены синхронизацией на самой очереди вместе с activeDownloads
+     */
+    private final Deque<Runnable> pendingDownloads = new ArrayDeque<>();
+    private int activeDownloads;
+
+    private Path mediaPath;
+    /**
+     * Описания файлов из отданных сообщений, по ним файл загружается при переходе по ссылке
+     */
+    private Cache<String, MediaFile> knownFiles;
+
+    @Inject
+    TgRequestExecutor tgRequestExecutor;
+
+    @Inject
+    TgMessageMapper tgMessageMapper;
+
+    @Inject
+    TgMediaProperty tgMediaProperty;
+
+    @PostConstruct
+    void init() {
+        mediaPath = Path.of(tgMediaProperty.path());
+        knownFiles = Caffeine.newBuilder()
+            .maximumSize(tgMediaProperty.maxKnownFiles())
+            .build();
+    }
+
+    /**
+     * Дополняет сообщения с фото и документами описанием вложения. Содержимое сообщений
+     * запрашивается у TDLib, который отдает ранее загруженные сообщения из своей базы
+     *
+     * @param chatId    идентификатор чата
+     * @param messages  собранные сообщения, не изменяются
+     * @param mediaMode способ передачи медиа (может быть null)
+     * @return сообщения в том же порядке, с вложениями
+     */
+    public CompletableFuture<List<TgMessageDto>> attachMedia(long chatId, List<TgMessageDto> messages, @Nullable MediaMode mediaMode) {
+        if (mediaMode == null || mediaMode == MediaMode.NONE) {
+            return CompletableFuture.completedFuture(messages);
+        }
+
+        long[] mediaMessageIds = messages.stream()
+            .filter(message -> message.getMediaType() != null)
+            .mapToLong(TgMessageDto::getMessageId)
+            .toArray();
+
+        if (mediaMessageIds.length == 0) {
+            return CompletableFuture.completedFuture(messages);
+        }
+
+        List<CompletableFuture<TdApi.Messages>> batches = new ArrayList<>();
+        for (int from = 0; from < mediaMessageIds.length; from += GET_MESSAGES_BATCH_SIZE) {
+            long[] batchIds = Arrays.copyOfRange(mediaMessageIds, from, Math.min(from + GET_MESSAGES_BATCH_SIZE, mediaMessageIds.length));
+            batches.add(tgRequestExecutor.send(new TdApi.GetMessages(chatId, batchIds)));
+        }
+
+        return CompletableFuture.allOf(batches.toArray(CompletableFuture[]::new))
+            .thenCompose(ignored -> {
+                Map<Long, CompletableFuture<TgMediaDto>> mediaByMessageId = new HashMap<>();
+
+                for (CompletableFuture<TdApi.Messages> batch : batches) {
+                    for (TdApi.Message message : batch.join().messages) {
+                        MediaFile mediaFile = message != null ? toMediaFile(message.content) : null;
+
+                        if (mediaFile != null) {
+                            knownFiles.put(mediaFile.uniqueId(), mediaFile);
+                            mediaByMessageId.put(message.id, toMediaDto(mediaFile, mediaMode));
+                        }
+                    }
+                }
+
+                return CompletableFuture.allOf(mediaByMessageId.values().toArray(CompletableFuture[]::new))
+                    .thenApply(allMedia -> messages.stream()
+                        .map(message -> {
+                            CompletableFuture<TgMediaDto> media = mediaByMessageId.get(message.getMessageId());
+
+                            return media != null ? tgMessageMapper.withMedia(message, media.join()) : message;
+                        })
+                        .toList());
+            });
+    }
+
+    /**
+     * Возвращает файл с диска, при отсутствии загружает его из телеграм
+     *
+     * @param uniqueId постоянный идентификатор файла
+     * @return файл на диске
+     */
+    public CompletableFuture<Path> getMedia(String uniqueId) {
+        if (!UNIQUE_ID_PATTERN.matcher(uniqueId).matches()) {
+            return CompletableFuture.failedFuture(new BusinessException("2f4a", "Некорректный идентификатор файла"));
+        }
+
+        Path target = mediaPath.resolve(uniqueId);
+
+        return CompletableFuture.supplyAsync(() -> Files.exists(target), Infrastructure.getDefaultWorkerPool())
+            .thenCompose(exists -> {
+                if (exists) {
+                    return CompletableFuture.completedFuture(target);
+                }
+
+                MediaFile mediaFile = knownFiles.getIfPresent(uniqueId);
+
+                if (mediaFile == null) {
+                    throw new BusinessException("2f4b", "Файл не найден, запросите историю сообщений с mediaMode");
+                }
+
+                if (!isDownloadable(mediaFile)) {
+                    throw new BusinessException("2f4c", "Файл превышает допустимый для загрузки размер");
+                }
+
+                return download(mediaFile);
+            });
+    }
+
+    private CompletableFuture<TgMediaDto> toMediaDto(MediaFile mediaFile, MediaMode mediaMode) {
+        TgMediaDto media = TgMediaDto.builder()
+            .uniqueId(mediaFile.uniqueId())
+            .type(mediaFile.type())
+            .fileName(mediaFile.fileName())
+            .mimeType(mediaFile.mimeType())
+            .size(mediaFile.size())
+            .url(isDownloadable(mediaFile) ? MEDIA_URL_PREFIX + mediaFile.uniqueId() : null)
+            .build();
+
+        if (mediaMode != MediaMode.BASE64 || mediaFile.size() > tgMediaProperty.maxInlineSize().asLongValue()) {
+            return CompletableFuture.completedFuture(media);
+        }
+
+        return download(mediaFile)
+            .thenApplyAsync(path -> {
+                media.setBase64(Base64.getEncoder().encodeToString(readAllBytes(path)));
+
+                return media;
+            }, Infrastructure.getDefaultWorkerPool())
+            .exceptionally(e -> {
+                // Файл, который не удалось загрузить, передается ссылкой, чтобы не терять историю
+                log.warn("Не удалось загрузить файл {}: {}", mediaFile.uniqueId(), e.getMessage());
+
+                return media;
+            });
+    }
+
+    private CompletableFuture<Path> download(MediaFile mediaFile) {
+        Path target = mediaPath.resolve(mediaFile.uniqueId());
+
+        return downloads.execute(mediaFile.uniqueId(), () -> CompletableFuture
+            .supplyAsync(() -> Files.exists(target), Infrastructure.getDefaultWorkerPool())
+            .thenCompose(exists -> exists
+                ? CompletableFuture.completedFuture(target)
+                : withDownloadSlot(() -> downloadFromTelegram(mediaFile, target))));
+    }
+
+    private CompletableFuture<Path> downloadFromTelegram(MediaFile mediaFile, Path target) {
+        log.info("Загрузка файла {} ({} байт)", mediaFile.uniqueId(), mediaFile.size());
+
+        return tgRequestExecutor.send(new TdApi.GetRemoteFile(mediaFile.remoteId(), null))
+            .thenCompose(file -> tgRequestExecutor.send(new TdApi.DownloadFile(file.id, DOWNLOAD_PRIORITY, 0, 0, true)))
+            .thenComposeAsync(file -> {
+                copyFile(Path.of(file.local.path), target);
+
+                // Файл TDLib удаляется через сам TDLib, чтобы не хранить файл дважды и не расходиться с его базой файлов
+                return tgRequestExecutor.send(new TdApi.DeleteFile(file.id))
+                    .handle((ok, e) -> {
+                        if (e != null) {
+                            log.warn("Не удалось удалить файл {} из каталога TDLib: {}", mediaFile.uniqueId(), e.getMessage());
+                        }
+
+                        return target;
+                    });
+            }, Infrastructure.getDefaultWorkerPool());
+    }
+
+    /**
+     * Копирует файл через временный файл рядом с целевым, чтобы по целевому пути не был виден недописанный файл
+     */
+    private static void copyFile(Path source, Path target) {
+        Path tempFile = null;
+
+        try {
+            Files.createDirectories(target.getParent());
+            tempFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+            Files.copy(source, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deleteQuietly(tempFile);
+
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteQuietly(@Nullable Path path) {
+        if (path == null) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Не удалось удалить временный файл {}: {}", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Выполняет загрузку, как только освободится место среди выполняемых, ожидание не занимает потоков
+     */
+    private <T> CompletableFuture<T> withDownloadSlot(Supplier<CompletableFuture<T>> download) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            CompletableFuture<T> downloaded;
+            try {
+                downloaded = download.get();
+            } catch (RuntimeException e) {
+                downloaded = CompletableFuture.failedFuture(e);
+            }
+
+            downloaded.whenComplete((value, e) -> {
+                releaseDownloadSlot();
+
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+
+        boolean acquired;
+        synchronized (pendingDownloads) {
+            acquired = activeDownloads < tgMediaProperty.maxConcurrentDownloads();
+
+            if (acquired) {
+                activeDownloads++;
+            } else {
+                pendingDownloads.addLast(task);
+            }
+        }
+
+        if (acquired) {
+            task.run();
+        }
+
+        return result;
+    }
+
+    private void releaseDownloadSlot() {
+        Runnable nextDownload;
+        synchronized (pendingDownloads) {
+            nextDownload = pendingDownloads.pollFirst();
+
+            if (nextDownload == null) {
+                activeDownloads--;
+            }
+        }
+
+        if (nextDownload != null) {
+            nextDownload.run();
+        }
+    }
+
+    private boolean isDownloadable(MediaFile mediaFile) {
+        return mediaFile.size() <= tgMediaProperty.maxFileSize().asLongValue();
+    }
+
+    /**
+     * Описание фото или документа сообщения. Из размеров фото выбирается наибольший из допустимых для загрузки
+     *
+     * @return описание файла, null если в сообщении нет фото или документа
+     */
+    @Nullable
+    private MediaFile toMediaFile(TdApi.MessageContent content) {
+        if (content instanceof TdApi.MessagePhoto messagePhoto) {
+            long maxFileSize = tgMediaProperty.maxFileSize().asLongValue();
+            TdApi.PhotoSize largestFitting = null;
+            TdApi.PhotoSize smallest = null;
+
+            for (TdApi.PhotoSize size : messagePhoto.photo.sizes) {
+                long sizeBytes = fileSize(size.photo);
+
+                if (sizeBytes <= maxFileSize && (largestFitting == null || sizeBytes > fileSize(largestFitting.photo))) {
+                    largestFitting = size;
+                }
+
+                if (smallest == null || sizeBytes < fileSize(smallest.photo)) {
+                    smallest = size;
+                }
+            }
+
+            // Если ни один размер не подходит, в ответе будет описание наименьшего, но без ссылки
+            TdApi.PhotoSize photoSize = largestFitting != null ? largestFitting : smallest;
+
+            return photoSize != null ? toMediaFile(photoSize.photo, TgMessageMapper.PHOTO_MEDIA_TYPE, null, PHOTO_MIME_TYPE) : null;
+        }
+
+        if (content instanceof TdApi.MessageDocument messageDocument) {
+            TdApi.Document document = messageDocument.document;
+
+            return toMediaFile(document.document, TgMessageMapper.DOCUMENT_MEDIA_TYPE, document.fileName, document.mimeType);
+        }
+
+        return null;
+    }
+
+    @Nullable
+    private static MediaFile toMediaFile(TdApi.File file, String type, @Nullable String fileName, String mimeType) {
+        if (file.remote == null || file.remote.uniqueId == null || file.remote.uniqueId.isEmpty()) {
+            return null;
+        }
+
+        return new MediaFile(file.remote.uniqueId, file.remote.id, type, fileName, mimeType, fileSize(file));
+    }
+
+    /**
+     * Размер еще не загруженного файла может быть неизвестен, тогда TDLib сообщает ожидаемый
+     */
+    private static long fileSize(TdApi.File file) {
+        return file.size != 0 ? file.size : file.expectedSize;
+    }
+
+    private static byte[] readAllBytes(Path path) {
+        try {
+            return Files.readAllBytes(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param uniqueId постоянный идентификатор файла, одинаковый для всех аккаунтов
+     * @param remoteId идентификатор для получения файла из телеграм
+     */
+    private record MediaFile(String uniqueId,
+                             String remoteId,
+                             String type,
+                             @Nullable String fileName,
+                             String mimeType,
+                             long size) {
+    }
+}
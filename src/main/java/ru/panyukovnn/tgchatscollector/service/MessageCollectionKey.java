@@ -0,0 +1,26 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import jakarta.annotation.Nullable;
+import ru.panyukovnn.tgchatscollector.dto.telegram.TopicInfo;
+
+import java.time.LocalDateTime;
+
+/**
+ * Параметры сбора сообщений, по которым одинаковые одновременные запросы объединяются в один
+ */
+record MessageCollectionKey(long chatId,
+                            @Nullable Long topicId,
+                            long lastMessageId,
+                            @Nullable Integer limit,
+                            @Nullable LocalDateTime dateFrom,
+                            @Nullable LocalDateTime dateTo) {
+
+    static MessageCollectionKey of(long chatId,
+                                   @Nullable TopicInfo topic,
+                                   long lastMessageId,
+                                   @Nullable Integer limit,
+                                   @Nullable LocalDateTime dateFrom,
+                                   @Nullable LocalDateTime dateTo) {
+        return new MessageCollectionKey(chatId, topic != null ? topic.topicId() : null, lastMessageId, limit, dateFrom, dateTo);
+    }
+}
@@ -0,0 +1,325 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import it.tdlight.jni.TdApi;
+import jakarta.annotation.Nullable;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.ru.RussianAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.simple.SimpleQueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.FSDirectory;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+import ru.panyukovnn.tgchatscollector.dto.searchmessages.SearchMessagesResponse;
+import ru.panyukovnn.tgchatscollector.dto.telegram.TopicInfo;
+import ru.panyukovnn.tgchatscollector.property.TgMessageIndexProperty;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Полнотекстовый индекс собранных сообщений на локальном диске.
+ * Пополняется сообщениями по мере их сбора из телеграм, повторно собранное сообщение заменяет ранее проиндексированное.
+ * Индексация выполняется в отдельном потоке и не задерживает сбор, поэтому поиск видит собранные сообщения с небольшой задержкой
+ */
+@Slf4j
+@ApplicationScoped
+public class MessageSearchIndex {
+
+    /**
+     * Топик, под которым индексируются сообщения вне топиков, в том числе general топика форума
+     */
+    private static final long NO_TOPIC_ID = 0L;
+
+    private static final String KEY_FIELD = "key";
+    private static final String CHAT_ID_FIELD = "chatId";
+    private static final String TOPIC_ID_FIELD = "topicId";
+    private static final String MESSAGE_ID_FIELD = "messageId";
+    private static final String SENDER_ID_FIELD = "senderId";
+    private static final String DATE_FIELD = "date";
+    private static final String TEXT_FIELD = "text";
+    private static final String REPLY_TO_TEXT_FIELD = "replyToText";
+    private static final String REPLY_TO_MESSAGE_ID_FIELD = "replyToMessageId";
+
+    private static final long INDEX_SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final Analyzer analyzer = new RussianAnalyzer();
+
+    private volatile IndexWriter indexWriter;
+    private volatile SearcherManager searcherManager;
+    private ScheduledExecutorService commitExecutor;
+    private ExecutorService indexExecutor;
+
+    @Inject
+    TgMessageIndexProperty tgMessageIndexProperty;
+
+    @SneakyThrows
+    void onStart(@Observes StartupEvent event) {
+        if (!tgMessageIndexProperty.enabled()) {
+            return;
+        }
+
+        IndexWriterConfig indexWriterConfig = new IndexWriterConfig(analyzer)
+            .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        IndexWriter writer = new IndexWriter(FSDirectory.open(Path.of(tgMessageIndexProperty.path())), indexWriterConfig);
+
+        searcherManager = new SearcherManager(writer, null);
+        indexWriter = writer;
+
+        long commitIntervalMillis = tgMessageIndexProperty.commitInterval().toMillis();
+        commitExecutor = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("message-index-commit").daemon().factory());
+        commitExecutor.scheduleWithFixedDelay(this::commit, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+
+        // Один поток: IndexWriter потокобезопасен, но параллельная запись в индекс сбор не ускорит
+        indexExecutor = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(tgMessageIndexProperty.queueCapacity()),
+            Thread.ofPlatform().name("message-index").daemon().factory(),
+            (task, executor) -> {
+                // После остановки приложения сообщения не индексируются без предупреждения
+                if (!executor.isShutdown()) {
+                    log.warn("Очередь индексации сообщений переполнена, пачка сообщений не проиндексирована");
+                }
+            }
+        );
+
+        log.info("Полнотекстовый индекс сообщений открыт, проиндексировано сообщений: {}", writer.getDocStats().numDocs);
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        if (indexWriter == null) {
+            return;
+        }
+
+        commitExecutor.shutdown();
+        indexExecutor.shutdown();
+
+        try {
+            // Перед закрытием индекса дописываются уже собранные сообщения
+            if (!indexExecutor.awaitTermination(INDEX_SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Индексация сообщений не завершилась до остановки, часть собранных сообщений не проиндексирована");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            searcherManager.close();
+            indexWriter.close();
+        } catch (IOException e) {
+            log.error("Ошибка при закрытии полнотекстового индекса сообщений: {}", e.getMessage(), e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return indexWriter != null;
+    }
+
+    /**
+     * Ставит собранные сообщения в очередь индексации и сразу возвращает управление.
+     * Ошибка индексации и переполнение очереди только логируются и не прерывают сбор сообщений
+     *
+     * @param messages    сообщения TDLib
+     * @param messageDtos DTO тех же сообщений в том же порядке
+     */
+    public void index(List<TdApi.Message> messages, List<TgMessageDto> messageDtos) {
+        IndexWriter writer = indexWriter;
+
+        if (writer == null || messages.isEmpty()) {
+            return;
+        }
+
+        long chatId = messages.get(0).chatId;
+        // Топики определяются сразу: сообщения TDLib могут быть изменены после возврата управления
+        long[] topicIds = new long[messages.size()];
+
+        for (int i = 0; i < messages.size(); i++) {
+            TdApi.Message message = messages.get(i);
+            topicIds[i] = message.isTopicMessage ? message.messageThreadId : NO_TOPIC_ID;
+        }
+
+        indexExecutor.execute(() -> writeDocuments(writer, chatId, topicIds, messageDtos));
+    }
+
+    /**
+     * Ищет сообщения по тексту. Обращается к диску, поэтому не должен вызываться из потоков event loop
+     *
+     * @param queryText           поисковый запрос
+     * @param chatId              идентификатор чата (может быть null)
+     * @param topic               топик (может быть null)
+     * @param dateFromEpochSecond начало периода в секундах UTC (может быть null)
+     * @param dateToEpochSecond   окончание периода в секундах UTC (может быть null)
+     * @param limit               предельное количество сообщений
+     * @return найденные сообщения в порядке релевантности
+     */
+    @SneakyThrows
+    public List<SearchMessagesResponse.FoundMessage> search(String queryText,
+                                                            @Nullable Long chatId,
+                                                            @Nullable TopicInfo topic,
+                                                            @Nullable Long dateFromEpochSecond,
+                                                            @Nullable Long dateToEpochSecond,
+                                                            int limit) {
+        SimpleQueryParser queryParser = new SimpleQueryParser(analyzer, TEXT_FIELD);
+        queryParser.setDefaultOperator(BooleanClause.Occur.MUST);
+        Query textQuery = queryParser.parse(queryText);
+
+        // Запрос мог состоять только из стоп-слов
+        if (textQuery == null) {
+            return List.of();
+        }
+
+        BooleanQuery.Builder query = new BooleanQuery.Builder()
+            .add(textQuery, BooleanClause.Occur.MUST);
+
+        if (chatId != null) {
+            query.add(LongPoint.newExactQuery(CHAT_ID_FIELD, chatId), BooleanClause.Occur.FILTER);
+        }
+
+        if (topic != null) {
+            long topicId = topic.isGeneral() ? NO_TOPIC_ID : topic.topicId();
+            query.add(LongPoint.newExactQuery(TOPIC_ID_FIELD, topicId), BooleanClause.Occur.FILTER);
+        }
+
+        if (dateFromEpochSecond != null || dateToEpochSecond != null) {
+            query.add(LongPoint.newRangeQuery(
+                DATE_FIELD,
+                dateFromEpochSecond != null ? dateFromEpochSecond : Long.MIN_VALUE,
+                dateToEpochSecond != null ? dateToEpochSecond : Long.MAX_VALUE
+            ), BooleanClause.Occur.FILTER);
+        }
+
+        // Новые сообщения становятся видны поиску без сохранения индекса на диск
+        searcherManager.maybeRefresh();
+        IndexSearcher searcher = searcherManager.acquire();
+
+        try {
+            ScoreDoc[] scoreDocs = searcher.search(query.build(), limit).scoreDocs;
+            StoredFields storedFields = searcher.storedFields();
+            List<SearchMessagesResponse.FoundMessage> foundMessages = new ArrayList<>(scoreDocs.length);
+
+            for (ScoreDoc scoreDoc : scoreDocs) {
+                foundMessages.add(toFoundMessage(storedFields.document(scoreDoc.doc), scoreDoc.score));
+            }
+
+            return foundMessages;
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    private void writeDocuments(IndexWriter writer, long chatId, long[] topicIds, List<TgMessageDto> messageDtos) {
+        try {
+            for (int i = 0; i < messageDtos.size(); i++) {
+                TgMessageDto message = messageDtos.get(i);
+
+                writer.updateDocument(
+                    new Term(KEY_FIELD, documentKey(chatId, message.getMessageId())),
+                    toDocument(chatId, topicIds[i], message)
+                );
+            }
+        } catch (Exception e) {
+            log.warn("Не удалось проиндексировать сообщения чата {}: {}", chatId, e.getMessage(), e);
+        }
+    }
+
+    private void commit() {
+        try {
+            if (indexWriter.hasUncommittedChanges()) {
+                indexWriter.commit();
+            }
+        } catch (Exception e) {
+            log.warn("Не удалось сохранить полнотекстовый индекс сообщений: {}", e.getMessage(), e);
+        }
+    }
+
+    private static Document toDocument(long chatId, long topicId, TgMessageDto message) {
+        long date = message.getDateTime().toEpochSecond(TgMessageMapper.MESSAGE_DATE_TIME_OFFSET);
+
+        Document document = new Document();
+        document.add(new StringField(KEY_FIELD, documentKey(chatId, message.getMessageId()), Field.Store.NO));
+        document.add(new LongPoint(CHAT_ID_FIELD, chatId));
+        document.add(new StoredField(CHAT_ID_FIELD, chatId));
+        document.add(new LongPoint(TOPIC_ID_FIELD, topicId));
+        document.add(new StoredField(TOPIC_ID_FIELD, topicId));
+        document.add(new StoredField(MESSAGE_ID_FIELD, message.getMessageId()));
+        document.add(new LongPoint(DATE_FIELD, date));
+        document.add(new StoredField(DATE_FIELD, date));
+        document.add(new TextField(TEXT_FIELD, message.getText(), Field.Store.YES));
+
+        if (message.getSenderId() != null) {
+            document.add(new StoredField(SENDER_ID_FIELD, message.getSenderId()));
+        }
+
+        if (message.getReplyToMessageId() != null) {
+            document.add(new StoredField(REPLY_TO_MESSAGE_ID_FIELD, message.getReplyToMessageId()));
+        }
+
+        if (message.getReplyToText() != null) {
+            document.add(new StoredField(REPLY_TO_TEXT_FIELD, message.getReplyToText()));
+        }
+
+        return document;
+    }
+
+    private static SearchMessagesResponse.FoundMessage toFoundMessage(Document document, float score) {
+        long topicId = document.getField(TOPIC_ID_FIELD).numericValue().longValue();
+
+        TgMessageDto message = TgMessageDto.builder()
+            .messageId(document.getField(MESSAGE_ID_FIELD).numericValue().longValue())
+            .senderId(nullableLong(document, SENDER_ID_FIELD))
+            .dateTime(LocalDateTime.ofEpochSecond(
+                document.getField(DATE_FIELD).numericValue().longValue(), 0, TgMessageMapper.MESSAGE_DATE_TIME_OFFSET))
+            .text(document.get(TEXT_FIELD))
+            .replyToText(document.get(REPLY_TO_TEXT_FIELD))
+            .replyToMessageId(nullableLong(document, REPLY_TO_MESSAGE_ID_FIELD))
+            .build();
+
+        return SearchMessagesResponse.FoundMessage.builder()
+            .chatId(document.getField(CHAT_ID_FIELD).numericValue().longValue())
+            .topicId(topicId != NO_TOPIC_ID ? topicId : null)
+            .score(score)
+            .message(message)
+            .build();
+    }
+
+    @Nullable
+    private static Long nullableLong(Document document, String fieldName) {
+        IndexableField field = document.getField(fieldName);
+
+        return field != null ? field.numericValue().longValue() : null;
+    }
+
+    private static String documentKey(long chatId, long messageId) {
+        return chatId + ":" + messageId;
+    }
+}
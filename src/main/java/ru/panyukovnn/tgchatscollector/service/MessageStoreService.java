@@ -0,0 +1,399 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import it.tdlight.jni.TdApi;
+import jakarta.annotation.Nullable;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+import ru.panyukovnn.tgchatscollector.dto.store.ChatSyncState;
+import ru.panyukovnn.tgchatscollector.dto.telegram.TopicInfo;
+import ru.panyukovnn.tgchatscollector.property.TgChatLoaderProperty;
+import ru.panyukovnn.tgchatscollector.property.TgMessageStoreProperty;
+import ru.panyukovnn.tgchatscollector.repository.MessageStoreRepository;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Сбор сообщений с использованием локального хранилища.
+ * Из телеграм догружаются только сообщения новее последнего сохраненного и, при необходимости,
+ * недостающая более старая история, остальное отдается из хранилища.
+ * Изменения и удаления сообщений применяются к хранилищу обработчиками обновлений, зарегистрированными в TgLightConfig.
+ * Правки и удаления, сделанные, пока сервис был остановлен, в хранилище не попадают
+ */
+@Slf4j
+@ApplicationScoped
+public class MessageStoreService {
+
+    /**
+     * Идентификатор топика, под которым сохраняются сообщения чата целиком
+     */
+    private static final long NO_TOPIC_ID = 0L;
+
+    /**
+     * Последняя синхронизация или изменение хранилища по чату, следующие начинаются только после ее завершения.
+     * Обновление, полученное во время синхронизации, применяется после сохранения загруженных ей сообщений
+     */
+    private final Map<Long, CompletableFuture<?>> syncQueues = new ConcurrentHashMap<>();
+    private final SingleFlight<MessageCollectionKey, List<TgMessageDto>> collections = new SingleFlight<>();
+
+    @Inject
+    TgClientService tgClientService;
+
+    @Inject
+    MessageStoreRepository messageStoreRepository;
+
+    @Inject
+    TgMessageMapper tgMessageMapper;
+
+    @Inject
+    TgChatLoaderProperty tgChatLoaderProperty;
+
+    @Inject
+    TgMessageStoreProperty tgMessageStoreProperty;
+
+    /**
+     * Собирает сообщения из чата. Запросы с dateTo и продолжения сбора с указанного сообщения выполняются
+     * напрямую в телеграм, так как хранилище поддерживает только непрерывную историю до последнего сообщения.
+     * Одновременные запросы с одинаковыми параметрами выполняют одну синхронизацию и получают общий результат
+     *
+     * @param chatId        идентификатор чата
+     * @param topic         топик
+     * @param lastMessageId ID сообщения, после которого продолжается сбор более старых сообщений (0 для сбора с последнего сообщения чата)
+     * @param limit         предельное количество сообщений
+     * @param dateFrom      дата начала периода в UTC
+     * @param dateTo        дата окончания периода в UTC
+     * @return список сообщений из чата
+     */
+    public CompletableFuture<List<TgMessageDto>> collectMessages(Long chatId,
+                                                                 TopicInfo topic,
+                                                                 long lastMessageId,
+                                                                 @Nullable Integer limit,
+                                                                 @Nullable LocalDateTime dateFrom,
+                                                                 @Nullable LocalDateTime dateTo) {
+        if (!tgMessageStoreProperty.enabled() || dateTo != null || lastMessageId != 0L) {
+            return tgClientService.collectMessages(chatId, topic, lastMessageId, limit, dateFrom, dateTo);
+        }
+
+        return collections.execute(
+            MessageCollectionKey.of(chatId, topic, lastMessageId, limit, dateFrom, dateTo),
+            () -> collectStoredMessages(chatId, topic, limit, dateFrom)
+        );
+    }
+
+    private CompletableFuture<List<TgMessageDto>> collectStoredMessages(Long chatId,
+                                                                        TopicInfo topic,
+                                                                        @Nullable Integer limit,
+                                                                        @Nullable LocalDateTime dateFrom) {
+        long topicId = topic != null ? topic.topicId() : NO_TOPIC_ID;
+        int effectiveLimit = limit != null ? limit : tgChatLoaderProperty.defaultMessagesLimit();
+        Long dateFromEpoch = dateFrom != null ? dateFrom.toEpochSecond(ZoneOffset.UTC) : null;
+
+        return runExclusively(chatId, () -> tgClientService.withOpenChat(chatId, () ->
+                runBlocking(() -> messageStoreRepository.findSyncState(chatId, topicId).orElse(null))
+                    .thenCompose(storedSyncState -> {
+                        if (storedSyncState == null) {
+                            return syncInitialMessages(chatId, topic, topicId, effectiveLimit, dateFrom);
+                        }
+
+                        return syncNewMessages(chatId, topic, storedSyncState)
+                            .thenCompose(actualSyncState ->
+                                syncOlderMessages(chatId, topic, actualSyncState, effectiveLimit, dateFrom, dateFromEpoch));
+                    }))
+            .thenCompose(syncState -> {
+                if (syncState == null) {
+                    return CompletableFuture.completedFuture(List.of());
+                }
+
+                return runBlocking(() -> messageStoreRepository.findMessages(
+                    chatId, topicId, syncState.lowMessageId(), syncState.highMessageId(), dateFromEpoch, effectiveLimit
+                ));
+            }));
+    }
+
+    /**
+     * Отредактированные сообщения. Текст меняется с обновлением содержимого, UpdateMessageEdited его не содержит
+     */
+    public void onUpdateMessageContent(TdApi.UpdateMessageContent update) {
+        if (!tgMessageStoreProperty.enabled()) {
+            return;
+        }
+
+        String text = tgMessageMapper.extractMessageTextSafely(update.newContent);
+        String mediaType = tgMessageMapper.extractMediaType(update.newContent);
+
+        applyUpdate(update.chatId, () -> messageStoreRepository.updateMessageContent(update.chatId, update.messageId, text, mediaType));
+    }
+
+    public void onUpdateDeleteMessages(TdApi.UpdateDeleteMessages update) {
+        // Сообщения, удаленные только из кэша TDLib, в телеграм остаются
+        if (!tgMessageStoreProperty.enabled() || !update.isPermanent || update.fromCache) {
+            return;
+        }
+
+        applyUpdate(update.chatId, () -> messageStoreRepository.deleteMessages(update.chatId, update.messageIds));
+    }
+
+    /**
+     * Первичная загрузка чата в хранилище
+     *
+     * @return состояние синхронизации или null, если сообщений не найдено
+     */
+    private CompletableFuture<ChatSyncState> syncInitialMessages(Long chatId,
+                                                                 TopicInfo topic,
+                                                                 long topicId,
+                                                                 int limit,
+                                                                 @Nullable LocalDateTime dateFrom) {
+        CompletableFuture<List<TgMessageDto>> loadedMessages = dateFrom != null
+            ? tgClientService.collectMessagesByDateRange(chatId, topic, 0L, limit, dateFrom, null)
+            : tgClientService.collectMessagesByLimit(chatId, topic, 0L, limit);
+
+        return loadedMessages.thenCompose(messages -> runBlocking(() -> {
+            if (messages.isEmpty()) {
+                return null;
+            }
+
+            messageStoreRepository.saveMessages(chatId, topicId, messages);
+
+            ChatSyncState syncState = initialSyncState(chatId, topicId, messages, limit, dateFrom);
+            messageStoreRepository.saveSyncState(syncState);
+
+            log.info("Чат {} загружен в хранилище, сохранено сообщений: {}", chatId, messages.size());
+
+            return syncState;
+        }));
+    }
+
+    /**
+     * Догружает сообщения, появившиеся после последней синхронизации
+     */
+    private CompletableFuture<ChatSyncState> syncNewMessages(Long chatId, TopicInfo topic, ChatSyncState syncState) {
+        int maxDeltaMessages = tgMessageStoreProperty.maxDeltaMessages();
+
+        return tgClientService.collectMessagesNewerThan(chatId, topic, syncState.highMessageId(), maxDeltaMessages)
+            .thenCompose(newMessages -> {
+                if (newMessages.isEmpty()) {
+                    return CompletableFuture.completedFuture(syncState);
+                }
+
+                return runBlocking(() -> {
+                    messageStoreRepository.saveMessages(chatId, syncState.topicId(), newMessages);
+
+                    ChatSyncState actualSyncState = withNewMessages(syncState, newMessages, maxDeltaMessages);
+                    messageStoreRepository.saveSyncState(actualSyncState);
+
+                    log.info("В хранилище догружено новых сообщений чата {}: {}", chatId, newMessages.size());
+
+                    return actualSyncState;
+                });
+            });
+    }
+
+    /**
+     * Догружает более старую историю, если сохраненной недостаточно для ответа на запрос
+     */
+    private CompletableFuture<ChatSyncState> syncOlderMessages(Long chatId,
+                                                               TopicInfo topic,
+                                                               ChatSyncState syncState,
+                                                               int limit,
+                                                               @Nullable LocalDateTime dateFrom,
+                                                               @Nullable Long dateFromEpoch) {
+        if (isCovered(syncState, dateFromEpoch)) {
+            return CompletableFuture.completedFuture(syncState);
+        }
+
+        return runBlocking(() -> messageStoreRepository.countMessages(
+                chatId, syncState.topicId(), syncState.lowMessageId(), syncState.highMessageId(), dateFromEpoch
+            ))
+            .thenCompose(storedCount -> {
+                if (storedCount >= limit) {
+                    return CompletableFuture.completedFuture(syncState);
+                }
+
+                // Загрузка продолжается после самого старого сохраненного сообщения
+                int requestedCount = limit - storedCount;
+                CompletableFuture<List<TgMessageDto>> loadedMessages = dateFrom != null
+                    ? tgClientService.collectMessagesByDateRange(chatId, topic, syncState.lowMessageId(), requestedCount, dateFrom, null)
+                    : tgClientService.collectMessagesByLimit(chatId, topic, syncState.lowMessageId(), requestedCount);
+
+                return loadedMessages.thenCompose(olderMessages -> runBlocking(() -> {
+                    messageStoreRepository.saveMessages(chatId, syncState.topicId(), olderMessages);
+
+                    ChatSyncState actualSyncState = withOlderMessages(syncState, olderMessages, requestedCount, dateFromEpoch);
+                    messageStoreRepository.saveSyncState(actualSyncState);
+
+                    log.info("В хранилище догружено более старых сообщений чата {}: {}", chatId, olderMessages.size());
+
+                    return actualSyncState;
+                }));
+            });
+    }
+
+    /**
+     * Состояние после первичной загрузки чата
+     *
+     * @param messages загруженные сообщения, не пустой список
+     * @param limit    сколько сообщений запрашивалось
+     * @param dateFrom дата начала периода загрузки в UTC (может быть null)
+     */
+    static ChatSyncState initialSyncState(long chatId,
+                                          long topicId,
+                                          List<TgMessageDto> messages,
+                                          int limit,
+                                          @Nullable LocalDateTime dateFrom) {
+        // Если сообщений меньше лимита, история просмотрена до даты начала периода либо до начала чата
+        boolean scannedToEnd = messages.size() < limit;
+        long coveredFromDate = scannedToEnd && dateFrom != null
+            ? dateFrom.toEpochSecond(ZoneOffset.UTC)
+            : oldestMessageDate(messages);
+
+        return new ChatSyncState(
+            chatId,
+            topicId,
+            maxMessageId(messages),
+            minMessageId(messages),
+            coveredFromDate,
+            scannedToEnd && dateFrom == null
+        );
+    }
+
+    /**
+     * Состояние после догрузки новых сообщений
+     *
+     * @param newMessages      сообщения новее сохраненных, не пустой список
+     * @param maxDeltaMessages сколько новых сообщений запрашивалось
+     */
+    static ChatSyncState withNewMessages(ChatSyncState syncState, List<TgMessageDto> newMessages, int maxDeltaMessages) {
+        if (newMessages.size() >= maxDeltaMessages) {
+            // Между сохраненной и новой историей мог остаться разрыв, начинаем непрерывный отрезок заново
+            return new ChatSyncState(
+                syncState.chatId(),
+                syncState.topicId(),
+                maxMessageId(newMessages),
+                minMessageId(newMessages),
+                oldestMessageDate(newMessages),
+                false);
+        }
+
+        return new ChatSyncState(
+            syncState.chatId(),
+            syncState.topicId(),
+            Math.max(syncState.highMessageId(), maxMessageId(newMessages)),
+            syncState.lowMessageId(),
+            syncState.coveredFromDate(),
+            syncState.historyStartReached());
+    }
+
+    /**
+     * Состояние после догрузки более старой истории
+     *
+     * @param olderMessages  сообщения старее сохраненных, может быть пустым
+     * @param requestedCount сколько сообщений запрашивалось
+     * @param dateFromEpoch  дата начала периода загрузки в секундах UTC (может быть null)
+     */
+    static ChatSyncState withOlderMessages(ChatSyncState syncState,
+                                           List<TgMessageDto> olderMessages,
+                                           int requestedCount,
+                                           @Nullable Long dateFromEpoch) {
+        boolean scannedToEnd = olderMessages.size() < requestedCount;
+        long coveredFromDate = olderMessages.isEmpty()
+            ? syncState.coveredFromDate()
+            : Math.min(syncState.coveredFromDate(), oldestMessageDate(olderMessages));
+
+        if (scannedToEnd && dateFromEpoch != null) {
+            coveredFromDate = Math.min(coveredFromDate, dateFromEpoch);
+        }
+
+        return new ChatSyncState(
+            syncState.chatId(),
+            syncState.topicId(),
+            syncState.highMessageId(),
+            olderMessages.isEmpty() ? syncState.lowMessageId() : Math.min(syncState.lowMessageId(), minMessageId(olderMessages)),
+            coveredFromDate,
+            scannedToEnd && dateFromEpoch == null
+        );
+    }
+
+    /**
+     * @param dateFromEpoch дата начала запрошенного периода в секундах UTC (может быть null)
+     * @return сохранена ли история до начала запрошенного периода, тогда более старые сообщения не догружаются
+     */
+    static boolean isCovered(ChatSyncState syncState, @Nullable Long dateFromEpoch) {
+        return syncState.historyStartReached()
+            || dateFromEpoch != null && syncState.coveredFromDate() <= dateFromEpoch;
+    }
+
+    /**
+     * Применяет обновление к хранилищу в пуле воркеров, не занимая поток обновлений TDLib
+     */
+    private void applyUpdate(long chatId, Runnable update) {
+        runExclusively(chatId, () -> runBlocking(() -> {
+                update.run();
+
+                return null;
+            }))
+            .whenComplete((ignored, e) -> {
+                if (e != null) {
+                    log.warn("Не удалось применить обновление сообщений чата {} к хранилищу: {}", chatId, e.getMessage(), e);
+                }
+            });
+    }
+
+    /**
+     * Выполняет синхронизацию после завершения предыдущей синхронизации того же чата,
+     * не блокируя поток в ожидании
+     *
+     * @param chatId идентификатор чата
+     * @param action синхронизация
+     * @return результат синхронизации
+     */
+    private <T> CompletableFuture<T> runExclusively(long chatId, Supplier<CompletableFuture<T>> action) {
+        CompletableFuture<Void> syncCompletion = new CompletableFuture<>();
+        CompletableFuture<?> previousSync = syncQueues.put(chatId, syncCompletion);
+        CompletableFuture<?> previousSyncCompletion = previousSync != null ? previousSync : CompletableFuture.completedFuture(null);
+
+        return previousSyncCompletion
+            .handle((ignored, e) -> null)
+            .thenCompose(ignored -> action.get())
+            .whenComplete((result, e) -> {
+                // Обновления приходят по всем чатам, завершенные синхронизации не накапливаются
+                syncQueues.remove(chatId, syncCompletion);
+                syncCompletion.complete(null);
+            });
+    }
+
+    /**
+     * Обращения к хранилищу блокирующие, поэтому выполняются в пуле воркеров
+     */
+    private static <T> CompletableFuture<T> runBlocking(Supplier<T> action) {
+        return CompletableFuture.supplyAsync(action, Infrastructure.getDefaultWorkerPool());
+    }
+
+    private static long maxMessageId(List<TgMessageDto> messages) {
+        return messages.stream()
+            .mapToLong(TgMessageDto::getMessageId)
+            .max()
+            .orElseThrow();
+    }
+
+    private static long minMessageId(List<TgMessageDto> messages) {
+        return messages.stream()
+            .mapToLong(TgMessageDto::getMessageId)
+            .min()
+            .orElseThrow();
+    }
+
+    private static long oldestMessageDate(List<TgMessageDto> messages) {
+        return messages.stream()
+            .mapToLong(message -> message.getDateTime().toEpochSecond(TgMessageMapper.MESSAGE_DATE_TIME_OFFSET))
+            .min()
+            .orElseThrow();
+    }
+}
@@ -0,0 +1,52 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Объединение одинаковых одновременных запросов: пока запрос с тем же ключом выполняется,
+ * новые вызовы не запускают его повторно, а получают результат уже выполняемого.
+ * Результат не кэшируется, запрос после завершения предыдущего выполняется заново
+ *
+ * @param <K> ключ запроса
+ * @param <V> результат запроса
+ */
+class SingleFlight<K, V> {
+
+    private final Map<K, CompletableFuture<V>> inFlightRequests = new ConcurrentHashMap<>();
+
+    /**
+     * @param key    ключ запроса
+     * @param action запрос, выполняется, только если запрос с тем же ключом сейчас не выполняется
+     * @return результат запроса, отдельный для каждого вызова, чтобы отмена одним вызывающим не затрагивала остальных
+     */
+    CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> action) {
+        CompletableFuture<V> request = new CompletableFuture<>();
+        CompletableFuture<V> inFlightRequest = inFlightRequests.putIfAbsent(key, request);
+
+        if (inFlightRequest != null) {
+            return inFlightRequest.thenApply(Function.identity());
+        }
+
+        try {
+            action.get().whenComplete((value, e) -> {
+                // Ключ освобождается до передачи результата, чтобы следующий запрос не получил уже завершенный
+                inFlightRequests.remove(key, request);
+
+                if (e != null) {
+                    request.completeExceptionally(e);
+                } else {
+                    request.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlightRequests.remove(key, request);
+            request.completeExceptionally(e);
+        }
+
+        return request.thenApply(Function.identity());
+    }
+}
@@ -0,0 +1,73 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import it.tdlight.client.SimpleTelegramClient;
+import it.tdlight.jni.TdApi;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Аккаунт телеграм из пула: клиент TDLib, известные аккаунту чаты и состояние ограничителя запросов.
+ * Телеграм ограничивает частоту запросов и присылает FLOOD_WAIT для каждого аккаунта отдельно,
+ * поэтому очередь, лимиты и пауза у каждого аккаунта свои
+ */
+final class TgAccount {
+
+    final String name;
+    final SimpleTelegramClient client;
+
+    /**
+     * Запросы, ожидающие места среди выполняемых, защищены синхронизацией на самой очереди вместе с inFlight
+     */
+    final Deque<Runnable> pendingRequests = new ArrayDeque<>();
+    final Map<String, TgRequestExecutor.TokenBucket> tokenBuckets = new ConcurrentHashMap<>();
+    /**
+     * До этого момента (System.nanoTime) запросы в TDLib от аккаунта не отправляются
+     */
+    final AtomicLong pausedUntilNanos = new AtomicLong(System.nanoTime());
+    int inFlight;
+
+    private final Set<Long> knownChatIds = ConcurrentHashMap.newKeySet();
+    private volatile boolean authorized;
+
+    TgAccount(String name, SimpleTelegramClient client) {
+        this.name = name;
+        this.client = client;
+    }
+
+    void onUpdateAuthorizationState(TdApi.UpdateAuthorizationState update) {
+        authorized = update.authorizationState instanceof TdApi.AuthorizationStateReady;
+    }
+
+    /**
+     * TDLib присылает UpdateNewChat для каждого чата, о котором узнает аккаунт: из списка чатов или поиска
+     */
+    void onUpdateNewChat(TdApi.UpdateNewChat update) {
+        knownChatIds.add(update.chat.id);
+    }
+
+    boolean isAuthorized() {
+        return authorized;
+    }
+
+    boolean knowsChat(long chatId) {
+        return knownChatIds.contains(chatId);
+    }
+
+    boolean isPaused(long nowNanos) {
+        return pausedUntilNanos.get() - nowNanos > 0;
+    }
+
+    /**
+     * @return количество выполняемых и ожидающих отправки запросов
+     */
+    int getLoad() {
+        synchronized (pendingRequests) {
+            return inFlight + pendingRequests.size();
+        }
+    }
+}
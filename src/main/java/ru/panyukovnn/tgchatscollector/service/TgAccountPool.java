@@ -0,0 +1,281 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import io.quarkus.runtime.ShutdownEvent;
+import it.tdlight.client.APIToken;
+import it.tdlight.client.AuthenticationSupplier;
+import it.tdlight.client.SimpleAuthenticationSupplier;
+import it.tdlight.client.SimpleTelegramClient;
+import it.tdlight.client.SimpleTelegramClientFactory;
+import it.tdlight.client.TDLibSettings;
+import it.tdlight.jni.TdApi;
+import jakarta.annotation.Nullable;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import ru.panyukovnn.tgchatscollector.property.TgCollectorProperty;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Пул аккаунтов телеграм. Основной аккаунт создается вместе с клиентом в TgLightConfig,
+ * дополнительные запускаются после его авторизации.
+ * Запросы к супергруппам и каналам распределяются между аккаунтами, которым известен чат, по текущей нагрузке,
+ * при этом на время сбора истории за чатом закрепляется один аккаунт.
+ * В личных чатах и обычных группах идентификаторы сообщений у каждого аккаунта свои,
+ * поэтому запросы к ним всегда выполняет первый из знающих чат аккаунтов
+ */
+@Slf4j
+@ApplicationScoped
+public class TgAccountPool {
+
+    public static final String MAIN_ACCOUNT_NAME = "main";
+
+    /**
+     * Идентификаторы чатов супергрупп и каналов в TDLib меньше этого значения
+     */
+    private static final long MAX_SUPERGROUP_CHAT_ID = -1_000_000_000_000L;
+    /**
+     * Сколько чатов загрузить в список дополнительного аккаунта, чтобы узнать, в каких чатах он состоит
+     */
+    private static final int ACCOUNT_CHAT_LIST_SIZE = 1000;
+
+    /**
+     * Основной аккаунт всегда первый
+     */
+    private final List<TgAccount> accounts = new CopyOnWriteArrayList<>();
+
+    /**
+     * Закрепления аккаунтов за чатами, история которых сейчас собирается
+     */
+    private final Map<Long, ChatPin> chatPins = new ConcurrentHashMap<>();
+
+    @Inject
+    TgCollectorProperty tgCollectorProperty;
+
+    @Inject
+    SimpleTelegramClientFactory simpleTelegramClientFactory;
+
+    /**
+     * Создает клиент аккаунта. Первое создание клиента загружает нативную библиотеку TDLib
+     *
+     * @param phone       номер телефона аккаунта
+     * @param sessionPath каталог сессии TDLib
+     * @return клиент, авторизация начинается при первом запросе
+     */
+    public SimpleTelegramClient createClient(String phone, Path sessionPath) {
+        APIToken apiToken = new APIToken(tgCollectorProperty.apiId(), tgCollectorProperty.apiHash());
+
+        TDLibSettings settings = TDLibSettings.create(apiToken);
+        settings.setDatabaseDirectoryPath(sessionPath.resolve("data"));
+        settings.setDownloadedFilesDirectoryPath(sessionPath.resolve("downloads"));
+
+        SimpleAuthenticationSupplier<?> authenticationData = AuthenticationSupplier.user(phone);
+
+        return simpleTelegramClientFactory.builder(settings)
+            .build(authenticationData);
+    }
+
+    /**
+     * Добавляет в пул основной аккаунт
+     */
+    public void registerMainClient(SimpleTelegramClient client) {
+        accounts.addFirst(register(MAIN_ACCOUNT_NAME, client));
+    }
+
+    /**
+     * Запускает дополнительные аккаунты по очереди: при первом входе каждый запрашивает код подтверждения в консоли.
+     * Аккаунт, который не удалось авторизовать, в распределении запросов не участвует
+     */
+    public CompletableFuture<Void> startAdditionalAccounts() {
+        CompletableFuture<Void> started = CompletableFuture.completedFuture(null);
+
+        for (Map.Entry<String, TgCollectorProperty.Account> entry : tgCollectorProperty.accounts().entrySet()) {
+            String name = entry.getKey();
+            Path sessionPath = entry.getValue().sessionPath()
+                .map(Paths::get)
+                .orElseGet(() -> Paths.get("tdlight-session", "accounts", name));
+
+            started = started.thenCompose(ignored -> startAccount(name, entry.getValue().phone(), sessionPath));
+        }
+
+        return started;
+    }
+
+    /**
+     * Закрепляет за чатом аккаунт до вызова {@link #unpinChat(long)}: чат открывается, все страницы одного сбора
+     * истории загружаются и чат закрывается одним аккаунтом. Одновременные сборы одного чата используют общее закрепление,
+     * оно снимается вместе с завершением последнего из них
+     *
+     * @param chatId идентификатор чата
+     * @return закрепленный аккаунт, null если ни один аккаунт еще не авторизован
+     */
+    @Nullable
+    TgAccount pinChat(long chatId) {
+        chatPins.compute(chatId, (id, pin) -> pin != null
+            ? new ChatPin(pin.collections() + 1, pin.account())
+            : new ChatPin(1, null));
+
+        return routeChat(chatId);
+    }
+
+    /**
+     * Снимает закрепление, установленное {@link #pinChat(long)}
+     *
+     * @param chatId идентификатор чата
+     */
+    void unpinChat(long chatId) {
+        chatPins.computeIfPresent(chatId, (id, pin) -> pin.collections() > 1
+            ? new ChatPin(pin.collections() - 1, pin.account())
+            : null);
+    }
+
+    /**
+     * Выбирает аккаунт для запроса
+     *
+     * @param function запрос к TDLib
+     * @return аккаунт, null если ни один аккаунт еще не авторизован
+     */
+    @Nullable
+    TgAccount route(TdApi.Function<?> function) {
+        return routeChat(chatIdOf(function));
+    }
+
+    /**
+     * @return авторизованные аккаунты, кроме указанного
+     */
+    List<TgAccount> authorizedAccountsExcept(TgAccount account) {
+        return accounts.stream()
+            .filter(other -> other != account && other.isAuthorized())
+            .toList();
+    }
+
+    List<TgAccount> getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * @param chatId идентификатор чата, 0 если запрос не относится к чату
+     */
+    @Nullable
+    private TgAccount routeChat(long chatId) {
+        List<TgAccount> authorizedAccounts = accounts.stream()
+            .filter(TgAccount::isAuthorized)
+            .toList();
+
+        if (authorizedAccounts.isEmpty()) {
+            return null;
+        }
+
+        List<TgAccount> members = chatId != 0
+            ? authorizedAccounts.stream().filter(account -> account.knowsChat(chatId)).toList()
+            : List.of();
+
+        // Запросы без чата и к неизвестным пулу чатам выполняет основной аккаунт, он же строит список чатов
+        if (members.isEmpty()) {
+            return authorizedAccounts.getFirst();
+        }
+
+        if (chatId >= MAX_SUPERGROUP_CHAT_ID) {
+            return members.getFirst();
+        }
+
+        // Закрепленный аккаунт меняется, только если он потерял авторизацию или доступ к чату.
+        // Пауза по FLOOD_WAIT пережидается на том же аккаунте, чтобы сбор не переходил между аккаунтами
+        ChatPin pin = chatPins.computeIfPresent(chatId, (id, existing) -> existing.account() != null && members.contains(existing.account())
+            ? existing
+            : new ChatPin(existing.collections(), leastLoaded(members)));
+
+        return pin != null ? pin.account() : leastLoaded(members);
+    }
+
+    void onStop(@Observes ShutdownEvent event) {
+        for (TgAccount account : accounts) {
+            // Основной клиент закрывает TgLightConfig
+            if (MAIN_ACCOUNT_NAME.equals(account.name)) {
+                continue;
+            }
+
+            try {
+                account.client.close();
+            } catch (Exception e) {
+                log.error("Error closing Telegram client of account {}", account.name, e);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> startAccount(String name, String phone, Path sessionPath) {
+        log.info("Authorizing Telegram account {}...", name);
+
+        TgAccount account = register(name, createClient(phone, sessionPath));
+        accounts.add(account);
+
+        // Запрос списка чатов идет в обход ограничителя: он выполняется один раз и нужен, чтобы узнать чаты аккаунта
+        return account.client.getMeAsync()
+            .thenCompose(me -> account.client.send(new TdApi.GetChats(new TdApi.ChatListMain(), ACCOUNT_CHAT_LIST_SIZE)))
+            .handle((chats, e) -> {
+                if (e != null) {
+                    log.error("Failed to authorize Telegram account {}", name, e);
+                } else {
+                    log.info("Telegram account {} authorized, chats: {}", name, chats.totalCount);
+                }
+
+                return null;
+            });
+    }
+
+    /**
+     * Аккаунт на паузе по FLOOD_WAIT выбирается, только если на паузе все
+     */
+    private static TgAccount leastLoaded(List<TgAccount> members) {
+        long now = System.nanoTime();
+
+        return members.stream()
+            .min(Comparator.comparing((TgAccount account) -> account.isPaused(now))
+                .thenComparingInt(TgAccount::getLoad))
+            .orElseThrow();
+    }
+
+    private static TgAccount register(String name, SimpleTelegramClient client) {
+        TgAccount account = new TgAccount(name, client);
+
+        client.addUpdateHandler(TdApi.UpdateAuthorizationState.class, account::onUpdateAuthorizationState);
+        client.addUpdateHandler(TdApi.UpdateNewChat.class, account::onUpdateNewChat);
+
+        return account;
+    }
+
+    /**
+     * OpenChat и CloseChat сюда не входят, их отправляют явно выбранному аккаунту: при сборе истории закрепленному
+     * за чатом, при отслеживании новых сообщений основному, так как обновления обрабатываются только у него
+     *
+     * @return идентификатор чата, к которому относится запрос, 0 если запрос не относится к чату
+     */
+    private static long chatIdOf(TdApi.Function<?> function) {
+        return switch (function) {
+            case TdApi.GetChatHistory request -> request.chatId;
+            case TdApi.GetMessageThreadHistory request -> request.chatId;
+            case TdApi.SearchChatMessages request -> request.chatId;
+            case TdApi.GetMessages request -> request.chatId;
+            case TdApi.GetMessage request -> request.chatId;
+            case TdApi.GetChat request -> request.chatId;
+            case TdApi.GetForumTopics request -> request.chatId;
+            case TdApi.GetForumTopic request -> request.chatId;
+            default -> 0L;
+        };
+    }
+
+    /**
+     * @param collections количество незавершенных сборов истории чата
+     * @param account     закрепленный аккаунт, null пока к чату не было запросов
+     */
+    private record ChatPin(int collections, @Nullable TgAccount account) {
+    }
+}
@@ -1,15 +1,20 @@
 package ru.panyukovnn.tgchatscollector.service;
 
-import it.tdlight.client.SimpleTelegramClient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
 import it.tdlight.jni.TdApi;
 import jakarta.annotation.Nullable;
+import jakarta.annotation.PostConstruct;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import ru.panyukovnn.tgchatscollector.dto.ChatInfoDto;
 import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
 import ru.panyukovnn.tgchatscollector.dto.telegram.ChatInfo;
+import ru.panyukovnn.tgchatscollector.dto.telegram.ChatMetadata;
 import ru.panyukovnn.tgchatscollector.dto.telegram.TopicInfo;
 import ru.panyukovnn.tgchatscollector.exception.BusinessException;
 import ru.panyukovnn.tgchatscollector.property.TgChatLoaderProperty;
@@ -18,242 +23,616 @@ import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
-import java.util.stream.Stream;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Работа с TDLib. Методы не блокируют вызывающий поток: запросы к TDLib объединяются в цепочки
+ * CompletableFuture, а обработка загруженных сообщений выполняется в пуле воркеров
+ */
 @Slf4j
 @ApplicationScoped
 public class TgClientService {
 
+    /**
+     * Сколько загруженных сообщений помнить для поиска ответов без обращения к TDLib
+     */
+    private static final int REPLY_CANDIDATES_CACHE_SIZE = 5000;
+    /**
+     * Количество сообщений в одном запросе истории, максимальное для TDLib
+     */
+    private static final int HISTORY_PAGE_SIZE = 100;
+    /**
+     * Смещение страницы истории, при котором она начинается с самого сообщения fromMessageId и одного более нового
+     */
+    private static final int INCLUDE_FROM_MESSAGE_OFFSET = -1;
+
+    private final SingleFlight<MessageCollectionKey, List<TgMessageDto>> collections = new SingleFlight<>();
+
+    @Inject
+    TgRequestExecutor tgRequestExecutor;
+
     @Inject
-    SimpleTelegramClient tgClient;
+    TgAccountPool tgAccountPool;
 
     @Inject
     TgChatLoaderProperty tgChatLoaderProperty;
 
-    @SneakyThrows
-    public ChatInfo searchChats(Long chatId, String publicChatName) {
-        if (chatId == null && publicChatName == null) {
-            throw new BusinessException("46ea", "Отсутствуют chatId и chatName для идентификации чата");
-        }
+    @Inject
+    ChatMetadataCache chatMetadataCache;
 
-        TdApi.Chat chat = chatId != null
-            ? tgClient.send(new TdApi.GetChat(chatId)).get()
-            : tgClient.send(new TdApi.SearchPublicChat(publicChatName)).get();
+    @Inject
+    ChatTitleIndex chatTitleIndex;
+
+    @Inject
+    TgMessageMapper tgMessageMapper;
 
+    @Inject
+    LiveMessageBuffer liveMessageBuffer;
 
-        String chatType = defineChatType(chat);
+    @Inject
+    MessageSearchIndex messageSearchIndex;
+
+    @Inject
+    HistoryPageCache historyPageCache;
 
-        return new ChatInfo(chat.id, fetchChannelPublicName(chat), chatType, chat.title);
+    @Inject
+    MeterRegistry meterRegistry;
+
+    private Counter pagesCounter;
+    private Counter mappedMessagesCounter;
+    private Counter loadedReplyLookupsCounter;
+    private Counter requestedReplyLookupsCounter;
+    private Timer firstPageTimer;
+    private DistributionSummary limitCollectedMessagesSummary;
+    private DistributionSummary newerThanCollectedMessagesSummary;
+    private DistributionSummary dateRangeCollectedMessagesSummary;
+
+    @PostConstruct
+    void initMetrics() {
+        pagesCounter = Counter.builder("collector.history.pages")
+            .description("Количество загруженных страниц истории")
+            .register(meterRegistry);
+        mappedMessagesCounter = Counter.builder("collector.messages.mapped")
+            .description("Количество отобранных и преобразованных сообщений")
+            .register(meterRegistry);
+        loadedReplyLookupsCounter = Counter.builder("collector.reply.lookups")
+            .description("Поиск сообщений, на которые отвечают")
+            .tag("source", "loaded")
+            .register(meterRegistry);
+        requestedReplyLookupsCounter = Counter.builder("collector.reply.lookups")
+            .description("Поиск сообщений, на которые отвечают")
+            .tag("source", "tdlib")
+            .register(meterRegistry);
+        firstPageTimer = Timer.builder("collector.history.first.page")
+            .description("Время до получения первой страницы истории")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+        limitCollectedMessagesSummary = registerCollectedMessagesSummary("limit");
+        newerThanCollectedMessagesSummary = registerCollectedMessagesSummary("newer-than");
+        dateRangeCollectedMessagesSummary = registerCollectedMessagesSummary("date-range");
     }
 
-    @SneakyThrows
-    public ChatInfo findChatById(Long chatId) {
-        TdApi.Chat chat = tgClient.send(new TdApi.GetChat(chatId)).get();
+    public CompletableFuture<ChatInfo> searchChats(Long chatId, String publicChatName) {
+        if (chatId == null && publicChatName == null) {
+            return CompletableFuture.failedFuture(
+                new BusinessException("46ea", "Отсутствуют chatId и chatName для идентификации чата"));
+        }
+
+        if (chatId != null) {
+            return findChatById(chatId);
+        }
+
+        return tgRequestExecutor.send(new TdApi.SearchPublicChat(publicChatName))
+            .thenCompose(chat -> {
+                chatMetadataCache.putChat(chat);
+                // Остальные аккаунты узнают канал и смогут разделить нагрузку при сборе его истории
+                tgRequestExecutor.sendToOtherAccounts(new TdApi.SearchPublicChat(publicChatName));
 
-        return new ChatInfo(chat.id, fetchChannelPublicName(chat), chat.type.getClass().getSimpleName(), chat.title);
+                return toChatInfo(ChatMetadataCache.toChatMetadata(chat));
+            });
+    }
+
+    public CompletableFuture<ChatInfo> findChatById(Long chatId) {
+        return chatMetadataCache.getChat(chatId, this::requestChatMetadata)
+            .thenCompose(this::toChatInfo);
     }
 
     /**
      * @param chatId              идентификатор чата
      * @param publicChatName      полное публичное имя (например имя канала)
      * @param privateChatNamePart часть имени приватного чата
+     * @param limit               предельное количество чатов при поиске по части имени
      * @return чат
      */
-    public List<ChatInfo> searchChats(Long chatId, String publicChatName, String privateChatNamePart) {
+    public CompletableFuture<List<ChatInfo>> searchChats(Long chatId, String publicChatName, String privateChatNamePart, int limit) {
         if (chatId != null || (publicChatName != null && !publicChatName.isEmpty())) {
-            return List.of(searchChats(chatId, publicChatName));
+            return searchChats(chatId, publicChatName)
+                .thenApply(List::of);
         }
 
         if (privateChatNamePart != null) {
-            return findPersonalChatByNamePart(privateChatNamePart);
+            return findPersonalChatByNamePart(privateChatNamePart, limit);
         }
 
-        return List.of();
+        return CompletableFuture.completedFuture(List.of());
     }
 
     /**
      * Фасадный метод для сбора сообщений из чата
-     * Важно, чтобы даты передавались в UTC
+     * Важно, чтобы даты передавались в UTC.
+     * Одновременные запросы с одинаковыми параметрами выполняют один сбор и получают общий неизменяемый результат
      *
-     * @param chatId   идентификатор чата
-     * @param topic    топик
-     * @param limit    предельное количество сообщений
-     * @param dateFrom дата начала периода в UTC
-     * @param dateTo   дата окончания периода в UTC
+     * @param chatId        идентификатор чата
+     * @param topic         топик
+     * @param lastMessageId ID сообщения, после которого продолжается сбор более старых сообщений, само сообщение не собирается
+     *                      (0 для сбора с последнего сообщения чата)
+     * @param limit         предельное количество сообщений
+     * @param dateFrom      дата начала периода в UTC
+     * @param dateTo        дата окончания периода в UTC
      * @return список сообщений из чата
      */
-    @SneakyThrows
-    public List<TgMessageDto> collectMessages(Long chatId,
-                                              TopicInfo topic,
-                                              @Nullable Integer limit,
-                                              @Nullable LocalDateTime dateFrom,
-                                              @Nullable LocalDateTime dateTo) {
-        // Открываем чат, чтобы TDLib синхронизировал последние сообщения из облака
-        tgClient.send(new TdApi.OpenChat(chatId)).get();
-
-        try {
+    public CompletableFuture<List<TgMessageDto>> collectMessages(Long chatId,
+                                                                 TopicInfo topic,
+                                                                 long lastMessageId,
+                                                                 @Nullable Integer limit,
+                                                                 @Nullable LocalDateTime dateFrom,
+                                                                 @Nullable LocalDateTime dateTo) {
+        MessageCollectionKey collectionKey = MessageCollectionKey.of(chatId, topic, lastMessageId, limit, dateFrom, dateTo);
+
+        return collections.execute(collectionKey, () -> {
+            List<TgMessageDto> result = new ArrayList<>();
+
+            return collectMessages(chatId, topic, lastMessageId, limit, dateFrom, dateTo, appendTo(result))
+                .thenApply(collectedCount -> Collections.unmodifiableList(result));
+        });
+    }
+
+    /**
+     * Фасадный метод для потокового сбора сообщений из чата, сообщения передаются
+     * обработчику по мере загрузки, пачками от новых к старым
+     * Важно, чтобы даты передавались в UTC
+     *
+     * @param chatId        идентификатор чата
+     * @param topic         топик
+     * @param lastMessageId ID сообщения, после которого продолжается сбор более старых сообщений, само сообщение не собирается
+     *                      (0 для сбора с последнего сообщения чата)
+     * @param limit         предельное количество сообщений
+     * @param dateFrom      дата начала периода в UTC
+     * @param dateTo        дата окончания периода в UTC
+     * @param pageConsumer  обработчик пачки собранных сообщений, следующая пачка обрабатывается после завершения его результата
+     * @return количество собранных сообщений
+     */
+    public CompletableFuture<Integer> collectMessages(Long chatId,
+                                                      TopicInfo topic,
+                                                      long lastMessageId,
+                                                      @Nullable Integer limit,
+                                                      @Nullable LocalDateTime dateFrom,
+                                                      @Nullable LocalDateTime dateTo,
+                                                      Function<List<TgMessageDto>, CompletableFuture<Void>> pageConsumer) {
+        return withOpenChat(chatId, () -> {
             int effectiveLimit = limit != null ? limit : tgChatLoaderProperty.defaultMessagesLimit();
 
             if (dateFrom != null) {
-                return collectMessagesByDateRange(chatId, topic, 0L, effectiveLimit, dateFrom, dateTo);
+                return collectMessagesByDateRange(chatId, topic, lastMessageId, effectiveLimit, dateFrom, dateTo, pageConsumer);
             }
 
-            return collectMessagesByLimit(chatId, topic, 0L, effectiveLimit);
-        } finally {
-            tgClient.send(new TdApi.CloseChat(chatId)).get();
-        }
+            return collectMessagesByLimit(chatId, topic, lastMessageId, effectiveLimit, pageConsumer);
+        });
     }
 
+    /**
+     * Выполняет действие с открытым чатом. На время действия за чатом закрепляется аккаунт из пула:
+     * он открывает чат, загружает все страницы истории и закрывает чат
+     *
+     * @param chatId идентификатор чата
+     * @param action действие
+     * @return результат действия
+     */
+    public <T> CompletableFuture<T> withOpenChat(long chatId, Supplier<CompletableFuture<T>> action) {
+        TgAccount account = tgAccountPool.pinChat(chatId);
+
+        // Открываем чат, чтобы TDLib синхронизировал последние сообщения из облака у читающего историю аккаунта
+        return tgRequestExecutor.send(account, new TdApi.OpenChat(chatId))
+            .thenCompose(ok -> action.get())
+            .whenComplete((result, e) -> {
+                // Отслеживаемые чаты остаются открытыми у основного аккаунта, чтобы продолжали приходить обновления
+                boolean keepOpen = liveMessageBuffer.isTracked(chatId)
+                    && account != null
+                    && TgAccountPool.MAIN_ACCOUNT_NAME.equals(account.name);
+
+                if (account != null && !keepOpen) {
+                    tgRequestExecutor.send(account, new TdApi.CloseChat(chatId));
+                }
+
+                tgAccountPool.unpinChat(chatId);
+            });
+    }
 
     /**
      * Собирает последние N сообщений из чата
      *
-     * @param chatId идентификатор чата
-     * @param topic  топик (может быть null)
-     * @param limit  количество сообщений для сбора
+     * @param chatId        идентификатор чата
+     * @param topic         топик (может быть null)
+     * @param lastMessageId ID сообщения, после которого продолжается сбор более старых сообщений, само сообщение не собирается
+     *                      (0 для сбора с последнего сообщения чата)
+     * @param limit         количество сообщений для сбора
      * @return список сообщений
      */
-    public List<TgMessageDto> collectMessagesByLimit(Long chatId, TopicInfo topic, long lastMessageId, int limit) {
+    public CompletableFuture<List<TgMessageDto>> collectMessagesByLimit(Long chatId, TopicInfo topic, long lastMessageId, int limit) {
         List<TgMessageDto> result = new ArrayList<>();
-        Set<Long> loadedMessageIds = new HashSet<>();
-        long fromMessageId = lastMessageId;
 
-        while (result.size() < limit && !Thread.interrupted()) {
-            TdApi.Messages messages = fetchChatMessagesBatch(chatId, topic, fromMessageId);
+        return collectMessagesByLimit(chatId, topic, lastMessageId, limit, appendTo(result))
+            .thenApply(collectedCount -> result);
+    }
 
-            if (isEmptyBatch(messages)) {
-                log.info("Достигнут конец истории чата, собрано сообщений: {}", result.size());
+    /**
+     * Собирает последние N сообщений из чата, передавая их обработчику по мере загрузки
+     *
+     * @param chatId        идентификатор чата
+     * @param topic         топик (может быть null)
+     * @param lastMessageId ID сообщения, после которого продолжается сбор более старых сообщений, само сообщение не собирается
+     *                      (0 для сбора с последнего сообщения чата)
+     * @param limit         количество сообщений для сбора
+     * @param pageConsumer  обработчик пачки собранных сообщений, следующая пачка обрабатывается после завершения его результата
+     * @return количество собранных сообщений
+     */
+    public CompletableFuture<Integer> collectMessagesByLimit(Long chatId,
+                                                             TopicInfo topic,
+                                                             long lastMessageId,
+                                                             int limit,
+                                                             Function<List<TgMessageDto>, CompletableFuture<Void>> pageConsumer) {
+        AtomicInteger collectedCount = new AtomicInteger();
+        // Сообщение lastMessageId уже отдано клиенту, поэтому сразу считаем его просмотренным
+        AtomicLong oldestLoadedMessageId = new AtomicLong(lastMessageId != 0L ? lastMessageId : Long.MAX_VALUE);
+        Map<ReplyKey, ReplyToMessage> replyCandidates = createReplyCandidatesCache();
+        ChatHistoryPager pager = createPager(chatId, topic, lastMessageId, false, messages -> false);
+
+        return forEachPage(pager, page -> processMessagesBatch(
+                page.messages(), pager.loadedReadAheadPages(), topic, Long.MIN_VALUE, Long.MAX_VALUE, limit - collectedCount.get(),
+                oldestLoadedMessageId, replyCandidates
+            )
+            .thenCompose(pageMessages -> {
+                int totalCount = collectedCount.addAndGet(pageMessages.size());
+
+                log.debug("Загружена пачка из {} сообщений, всего собрано: {}", page.messages().messages.length, totalCount);
+
+                return pageConsumer.apply(pageMessages)
+                    .thenApply(ignored -> totalCount < limit);
+            }))
+            .thenApply(ignored -> {
+                log.info("Сбор сообщений завершен, всего извлечено: {}", collectedCount.get());
+                limitCollectedMessagesSummary.record(collectedCount.get());
+
+                return collectedCount.get();
+            });
+    }
 
-                break;
-            }
+    /**
+     * Собирает сообщения, которые новее указанного, начиная с последнего сообщения чата
+     *
+     * @param chatId         идентификатор чата
+     * @param topic          топик (может быть null)
+     * @param afterMessageId ID сообщения, более старые и само сообщение не собираются
+     * @param limit          предельное количество просматриваемых сообщений
+     * @return список сообщений новее указанного
+     */
+    public CompletableFuture<List<TgMessageDto>> collectMessagesNewerThan(Long chatId, TopicInfo topic, long afterMessageId, int limit) {
+        List<TgMessageDto> result = new ArrayList<>();
+        AtomicLong oldestLoadedMessageId = new AtomicLong(Long.MAX_VALUE);
+        Map<ReplyKey, ReplyToMessage> replyCandidates = createReplyCandidatesCache();
+        // Идентификаторы сообщений в чате возрастают, поэтому дальше первой пачки со старыми сообщениями не идем
+        ChatHistoryPager pager = createPager(chatId, topic, 0L, false, messages -> oldestMessageId(messages) <= afterMessageId);
+
+        return forEachPage(pager, page -> processMessagesBatch(
+                page.messages(), pager.loadedReadAheadPages(), topic, Long.MIN_VALUE, Long.MAX_VALUE, limit - result.size(),
+                oldestLoadedMessageId, replyCandidates
+            )
+            .thenApply(pageMessages -> {
+                result.addAll(pageMessages);
+
+                return result.size() < limit;
+            }))
+            .thenApply(ignored -> {
+                List<TgMessageDto> newMessages = result.stream()
+                    .filter(message -> message.getMessageId() > afterMessageId)
+                    .toList();
+
+                log.info("Сбор новых сообщений после {} завершен, извлечено: {}", afterMessageId, newMessages.size());
+                newerThanCollectedMessagesSummary.record(newMessages.size());
+
+                return newMessages;
+            });
+    }
 
-            long oldestMessageIdInBatch = processMessagesBatch(
-                messages, topic, null, null, limit, result, loadedMessageIds
-            );
+    /**
+     * Собирает сообщения за указанный период с ограничением по количеству
+     *
+     * @param chatId        идентификатор чата
+     * @param topic         топик (может быть null)
+     * @param lastMessageId ID сообщения, после которого продолжается сбор более старых сообщений, само сообщение не собирается
+     *                      (0 для сбора с последнего сообщения чата)
+     * @param limit         предельное количество сообщений
+     * @param dateFrom      дата начала периода в UTC (включительно)
+     * @param dateTo        дата окончания периода в UTC (включительно, может быть null)
+     * @return список сообщений за период
+     */
+    public CompletableFuture<List<TgMessageDto>> collectMessagesByDateRange(Long chatId,
+                                                                            TopicInfo topic,
+                                                                            long lastMessageId,
+                                                                            int limit,
+                                                                            LocalDateTime dateFrom,
+                                                                            @Nullable LocalDateTime dateTo) {
+        List<TgMessageDto> result = new ArrayList<>();
 
-            if (oldestMessageIdInBatch == fromMessageId) {
-                log.info("Пагинация завершена, нет новых сообщений, собрано: {}", result.size());
+        return collectMessagesByDateRange(chatId, topic, lastMessageId, limit, dateFrom, dateTo, appendTo(result))
+            .thenApply(collectedCount -> result);
+    }
 
-                break;
-            }
+    /**
+     * Собирает сообщения за указанный период с ограничением по количеству,
+     * передавая их обработчику по мере загрузки
+     *
+     * @param chatId        идентификатор чата
+     * @param topic         топик (может быть null)
+     * @param lastMessageId ID сообщения, после которого продолжается сбор более старых сообщений, само сообщение не собирается
+     *                      (0 для сбора с последнего сообщения чата)
+     * @param limit         предельное количество сообщений
+     * @param dateFrom      дата начала периода в UTC (включительно)
+     * @param dateTo        дата окончания периода в UTC (включительно, может быть null)
+     * @param pageConsumer  обработчик пачки собранных сообщений, следующая пачка обрабатывается после завершения его результата
+     * @return количество собранных сообщений
+     */
+    public CompletableFuture<Integer> collectMessagesByDateRange(Long chatId,
+                                                                 TopicInfo topic,
+                                                                 long lastMessageId,
+                                                                 int limit,
+                                                                 LocalDateTime dateFrom,
+                                                                 @Nullable LocalDateTime dateTo,
+                                                                 Function<List<TgMessageDto>, CompletableFuture<Void>> pageConsumer) {
+        AtomicInteger collectedCount = new AtomicInteger();
+        // Сообщение lastMessageId уже отдано клиенту, поэтому сразу считаем его просмотренным
+        AtomicLong oldestLoadedMessageId = new AtomicLong(lastMessageId != 0L ? lastMessageId : Long.MAX_VALUE);
+        Map<ReplyKey, ReplyToMessage> replyCandidates = createReplyCandidatesCache();
+        long dateFromEpochSecond = dateFrom.toEpochSecond(ZoneOffset.UTC);
+        long dateToEpochSecond = dateTo != null ? dateTo.toEpochSecond(ZoneOffset.UTC) : Long.MAX_VALUE;
+        CompletableFuture<Long> fromMessageId = lastMessageId == 0L && dateTo != null && dateTo.isBefore(LocalDateTime.now(ZoneOffset.UTC))
+            ? seekMessageIdByDate(chatId, dateTo)
+            : CompletableFuture.completedFuture(lastMessageId);
+
+        return fromMessageId
+            .thenCompose(startMessageId -> {
+                // Найденное по дате сообщение - самое новое в периоде, оно загружается вместе с первой страницей.
+                // Сообщение курсора уже отдано клиенту и не загружается
+                boolean includeStartMessage = startMessageId != lastMessageId;
+                // Страницы старше даты начала периода заранее не запрашиваем
+                ChatHistoryPager pager = createPager(chatId, topic, startMessageId, includeStartMessage,
+                    messages -> isOlderThan(messages, dateFromEpochSecond));
+
+                return forEachPage(pager, page -> processMessagesBatch(
+                        page.messages(), pager.loadedReadAheadPages(), topic, dateFromEpochSecond, dateToEpochSecond,
+                        limit - collectedCount.get(), oldestLoadedMessageId, replyCandidates
+                    )
+                    .thenCompose(pageMessages -> {
+                        int totalCount = collectedCount.addAndGet(pageMessages.size());
+
+                        return pageConsumer.apply(pageMessages)
+                            .thenApply(ignored -> {
+                                // Проверяем, достигли ли мы даты начала периода
+                                if (isOlderThan(page.messages(), dateFromEpochSecond)) {
+                                    log.info("Достигнута дата начала периода: {}", dateFrom);
+
+                                    return false;
+                                }
+
+                                log.debug("Загружена пачка, всего собрано: {}", totalCount);
+
+                                return totalCount < limit;
+                            });
+                    }));
+            })
+            .thenApply(ignored -> {
+                log.info("Сбор сообщений за период завершен, извлечено: {}", collectedCount.get());
+                dateRangeCollectedMessagesSummary.record(collectedCount.get());
 
-            fromMessageId = oldestMessageIdInBatch;
-            log.debug("Загружена пачка из {} сообщений, всего собрано: {}", messages.messages.length, result.size());
-        }
+                return collectedCount.get();
+            });
+    }
+
+    /**
+     * Находит последнее сообщение чата, отправленное не позже указанной даты, чтобы начинать
+     * загрузку истории сразу с конца периода, а не с последнего сообщения чата
+     *
+     * @param chatId идентификатор чата
+     * @param dateTo дата окончания периода в UTC
+     * @return ID найденного сообщения или 0, если найти не удалось
+     */
+    private CompletableFuture<Long> seekMessageIdByDate(long chatId, LocalDateTime dateTo) {
+        int date = (int) dateTo.toEpochSecond(ZoneOffset.UTC);
 
-        log.info("Сбор сообщений завершен, всего извлечено: {}", result.size());
+        return tgRequestExecutor.send(new TdApi.GetChatMessageByDate(chatId, date))
+            .thenApply(message -> {
+                log.info("Загрузка истории начнется с сообщения {}, найденного по дате окончания периода: {}", message.id, dateTo);
 
-        return result;
+                return message.id;
+            })
+            .exceptionally(e -> {
+                log.warn("Не удалось найти сообщение по дате окончания периода {}, история загружается с последнего сообщения: {}",
+                    dateTo, e.getMessage());
+
+                return 0L;
+            });
     }
 
     /**
-     * Собирает сообщения за указанный период с ограничением по количеству
+     * Последовательно обрабатывает страницы истории. Обработка страницы выполняется в пуле воркеров,
+     * чтобы не занимать поток TDLib, доставляющий ответы
      *
-     * @param chatId   идентификатор чата
-     * @param topic    топик (может быть null)
-     * @param limit    предельное количество сообщений
-     * @param dateFrom дата начала периода в UTC (включительно)
-     * @param dateTo   дата окончания периода в UTC (включительно, может быть null)
-     * @return список сообщений за период
+     * @param pager       загрузчик истории, закрывается по завершении
+     * @param pageHandler обработчик страницы, возвращает признак того, что нужна следующая страница
+     * @return завершение обработки
      */
-    public List<TgMessageDto> collectMessagesByDateRange(Long chatId,
-                                                         TopicInfo topic,
-                                                         long lastMessageId,
-                                                         int limit,
-                                                         LocalDateTime dateFrom,
-                                                         @Nullable LocalDateTime dateTo) {
-        List<TgMessageDto> result = new ArrayList<>();
-        Set<Long> loadedMessageIds = new HashSet<>();
-        long fromMessageId = lastMessageId;
-        boolean reachedDateFrom = false;
-
-        while (!reachedDateFrom && result.size() < limit && !Thread.interrupted()) {
-            TdApi.Messages messages = fetchChatMessagesBatch(chatId, topic, fromMessageId);
+    private CompletableFuture<Void> forEachPage(ChatHistoryPager pager,
+                                                Function<ChatHistoryPager.HistoryPage, CompletableFuture<Boolean>> pageHandler) {
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        completion.whenComplete((ignored, e) -> pager.close());
 
-            if (isEmptyBatch(messages)) {
-                log.info("Достигнут конец истории чата, собрано сообщений: {}", result.size());
+        long startedAt = System.nanoTime();
+        AtomicBoolean firstPageReceived = new AtomicBoolean();
 
-                break;
+        processNextPage(pager, page -> {
+            if (firstPageReceived.compareAndSet(false, true)) {
+                firstPageTimer.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
             }
 
-            long oldestMessageIdInBatch = processMessagesBatch(
-                messages, topic, dateFrom, dateTo, limit, result, loadedMessageIds
-            );
+            pagesCounter.increment();
 
-            // Проверяем, достигли ли мы даты начала периода
-            TdApi.Message oldestMessage = messages.messages[messages.messages.length - 1];
-            LocalDateTime oldestMessageDate = LocalDateTime.ofEpochSecond(oldestMessage.date, 0, ZoneOffset.UTC);
+            return pageHandler.apply(page);
+        }, completion);
 
-            if (oldestMessageDate.isBefore(dateFrom)) {
-                reachedDateFrom = true;
-                log.info("Достигнута дата начала периода: {}", dateFrom);
-            }
+        return completion;
+    }
 
-            if (oldestMessageIdInBatch == fromMessageId) {
-                log.info("Пагинация завершена, нет новых сообщений, собрано: {}", result.size());
+    /**
+     * Обработчик пачек сообщений, накапливающий их в списке
+     */
+    private static Function<List<TgMessageDto>, CompletableFuture<Void>> appendTo(List<TgMessageDto> result) {
+        return pageMessages -> {
+            result.addAll(pageMessages);
 
-                break;
-            }
+            return CompletableFuture.completedFuture(null);
+        };
+    }
 
-            fromMessageId = oldestMessageIdInBatch;
-            log.debug("Загружена пачка, всего собрано: {}", result.size());
-        }
+    /**
+     * Регистрирует распределение количества сообщений, собранных за один сбор
+     *
+     * @param mode способ сбора
+     */
+    private DistributionSummary registerCollectedMessagesSummary(String mode) {
+        return DistributionSummary.builder("collector.collection.messages")
+            .description("Количество сообщений, собранных за один сбор")
+            .tag("mode", mode)
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+    }
+
+    private void processNextPage(ChatHistoryPager pager,
+                                 Function<ChatHistoryPager.HistoryPage, CompletableFuture<Boolean>> pageHandler,
+                                 CompletableFuture<Void> completion) {
+        pager.nextAsync()
+            .thenComposeAsync(page -> {
+                if (page == null) {
+                    log.info("Достигнут конец истории чата");
 
-        log.info("Сбор сообщений за период завершен, извлечено: {}", result.size());
+                    return CompletableFuture.completedFuture(false);
+                }
 
-        return result;
+                return pageHandler.apply(page);
+            }, Infrastructure.getDefaultWorkerPool())
+            .whenComplete((hasNextPage, e) -> {
+                if (e != null) {
+                    completion.completeExceptionally(e);
+                } else if (hasNextPage) {
+                    processNextPage(pager, pageHandler, completion);
+                } else {
+                    completion.complete(null);
+                }
+            });
     }
 
     /**
-     * Обрабатывает пачку сообщений и добавляет подходящие в результат
+     * Обрабатывает пачку сообщений и отбирает подходящие.
+     * Сообщения, на которые есть ответы, ищутся сразу для всей пачки. История загружается от новых к старым,
+     * а отвечают на более старые сообщения, поэтому кроме самой пачки ответы ищутся в уже загруженных следующих страницах
      *
-     * @return ID самого старого сообщения в пачке для пагинации
+     * @param readAheadPages        заранее загруженные более старые страницы
+     * @param dateFromEpochSecond   начало периода в секундах UTC (включительно)
+     * @param dateToEpochSecond     окончание периода в секундах UTC (включительно)
+     * @param limit                 предельное количество сообщений, которое можно взять из пачки
+     * @param oldestLoadedMessageId ID самого старого уже просмотренного сообщения, сдвигается по мере обработки
+     * @return подходящие сообщения пачки
      */
-    private long processMessagesBatch(TdApi.Messages messages,
-                                      TopicInfo topic,
-                                      @Nullable LocalDateTime dateFrom,
-                                      @Nullable LocalDateTime dateTo,
-                                      int limit,
-                                      List<TgMessageDto> result,
-                                      Set<Long> loadedMessageIds) {
+    CompletableFuture<List<TgMessageDto>> processMessagesBatch(TdApi.Messages messages,
+                                                               List<TdApi.Messages> readAheadPages,
+                                                               TopicInfo topic,
+                                                               long dateFromEpochSecond,
+                                                               long dateToEpochSecond,
+                                                               int limit,
+                                                               AtomicLong oldestLoadedMessageId,
+                                                               Map<ReplyKey, ReplyToMessage> replyCandidates) {
+        List<TdApi.Message> acceptedMessages = new ArrayList<>();
+
         for (TdApi.Message message : messages.messages) {
-            if (result.size() >= limit) {
+            if (acceptedMessages.size() >= limit) {
                 break;
             }
 
-            if (loadedMessageIds.contains(message.id)) {
+            // История загружается от новых сообщений к старым, а идентификаторы сообщений в чате возрастают,
+            // поэтому сообщение не новее уже просмотренных повторяется на стыке страниц
+            if (message.id >= oldestLoadedMessageId.get()) {
                 continue;
             }
 
-            loadedMessageIds.add(message.id);
+            oldestLoadedMessageId.set(message.id);
 
             if (!isMessageFromTopic(message, topic)) {
                 continue;
             }
 
-            LocalDateTime messageDateUtc = LocalDateTime.ofEpochSecond(message.date, 0, ZoneOffset.UTC);
-
-            if (dateFrom != null && messageDateUtc.isBefore(dateFrom)) {
+            if (message.date < dateFromEpochSecond || message.date > dateToEpochSecond) {
                 continue;
             }
 
-            if (dateTo != null && messageDateUtc.isAfter(dateTo)) {
-                continue;
-            }
+            acceptedMessages.add(message);
+        }
 
-            TgMessageDto messageDto = mapToMessageDto(message);
-            result.add(messageDto);
+        rememberReplyCandidates(messages, replyCandidates);
+
+        for (TdApi.Messages readAheadPage : readAheadPages) {
+            rememberReplyCandidates(readAheadPage, replyCandidates);
         }
 
+        return resolveReplies(acceptedMessages, replyCandidates)
+            .thenApply(replies -> {
+                List<TgMessageDto> pageMessages = new ArrayList<>(acceptedMessages.size());
+
+                for (TdApi.Message message : acceptedMessages) {
+                    pageMessages.add(mapToMessageDto(message, replies));
+                }
+
+                mappedMessagesCounter.increment(pageMessages.size());
+                messageSearchIndex.index(acceptedMessages, pageMessages);
+
+                return pageMessages;
+            });
+    }
+
+    private static long oldestMessageId(TdApi.Messages messages) {
         return messages.messages[messages.messages.length - 1].id;
     }
 
+    /**
+     * Проверяет, что самое старое сообщение пачки отправлено раньше указанной даты
+     */
+    private boolean isOlderThan(TdApi.Messages messages, long dateFromEpochSecond) {
+        return messages.messages[messages.messages.length - 1].date < dateFromEpochSecond;
+    }
+
     /**
      * Проверяет, относится ли сообщение к указанному топику
      */
@@ -262,7 +641,7 @@ public class TgClientService {
             return true;
         }
 
-        // Если это general топик, пропускаем сообщения из других топиков
+        // Если это general топик, пропускаем сообщения из других топиков, если пришлось загружать всю историю чата
         if (topic.isGeneral()) {
             return !message.isTopicMessage;
         }
@@ -270,246 +649,338 @@ public class TgClientService {
         return true;
     }
 
-    /**
-     * Преобразует TdApi.Message в TgMessageDto
-     *
-     * @return DTO сообщения или null, если сообщение не содержит текста
-     */
-    private TgMessageDto mapToMessageDto(TdApi.Message message) {
-        String text = extractMessageTextSafely(message.content);
-
-        LocalDateTime messageDateTimeUtc = LocalDateTime.ofEpochSecond(message.date, 0, ZoneOffset.UTC);
-        LocalDateTime messageDateTime = messageDateTimeUtc.plusHours(3); // Московское время
+    TgMessageDto mapToMessageDto(TdApi.Message message, Map<ReplyKey, ReplyToMessage> replies) {
+        ReplyToMessage replyToMessage = message.replyTo instanceof TdApi.MessageReplyToMessage replyTo
+            ? replies.get(new ReplyKey(replyTo.chatId, replyTo.messageId))
+            : null;
 
-        ReplyToMessage replyToMessage = fetchReplyToMessage(message);
-
-        return TgMessageDto.builder()
-            .senderId(extractSenderId(message))
-            .dateTime(messageDateTime)
-            .messageId(message.id)
-            .replyToText(replyToMessage != null ? replyToMessage.text : null)
-            .replyToMessageId(replyToMessage != null ? replyToMessage.id : null)
-            .text(text)
-            .build();
+        return tgMessageMapper.toMessageDto(
+            message,
+            replyToMessage != null ? replyToMessage.id : null,
+            replyToMessage != null ? replyToMessage.text : null
+        );
     }
 
-    private boolean isEmptyBatch(TdApi.Messages messages) {
-        return messages == null || messages.messages == null || messages.messages.length == 0;
+    /**
+     * Ищет чаты по части названия в индексе, без обращений к TDLib за списком чатов.
+     * Публичные имена запрашиваются только для отобранных чатов
+     *
+     * @param namePart часть названия чата
+     * @param limit    предельное количество чатов
+     * @return найденные чаты в порядке релевантности
+     */
+    public CompletableFuture<List<ChatInfo>> findPersonalChatByNamePart(String namePart, int limit) {
+        CompletableFuture<Void> indexLoading = chatTitleIndex.isLoaded()
+            ? CompletableFuture.completedFuture(null)
+            : loadChatTitleIndex();
+
+        return indexLoading
+            .thenCompose(ignored -> allOf(chatTitleIndex.search(namePart, limit).stream()
+                .map(this::toChatInfo)
+                .toList()));
     }
 
-    @SneakyThrows
-    public List<ChatInfo> findPersonalChatByNamePart(String namePart) {
-        TdApi.Chats mainChats = tgClient.send(new TdApi.GetChats(new TdApi.ChatListMain(), Integer.MAX_VALUE))
-            .get();
-        TdApi.Chats archiveChats = tgClient.send(new TdApi.GetChats(new TdApi.ChatListArchive(), Integer.MAX_VALUE))
-            .get();
-
-        List<CompletableFuture<TdApi.Chat>> chatsWithInfo = Stream.concat(Arrays.stream(mainChats.chatIds).boxed(), Arrays.stream(archiveChats.chatIds).boxed())
-            .map(chatId -> tgClient.send(new TdApi.GetChat(chatId)))
-            .toList();
-
-        for (CompletableFuture<TdApi.Chat> chatCompletableFuture : chatsWithInfo) {
-            chatCompletableFuture.get();
-        }
+    /**
+     * Загружает чаты основного списка и архива и перестраивает по ним индекс названий
+     */
+    public CompletableFuture<Void> loadChatTitleIndex() {
+        CompletableFuture<List<TdApi.Chat>> mainChats = tgRequestExecutor.send(new TdApi.GetChats(new TdApi.ChatListMain(), Integer.MAX_VALUE))
+            .thenCompose(chats -> requestChats(chats.chatIds));
+        CompletableFuture<List<TdApi.Chat>> archiveChats = tgRequestExecutor.send(new TdApi.GetChats(new TdApi.ChatListArchive(), Integer.MAX_VALUE))
+            .thenCompose(chats -> requestChats(chats.chatIds));
 
-        return chatsWithInfo.stream()
-            .map(cf -> {
-                try {
-                    return cf.get();
-                } catch (InterruptedException | ExecutionException e) {
-                    throw new RuntimeException(e);
-                }
-            })
-            .filter(it -> it.title.toLowerCase().contains(namePart.toLowerCase()))
-            .map(chat -> {
-                String chatPublicName = fetchChannelPublicName(chat);
+        return mainChats.thenAcceptBoth(archiveChats, chatTitleIndex::rebuild);
+    }
 
-                return new ChatInfo(chat.id, chatPublicName, defineChatType(chat), chat.title);
-            })
-            .toList();
+    private CompletableFuture<List<TdApi.Chat>> requestChats(long[] chatIds) {
+        return allOf(Arrays.stream(chatIds)
+            .mapToObj(chatId -> tgRequestExecutor.send(new TdApi.GetChat(chatId)))
+            .toList());
     }
 
-    @SneakyThrows
-    public List<TopicInfo> findTopicsByName(long chatId, String topicNamePart) {
-        return tgClient.send(new TdApi.GetForumTopics(chatId, topicNamePart, 0, 0L, 0L, 100))
+    public CompletableFuture<List<TopicInfo>> findTopicsByName(long chatId, String topicNamePart) {
+        return tgRequestExecutor.send(new TdApi.GetForumTopics(chatId, topicNamePart, 0, 0L, 0L, 100))
             .thenApply(topics -> Arrays.stream(topics.topics)
                 .filter(ft -> ft.info.name.toLowerCase()
                     .contains(topicNamePart.toLowerCase()))
                 .map(topic -> new TopicInfo(topic.info.isGeneral, topic.info.messageThreadId, topic.info.name, topic.lastMessage.id))
-                .toList())
-            .get();
+                .toList());
     }
 
-    @Nullable
-    @SneakyThrows
-    public TopicInfo findTopicInfoById(long chatId, Long topicId) {
+    /**
+     * @return информация о топике, null если топик не указан
+     */
+    public CompletableFuture<TopicInfo> findTopicInfoById(long chatId, Long topicId) {
         if (topicId == null) {
-            return null;
+            return CompletableFuture.completedFuture(null);
         }
 
-        return tgClient.send(new TdApi.GetForumTopic(chatId, topicId))
-            .thenApply(topic -> new TopicInfo(topic.info.isGeneral, topic.info.messageThreadId, topic.info.name, topic.lastMessage.id))
-            .get();
+        return tgRequestExecutor.send(new TdApi.GetForumTopic(chatId, topicId))
+            .thenApply(topic -> new TopicInfo(topic.info.isGeneral, topic.info.messageThreadId, topic.info.name, topic.lastMessage.id));
     }
 
-    @SneakyThrows
-    public List<ChatInfoDto> findLastChats(Integer count) {
-        TdApi.Chats chats = tgClient.send(new TdApi.GetChats(new TdApi.ChatListMain(), count))
-            .get();
-
-        List<ChatInfoDto> list = new ArrayList<>();
-        for (long chatId : chats.chatIds) {
-            CompletableFuture<TdApi.Chat> send = tgClient.send(new TdApi.GetChat(chatId));
-            TdApi.Chat chat = send.get();
-            ChatInfoDto chatInfoDto = new ChatInfoDto(chat.id, chat.type.getClass().getSimpleName(), chat.title);
-            list.add(chatInfoDto);
-        }
-
-        return list;
+    public CompletableFuture<List<ChatInfoDto>> findLastChats(Integer count) {
+        return tgRequestExecutor.send(new TdApi.GetChats(new TdApi.ChatListMain(), count))
+            .thenCompose(chats -> requestChats(chats.chatIds))
+            .thenApply(chats -> chats.stream()
+                .map(chat -> new ChatInfoDto(chat.id, chat.type.getClass().getSimpleName(), chat.title))
+                .toList());
     }
 
-    private static Long extractSenderId(TdApi.Message message) {
-        Long senderId = null;
-        if (message.senderId instanceof TdApi.MessageSenderChat chatSender) {
-            senderId = chatSender.chatId;
-        } else if (message.senderId instanceof TdApi.MessageSenderUser userSender) {
-            senderId = userSender.userId;
-        }
-        return senderId;
-    }
+    /**
+     * Находит сообщения, на которые отвечают сообщения пачки.
+     * Сначала ищет среди уже загруженных в рамках сбора сообщений, недостающие запрашивает
+     * одним GetMessages на каждый чат, причем запросы по разным чатам отправляются параллельно
+     *
+     * @param messages         сообщения, для которых нужно найти ответы
+     * @param replyCandidates  уже загруженные сообщения, дополняется найденными в TDLib
+     * @return найденные сообщения по ключу (чат, сообщение)
+     */
+    private CompletableFuture<Map<ReplyKey, ReplyToMessage>> resolveReplies(List<TdApi.Message> messages,
+                                                                            Map<ReplyKey, ReplyToMessage> replyCandidates) {
+        Map<ReplyKey, ReplyToMessage> resolved = new HashMap<>();
+        Map<Long, Set<Long>> missingMessageIdsByChat = new HashMap<>();
 
-    @Nullable
-    private ReplyToMessage fetchReplyToMessage(TdApi.Message message) {
-        if (message.replyTo instanceof TdApi.MessageReplyToMessage replyToMessageInfo) {
-            try {
-                TdApi.Message replyToMessage = tgClient.send(new TdApi.GetMessage(replyToMessageInfo.chatId, replyToMessageInfo.messageId))
-                    .get();
+        for (TdApi.Message message : messages) {
+            if (!(message.replyTo instanceof TdApi.MessageReplyToMessage replyTo) || replyTo.chatId == 0 || replyTo.messageId == 0) {
+                continue;
+            }
 
-                String messageText = extractMessageTextSafely(replyToMessage.content);
+            ReplyKey replyKey = new ReplyKey(replyTo.chatId, replyTo.messageId);
+            ReplyToMessage loadedReply = replyCandidates.get(replyKey);
 
-                return new ReplyToMessage(replyToMessage.id, messageText);
-            } catch (InterruptedException | ExecutionException e) {
-                return null;
+            if (loadedReply != null) {
+                resolved.put(replyKey, loadedReply);
+            } else {
+                missingMessageIdsByChat.computeIfAbsent(replyTo.chatId, chatId -> new LinkedHashSet<>())
+                    .add(replyTo.messageId);
             }
         }
 
-        return null;
-    }
+        loadedReplyLookupsCounter.increment(resolved.size());
+        requestedReplyLookupsCounter.increment(missingMessageIdsByChat.values().stream().mapToInt(Set::size).sum());
 
-    private String fetchChannelPublicName(TdApi.Chat chat) {
-        if (chat.type instanceof TdApi.ChatTypeSupergroup supergroup) {
-            try {
-                TdApi.Supergroup supergroupInfo = tgClient.send(new TdApi.GetSupergroup(supergroup.supergroupId))
-                    .get();
-
-                return Optional.ofNullable(supergroupInfo.usernames)
-                    .map(usernames -> usernames.activeUsernames)
-                    .filter(activeUsernames -> activeUsernames.length > 0)
-                    .map(activeUsernames -> activeUsernames[0])
-                    .orElse(null);
-            } catch (InterruptedException | ExecutionException e) {
-                log.warn("Не удалось получить информацию о супергруппе: {}", chat.title, e);
-            }
+        if (missingMessageIdsByChat.isEmpty()) {
+            return CompletableFuture.completedFuture(resolved);
         }
 
-        return null;
+        List<CompletableFuture<TdApi.Messages>> pendingReplies = new ArrayList<>();
+        missingMessageIdsByChat.forEach((chatId, messageIds) -> pendingReplies.add(
+            tgRequestExecutor.send(new TdApi.GetMessages(chatId, messageIds.stream().mapToLong(Long::longValue).toArray()))
+                .exceptionally(e -> {
+                    log.warn("Не удалось загрузить сообщения, на которые есть ответы, в чате: {}", chatId, e);
+
+                    return null;
+                })));
+
+        // Результаты разбираются после завершения всех запросов, чтобы не изменять коллекции из разных потоков
+        return allOf(pendingReplies)
+            .thenApply(repliesByChat -> {
+                for (TdApi.Messages replyMessages : repliesByChat) {
+                    if (replyMessages == null) {
+                        continue;
+                    }
+
+                    for (TdApi.Message replyMessage : replyMessages.messages) {
+                        // TDLib возвращает null на месте недоступных сообщений
+                        if (replyMessage == null) {
+                            continue;
+                        }
+
+                        ReplyKey replyKey = new ReplyKey(replyMessage.chatId, replyMessage.id);
+                        ReplyToMessage reply = new ReplyToMessage(replyMessage.id, tgMessageMapper.extractMessageTextSafely(replyMessage.content));
+
+                        resolved.put(replyKey, reply);
+                        replyCandidates.put(replyKey, reply);
+                    }
+                }
+
+                return resolved;
+            });
     }
 
     /**
-     * Загружает пачку сообщений из чата для пагинации
-     *
-     * @param chatId        идентификатор чата
-     * @param topic         топик (может быть null)
-     * @param fromMessageId ID сообщения, с которого начинать загрузку (0 для последних сообщений)
-     * @return пачка сообщений
+     * Запоминает все сообщения пачки как возможные цели ответов. Заранее загруженная страница
+     * встречается здесь несколько раз, уже запомненные сообщения не пересчитываются
      */
-    private TdApi.Messages fetchChatMessagesBatch(long chatId, TopicInfo topic, long fromMessageId) {
-        try {
-            // Если это general топик, читаем все сообщения и фильтруем те, что не в топиках
-            TdApi.Function<TdApi.Messages> chatHistory = topic != null && !topic.isGeneral()
-                ? new TdApi.GetMessageThreadHistory(chatId, topic.lastMessageId(), fromMessageId, 0, 100)
-                : new TdApi.GetChatHistory(chatId, fromMessageId, 0, 100, false);
-
-            return tgClient.send(chatHistory)
-                .exceptionally(e -> {
-                    log.error("Ошибка при выгрузке истории чата: {}", e.getMessage(), e);
-
-                    throw new RuntimeException(e);
-                })
-                .get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
+    private void rememberReplyCandidates(TdApi.Messages messages, Map<ReplyKey, ReplyToMessage> replyCandidates) {
+        for (TdApi.Message message : messages.messages) {
+            replyCandidates.computeIfAbsent(
+                new ReplyKey(message.chatId, message.id),
+                replyKey -> new ReplyToMessage(message.id, tgMessageMapper.extractMessageTextSafely(message.content))
+            );
         }
     }
 
-    private String extractMessageTextSafely(TdApi.MessageContent content) {
-        if (content instanceof TdApi.MessageText messageText) {
-            return messageText.text.text;
-        }
+    static Map<ReplyKey, ReplyToMessage> createReplyCandidatesCache() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ReplyKey, ReplyToMessage> eldest) {
+                return size() > REPLY_CANDIDATES_CACHE_SIZE;
+            }
+        };
+    }
 
-        if (content instanceof TdApi.MessagePhoto photo) {
-            return buildMediaText("<Приложено фото>", photo.caption.text);
-        }
+    private CompletableFuture<ChatMetadata> requestChatMetadata(Long chatId) {
+        return tgRequestExecutor.send(new TdApi.GetChat(chatId))
+            .thenApply(ChatMetadataCache::toChatMetadata);
+    }
 
-        if (content instanceof TdApi.MessageVideo messageVideo) {
-            return buildMediaText("<Приложено видео>", messageVideo.caption.text);
-        }
+    private CompletableFuture<ChatInfo> toChatInfo(ChatMetadata chat) {
+        CompletableFuture<String> chatPublicName = chat.supergroupId() != null
+            ? fetchSupergroupPublicName(chat.supergroupId())
+            : CompletableFuture.completedFuture(null);
 
-        if (content instanceof TdApi.MessageAudio audio) {
-            return buildMediaText("<Приложено аудио>", audio.caption.text);
-        }
+        return chatPublicName
+            .thenApply(publicName -> new ChatInfo(chat.chatId(), publicName, chat.type(), chat.title()));
+    }
 
-        if (content instanceof TdApi.MessageDocument document) {
-            return buildMediaText("<Приложен документ>", document.caption.text);
+    private CompletableFuture<String> fetchChannelPublicName(TdApi.Chat chat) {
+        if (chat.type instanceof TdApi.ChatTypeSupergroup supergroup) {
+            return fetchSupergroupPublicName(supergroup.supergroupId);
         }
 
-        if (content instanceof TdApi.MessageVoiceNote voiceNote) {
-            return buildMediaText("<Приложено голосовое сообщение>", voiceNote.caption.text);
-        }
+        return CompletableFuture.completedFuture(null);
+    }
 
-        if (content instanceof TdApi.MessageVideoNote) {
-            return "<Приложено видеосообщение>";
-        }
+    private CompletableFuture<String> fetchSupergroupPublicName(long supergroupId) {
+        return chatMetadataCache.getSupergroupPublicName(supergroupId, this::requestSupergroupPublicName);
+    }
 
-        if (content instanceof TdApi.MessageSticker) {
-            return "<Приложен стикер>";
-        }
+    /**
+     * @return публичное имя супергруппы (пустое, если его нет) либо null, если загрузить информацию не удалось
+     */
+    private CompletableFuture<Optional<String>> requestSupergroupPublicName(Long supergroupId) {
+        return tgRequestExecutor.send(new TdApi.GetSupergroup(supergroupId))
+            .thenApply(supergroupInfo -> Optional.ofNullable(ChatMetadataCache.extractPublicName(supergroupInfo.usernames)))
+            .exceptionally(e -> {
+                log.warn("Не удалось получить информацию о супергруппе: {}", supergroupId, e);
 
-        if (content instanceof TdApi.MessageAnimation animation) {
-            return buildMediaText("<Приложена анимация>", animation.caption.text);
-        }
+                return null;
+            });
+    }
 
-        return "<Неизвестный тип сообщения>";
+    /**
+     * Создает постраничный загрузчик истории чата с упреждающими запросами
+     *
+     * @param chatId             идентификатор чата
+     * @param topic              топик (может быть null)
+     * @param fromMessageId      ID сообщения, с которого начинать загрузку (0 для последних сообщений)
+     * @param includeFromMessage загружать ли само сообщение fromMessageId, иначе первая страница начинается с более старого
+     * @param lastPagePredicate  признак того, что после пачки историю дальше загружать не нужно
+     * @return загрузчик истории
+     */
+    private ChatHistoryPager createPager(long chatId,
+                                         TopicInfo topic,
+                                         long fromMessageId,
+                                         boolean includeFromMessage,
+                                         Predicate<TdApi.Messages> lastPagePredicate) {
+        AtomicBoolean generalTopicSearchFailed = new AtomicBoolean();
+        // Первую страницу загрузчик запрашивает при создании, следующие начинаются с уже загруженных сообщений
+        AtomicBoolean firstPage = new AtomicBoolean(includeFromMessage);
+
+        return new ChatHistoryPager(
+            fromMessageId,
+            tgChatLoaderProperty.historyReadAheadDepth(),
+            pageFromMessageId -> fetchChatMessagesBatch(chatId, topic, pageFromMessageId,
+                firstPage.getAndSet(false) ? INCLUDE_FROM_MESSAGE_OFFSET : 0, generalTopicSearchFailed),
+            lastPagePredicate
+        );
     }
 
-    private String buildMediaText(String mediaLabel, String caption) {
-        if (caption == null || caption.isEmpty()) {
-            return mediaLabel;
+    /**
+     * Запрашивает пачку сообщений из чата для пагинации
+     *
+     * @param chatId                   идентификатор чата
+     * @param topic                    топик (может быть null)
+     * @param fromMessageId            ID сообщения, с которого начинать загрузку (0 для последних сообщений)
+     * @param offset                   смещение относительно fromMessageId: 0 - сообщения старше него, отрицательное - вместе с ним
+     *                                 и указанным количеством более новых
+     * @param generalTopicSearchFailed признак того, что поиск по general топику не удался и в рамках сбора не используется
+     * @return пачка сообщений
+     */
+    private CompletableFuture<TdApi.Messages> fetchChatMessagesBatch(long chatId,
+                                                                     TopicInfo topic,
+                                                                     long fromMessageId,
+                                                                     int offset,
+                                                                     AtomicBoolean generalTopicSearchFailed) {
+        CompletableFuture<TdApi.Messages> messages;
+
+        if (topic != null && !topic.isGeneral()) {
+            messages = getPage(chatId, topic.topicId(), fromMessageId, offset,
+                () -> tgRequestExecutor.send(new TdApi.GetMessageThreadHistory(chatId, topic.lastMessageId(), fromMessageId, offset, HISTORY_PAGE_SIZE)));
+        } else if (topic != null && !generalTopicSearchFailed.get()) {
+            messages = fetchGeneralTopicMessagesBatch(chatId, topic, fromMessageId, offset)
+                .exceptionallyCompose(e -> {
+                    generalTopicSearchFailed.set(true);
+                    log.warn("Не удалось загрузить сообщения general топика чата {} поиском, сообщения отбираются из всей истории чата: {}",
+                        chatId, e.getMessage());
+
+                    return fetchChatHistoryBatch(chatId, fromMessageId, offset);
+                });
+        } else {
+            messages = fetchChatHistoryBatch(chatId, fromMessageId, offset);
         }
 
-        return mediaLabel + "\n" + caption;
+        return messages
+            .whenComplete((loadedMessages, e) -> {
+                if (e != null) {
+                    log.error("Ошибка при выгрузке истории чата: {}", e.getMessage(), e);
+                }
+            });
     }
 
-    private static String defineChatType(TdApi.Chat chat) {
-        if (chat.type instanceof TdApi.ChatTypePrivate) {
-            return "private";
-        }
+    private CompletableFuture<TdApi.Messages> fetchChatHistoryBatch(long chatId, long fromMessageId, int offset) {
+        // Страницы всей истории чата общие для сбора без топика и для general топика, если поиск по нему не удался
+        return getPage(chatId, 0L, fromMessageId, offset,
+            () -> tgRequestExecutor.send(new TdApi.GetChatHistory(chatId, fromMessageId, offset, HISTORY_PAGE_SIZE, false)));
+    }
 
-        if (chat.type instanceof TdApi.ChatTypeBasicGroup) {
-            return "group";
-        }
+    /**
+     * У general топика нет корневого сообщения, поэтому GetMessageThreadHistory для него не работает.
+     * Сообщения топика отбираются телеграм поиском по идентификатору треда, без загрузки сообщений остальных топиков
+     */
+    private CompletableFuture<TdApi.Messages> fetchGeneralTopicMessagesBatch(long chatId, TopicInfo topic, long fromMessageId, int offset) {
+        TdApi.SearchChatMessages searchChatMessages = new TdApi.SearchChatMessages();
+        searchChatMessages.chatId = chatId;
+        searchChatMessages.query = "";
+        searchChatMessages.fromMessageId = fromMessageId;
+        searchChatMessages.offset = offset;
+        searchChatMessages.limit = HISTORY_PAGE_SIZE;
+        searchChatMessages.messageThreadId = topic.topicId();
+
+        return getPage(chatId, topic.topicId(), fromMessageId, offset,
+            () -> tgRequestExecutor.send(searchChatMessages)
+                .thenApply(foundMessages -> new TdApi.Messages(foundMessages.totalCount, foundMessages.messages)));
+    }
 
-        if (chat.type instanceof TdApi.ChatTypeSupergroup sg) {
-            return sg.isChannel ? "channel" : "supergroup";
-        }
+    /**
+     * Страница со смещением содержит и более новые сообщения, чем страница с тем же fromMessageId без него,
+     * поэтому в кэше страниц не хранится
+     */
+    private CompletableFuture<TdApi.Messages> getPage(long chatId,
+                                                      long threadId,
+                                                      long fromMessageId,
+                                                      int offset,
+                                                      Supplier<CompletableFuture<TdApi.Messages>> pageLoader) {
+        return offset == 0
+            ? historyPageCache.getPage(chatId, threadId, fromMessageId, pageLoader)
+            : pageLoader.get();
+    }
 
-        if (chat.type instanceof TdApi.ChatTypeSecret) {
-            return "secret";
-        }
+    /**
+     * Ожидает завершения всех запросов, сохраняя порядок результатов
+     */
+    private static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futures) {
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+            .thenApply(ignored -> futures.stream()
+                .map(CompletableFuture::join)
+                .toList());
+    }
 
-        return "undefined";
+    record ReplyToMessage(Long id, String text) {
     }
 
-    private record ReplyToMessage(Long id, String text) {
+    record ReplyKey(long chatId, long messageId) {
     }
 }
@@ -0,0 +1,52 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import it.tdlight.jni.TdApi;
+import jakarta.enterprise.context.ApplicationScoped;
+
+/**
+ * Состояние запуска клиента телеграм. Клиент создается и авторизуется в фоне,
+ * поэтому до авторизации запросы к TDLib не отправляются, а сервис не готов принимать трафик
+ */
+@ApplicationScoped
+public class TgClientState {
+
+    private volatile boolean clientCreated;
+    private volatile String authorizationState = "NotStarted";
+    private volatile boolean authorized;
+    private volatile boolean warmedUp;
+
+    public void onUpdateAuthorizationState(TdApi.UpdateAuthorizationState update) {
+        authorizationState = update.authorizationState.getClass().getSimpleName();
+        authorized = update.authorizationState instanceof TdApi.AuthorizationStateReady;
+    }
+
+    public void markClientCreated() {
+        clientCreated = true;
+    }
+
+    /**
+     * Отмечает завершение прогрева после авторизации, в том числе неудачного
+     */
+    public void markWarmedUp() {
+        warmedUp = true;
+    }
+
+    public boolean isClientCreated() {
+        return clientCreated;
+    }
+
+    public boolean isAuthorized() {
+        return authorized;
+    }
+
+    /**
+     * @return клиент авторизован и прогрет, первые запросы не будут ждать загрузки списка чатов
+     */
+    public boolean isReady() {
+        return authorized && warmedUp;
+    }
+
+    public String getAuthorizationState() {
+        return authorizationState;
+    }
+}
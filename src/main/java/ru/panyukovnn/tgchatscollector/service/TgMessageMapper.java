@@ -0,0 +1,174 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import it.tdlight.jni.TdApi;
+import jakarta.annotation.Nullable;
+import jakarta.enterprise.context.ApplicationScoped;
+import ru.panyukovnn.tgchatscollector.dto.TgMediaDto;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Преобразование сообщений TDLib в DTO
+ */
+@ApplicationScoped
+public class TgMessageMapper {
+
+    /**
+     * Смещение, в котором отдается время сообщений (московское время)
+     */
+    public static final ZoneOffset MESSAGE_DATE_TIME_OFFSET = ZoneOffset.ofHours(3);
+    /**
+     * Типы вложений, файлы которых можно получить по истории сообщений
+     */
+    public static final String PHOTO_MEDIA_TYPE = "PHOTO";
+    public static final String DOCUMENT_MEDIA_TYPE = "DOCUMENT";
+
+    /**
+     * Преобразует TdApi.Message в TgMessageDto
+     *
+     * @param message          сообщение TDLib
+     * @param replyToMessageId ID сообщения, на которое отвечает текущее (может быть null)
+     * @param replyToText      текст сообщения, на которое отвечает текущее (может быть null)
+     * @return DTO сообщения
+     */
+    public TgMessageDto toMessageDto(TdApi.Message message, @Nullable Long replyToMessageId, @Nullable String replyToText) {
+        String text = extractMessageTextSafely(message.content);
+
+        LocalDateTime messageDateTime = LocalDateTime.ofEpochSecond(message.date, 0, MESSAGE_DATE_TIME_OFFSET);
+
+        return TgMessageDto.builder()
+            .senderId(extractSenderId(message))
+            .dateTime(messageDateTime)
+            .messageId(message.id)
+            .replyToText(replyToText)
+            .replyToMessageId(replyToMessageId)
+            .text(text)
+            .mediaType(extractMediaType(message.content))
+            .build();
+    }
+
+    /**
+     * Создает копию DTO сообщения с новым текстом, исходный DTO мог быть уже отдан клиенту
+     */
+    public TgMessageDto withText(TgMessageDto message, String text) {
+        return TgMessageDto.builder()
+            .senderId(message.getSenderId())
+            .dateTime(message.getDateTime())
+            .messageId(message.getMessageId())
+            .replyToText(message.getReplyToText())
+            .replyToMessageId(message.getReplyToMessageId())
+            .text(text)
+            .mediaType(message.getMediaType())
+            .media(message.getMedia())
+            .build();
+    }
+
+    /**
+     * Создает копию DTO сообщения с информацией о сообщении, на которое оно отвечает
+     */
+    public TgMessageDto withReplyTo(TgMessageDto message, Long replyToMessageId, String replyToText) {
+        return TgMessageDto.builder()
+            .senderId(message.getSenderId())
+            .dateTime(message.getDateTime())
+            .messageId(message.getMessageId())
+            .replyToText(replyToText)
+            .replyToMessageId(replyToMessageId)
+            .text(message.getText())
+            .mediaType(message.getMediaType())
+            .media(message.getMedia())
+            .build();
+    }
+
+    /**
+     * Создает копию DTO сообщения с описанием вложения
+     */
+    public TgMessageDto withMedia(TgMessageDto message, TgMediaDto media) {
+        return TgMessageDto.builder()
+            .senderId(message.getSenderId())
+            .dateTime(message.getDateTime())
+            .messageId(message.getMessageId())
+            .replyToText(message.getReplyToText())
+            .replyToMessageId(message.getReplyToMessageId())
+            .text(message.getText())
+            .mediaType(message.getMediaType())
+            .media(media)
+            .build();
+    }
+
+    @Nullable
+    public Long extractSenderId(TdApi.Message message) {
+        Long senderId = null;
+        if (message.senderId instanceof TdApi.MessageSenderChat chatSender) {
+            senderId = chatSender.chatId;
+        } else if (message.senderId instanceof TdApi.MessageSenderUser userSender) {
+            senderId = userSender.userId;
+        }
+        return senderId;
+    }
+
+    /**
+     * @return тип вложения, null если в сообщении нет фото или документа
+     */
+    @Nullable
+    public String extractMediaType(TdApi.MessageContent content) {
+        if (content instanceof TdApi.MessagePhoto) {
+            return PHOTO_MEDIA_TYPE;
+        }
+
+        if (content instanceof TdApi.MessageDocument) {
+            return DOCUMENT_MEDIA_TYPE;
+        }
+
+        return null;
+    }
+
+    public String extractMessageTextSafely(TdApi.MessageContent content) {
+        if (content instanceof TdApi.MessageText messageText) {
+            return messageText.text.text;
+        }
+
+        if (content instanceof TdApi.MessagePhoto photo) {
+            return buildMediaText("<Приложено фото>", photo.caption.text);
+        }
+
+        if (content instanceof TdApi.MessageVideo messageVideo) {
+            return buildMediaText("<Приложено видео>", messageVideo.caption.text);
+        }
+
+        if (content instanceof TdApi.MessageAudio audio) {
+            return buildMediaText("<Приложено аудио>", audio.caption.text);
+        }
+
+        if (content instanceof TdApi.MessageDocument document) {
+            return buildMediaText("<Приложен документ>", document.caption.text);
+        }
+
+        if (content instanceof TdApi.MessageVoiceNote voiceNote) {
+            return buildMediaText("<Приложено голосовое сообщение>", voiceNote.caption.text);
+        }
+
+        if (content instanceof TdApi.MessageVideoNote) {
+            return "<Приложено видеосообщение>";
+        }
+
+        if (content instanceof TdApi.MessageSticker) {
+            return "<Приложен стикер>";
+        }
+
+        if (content instanceof TdApi.MessageAnimation animation) {
+            return buildMediaText("<Приложена анимация>", animation.caption.text);
+        }
+
+        return "<Неизвестный тип сообщения>";
+    }
+
+    private String buildMediaText(String mediaLabel, String caption) {
+        if (caption == null || caption.isEmpty()) {
+            return mediaLabel;
+        }
+
+        return mediaLabel + "\n" + caption;
+    }
+}
@@ -0,0 +1,408 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import it.tdlight.client.TelegramError;
+import it.tdlight.jni.TdApi;
+import jakarta.annotation.Nullable;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+import lombok.extern.slf4j.Slf4j;
+import ru.panyukovnn.tgchatscollector.exception.BusinessException;
+import ru.panyukovnn.tgchatscollector.property.TgRequestLimiterProperty;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Единая точка отправки запросов в TDLib.
+ * Запрос выполняет аккаунт, выбранный пулом аккаунтов; ограничения ниже действуют для каждого аккаунта отдельно.
+ * Ограничивает количество одновременно выполняемых запросов, остальные ставятся в очередь
+ * в порядке поступления; ожидание в очереди не занимает потоков.
+ * Частота запросов ограничивается отдельно для каждого типа запроса. Получив FLOOD_WAIT,
+ * приостанавливает отправку всех запросов аккаунта на указанное телеграм время и повторяет запрос.
+ * Ответы передаются в пуле воркеров, поэтому продолжения цепочек запросов не выполняются в потоке TDLib
+ */
+@Slf4j
+@ApplicationScoped
+public class TgRequestExecutor {
+
+    private static final int FLOOD_WAIT_ERROR_CODE = 429;
+    private static final Pattern FLOOD_WAIT_SECONDS_PATTERN = Pattern.compile("(?:FLOOD_WAIT_|retry after )(\\d+)");
+
+    private final Map<String, Timer> requestTimers = new ConcurrentHashMap<>();
+    private final AtomicLong completedWaits = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong floodWaits = new AtomicLong();
+
+    private Timer queueWaitTimer;
+    private Counter floodWaitCounter;
+
+    @Inject
+    TgAccountPool tgAccountPool;
+
+    @Inject
+    TgRequestLimiterProperty tgRequestLimiterProperty;
+
+    @Inject
+    MeterRegistry meterRegistry;
+
+    @PostConstruct
+    void initMetrics() {
+        Gauge.builder("tdlib.requests.in.flight", this, TgRequestExecutor::getInFlight)
+            .description("Количество выполняемых запросов к TDLib")
+            .register(meterRegistry);
+        Gauge.builder("tdlib.requests.queue.depth", this, TgRequestExecutor::getQueueDepth)
+            .description("Количество запросов к TDLib, ожидающих в очереди")
+            .register(meterRegistry);
+        queueWaitTimer = Timer.builder("tdlib.requests.queue.wait")
+            .description("Время ожидания запроса к TDLib в очереди")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+        floodWaitCounter = Counter.builder("tdlib.requests.flood.waits")
+            .description("Количество запросов, отклоненных телеграм с FLOOD_WAIT")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Отправляет запрос в TDLib, как только освободится место среди выполняемых запросов
+     *
+     * @param function запрос
+     * @return ответ TDLib, завершается в пуле воркеров
+     */
+    public <R extends TdApi.Object> CompletableFuture<R> send(TdApi.Function<R> function) {
+        return send(tgAccountPool.route(function), function);
+    }
+
+    /**
+     * Отправляет запрос в TDLib от указанного аккаунта, в обход выбора аккаунта пулом
+     *
+     * @param account  аккаунт, null если ни один аккаунт еще не авторизован
+     * @param function запрос
+     * @return ответ TDLib, завершается в пуле воркеров
+     */
+    <R extends TdApi.Object> CompletableFuture<R> send(@Nullable TgAccount account, TdApi.Function<R> function) {
+        // До авторизации клиент еще создается в фоне, запрос ждал бы его, заняв место среди выполняемых
+        if (account == null) {
+            return CompletableFuture.failedFuture(new BusinessException("0c5a", "Клиент телеграм еще не авторизован, повторите запрос позже"));
+        }
+
+        return enqueue(account, function);
+    }
+
+    /**
+     * Отправляет запрос всем авторизованным аккаунтам, кроме того, который выбран бы для него пулом.
+     * Используется, чтобы другие аккаунты узнали публичный чат и могли разделить нагрузку по нему.
+     * Ошибки только логируются
+     *
+     * @param function запрос
+     */
+    public void sendToOtherAccounts(TdApi.Function<?> function) {
+        for (TgAccount account : tgAccountPool.authorizedAccountsExcept(tgAccountPool.route(function))) {
+            enqueue(account, function)
+                .whenComplete((ignored, e) -> {
+                    if (e != null) {
+                        log.warn("Запрос {} аккаунта {} не выполнен: {}", requestType(function), account.name, e.getMessage());
+                    }
+                });
+        }
+    }
+
+    /**
+     * @return количество запросов, ожидающих отправки, по всем аккаунтам
+     */
+    public int getQueueDepth() {
+        int queueDepth = 0;
+
+        for (TgAccount account : tgAccountPool.getAccounts()) {
+            synchronized (account.pendingRequests) {
+                queueDepth += account.pendingRequests.size();
+            }
+        }
+
+        return queueDepth;
+    }
+
+    /**
+     * @return количество выполняемых запросов по всем аккаунтам
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+
+        for (TgAccount account : tgAccountPool.getAccounts()) {
+            synchronized (account.pendingRequests) {
+                inFlight += account.inFlight;
+            }
+        }
+
+        return inFlight;
+    }
+
+    /**
+     * @return среднее время ожидания запроса в очереди
+     */
+    public Duration getAverageWait() {
+        long count = completedWaits.get();
+
+        return count == 0 ? Duration.ZERO : Duration.ofNanos(totalWaitNanos.get() / count);
+    }
+
+    /**
+     * @return максимальное время ожидания запроса в очереди
+     */
+    public Duration getMaxWait() {
+        return Duration.ofNanos(maxWaitNanos.get());
+    }
+
+    /**
+     * @return количество полученных FLOOD_WAIT
+     */
+    public long getFloodWaitCount() {
+        return floodWaits.get();
+    }
+
+    /**
+     * @return сколько еще отправка запросов приостановлена из-за FLOOD_WAIT, наибольшая пауза среди аккаунтов
+     */
+    public Duration getRemainingPause() {
+        long now = System.nanoTime();
+        long remainingPauseNanos = 0L;
+
+        for (TgAccount account : tgAccountPool.getAccounts()) {
+            remainingPauseNanos = Math.max(remainingPauseNanos, account.pausedUntilNanos.get() - now);
+        }
+
+        return Duration.ofNanos(remainingPauseNanos);
+    }
+
+    private <R extends TdApi.Object> CompletableFuture<R> enqueue(TgAccount account, TdApi.Function<R> function) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        long enqueuedAt = System.nanoTime();
+        Runnable request = () -> {
+            recordQueueWait(enqueuedAt);
+            execute(account, function, result, 0);
+        };
+
+        boolean acquired;
+        synchronized (account.pendingRequests) {
+            acquired = account.inFlight < tgRequestLimiterProperty.maxInFlight();
+
+            if (acquired) {
+                account.inFlight++;
+            } else {
+                account.pendingRequests.addLast(request);
+            }
+        }
+
+        if (acquired) {
+            request.run();
+        }
+
+        return result;
+    }
+
+    /**
+     * Отправляет запрос после паузы по FLOOD_WAIT и ожидания своей очереди по частоте запросов.
+     * Место среди выполняемых запросов удерживается до получения окончательного ответа
+     */
+    private <R extends TdApi.Object> void execute(TgAccount account, TdApi.Function<R> function, CompletableFuture<R> result, int attempt) {
+        long now = System.nanoTime();
+        long rateDelayNanos = account.tokenBuckets.computeIfAbsent(requestType(function), this::createTokenBucket)
+            .reserve(now);
+        long delayNanos = Math.max(rateDelayNanos, account.pausedUntilNanos.get() - now);
+
+        if (delayNanos > 0) {
+            CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS)
+                .execute(() -> sendToTdLib(account, function, result, attempt));
+        } else {
+            sendToTdLib(account, function, result, attempt);
+        }
+    }
+
+    private <R extends TdApi.Object> void sendToTdLib(TgAccount account, TdApi.Function<R> function, CompletableFuture<R> result, int attempt) {
+        long sentAt = System.nanoTime();
+        CompletableFuture<R> response;
+        try {
+            response = account.client.send(function);
+        } catch (RuntimeException e) {
+            release(account);
+            result.completeExceptionally(e);
+
+            return;
+        }
+
+        response.whenComplete((value, e) -> {
+            requestTimer(function, e == null).record(System.nanoTime() - sentAt, TimeUnit.NANOSECONDS);
+
+            if (e != null) {
+                long floodWaitSeconds = parseFloodWaitSeconds(e);
+
+                if (floodWaitSeconds >= 0 && shouldRetry(account, function, attempt, floodWaitSeconds)) {
+                    pause(account, floodWaitSeconds);
+                    execute(account, function, result, attempt + 1);
+
+                    return;
+                }
+            }
+
+            // Место освобождается до передачи ответа, чтобы зависимые запросы не ждали лишнюю очередь
+            release(account);
+
+            // Поток TDLib доставляет ответы и обновления всех сборов, обработка ответа в нем задержала бы их все
+            Infrastructure.getDefaultWorkerPool().execute(() -> {
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(value);
+                }
+            });
+        });
+    }
+
+    private boolean shouldRetry(TgAccount account, TdApi.Function<?> function, int attempt, long floodWaitSeconds) {
+        floodWaits.incrementAndGet();
+        floodWaitCounter.increment();
+
+        if (attempt >= tgRequestLimiterProperty.floodWaitMaxRetries()) {
+            log.warn("Запрос {} аккаунта {} отклонен с FLOOD_WAIT {} с, попытки повтора исчерпаны",
+                requestType(function), account.name, floodWaitSeconds);
+
+            return false;
+        }
+
+        if (Duration.ofSeconds(floodWaitSeconds).compareTo(tgRequestLimiterProperty.floodWaitMaxDelay()) > 0) {
+            log.warn("Запрос {} аккаунта {} отклонен с FLOOD_WAIT {} с, ожидание превышает допустимое",
+                requestType(function), account.name, floodWaitSeconds);
+
+            return false;
+        }
+
+        log.warn("Запрос {} аккаунта {} отклонен с FLOOD_WAIT {} с, отправка запросов аккаунта приостановлена, попытка повтора: {}",
+            requestType(function), account.name, floodWaitSeconds, attempt + 1);
+
+        return true;
+    }
+
+    /**
+     * Приостанавливает отправку всех запросов аккаунта, чтобы не получать FLOOD_WAIT по каждому из них
+     */
+    private void pause(TgAccount account, long floodWaitSeconds) {
+        long pausedUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(floodWaitSeconds);
+        account.pausedUntilNanos.accumulateAndGet(pausedUntil, Math::max);
+    }
+
+    private void recordQueueWait(long enqueuedAt) {
+        long waitNanos = System.nanoTime() - enqueuedAt;
+        completedWaits.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        queueWaitTimer.record(waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Таймер времени выполнения запроса TDLib, без учета ожидания в очереди
+     */
+    private Timer requestTimer(TdApi.Function<?> function, boolean success) {
+        String requestType = requestType(function);
+        String outcome = success ? "success" : "error";
+
+        return requestTimers.computeIfAbsent(requestType + ":" + outcome, key -> Timer.builder("tdlib.requests")
+            .description("Время выполнения запроса к TDLib")
+            .tag("type", requestType)
+            .tag("outcome", outcome)
+            .publishPercentileHistogram()
+            .register(meterRegistry));
+    }
+
+    private void release(TgAccount account) {
+        Runnable nextRequest;
+        synchronized (account.pendingRequests) {
+            nextRequest = account.pendingRequests.pollFirst();
+
+            if (nextRequest == null) {
+                account.inFlight--;
+            }
+        }
+
+        // Место освободившегося запроса сразу переходит следующему в очереди
+        if (nextRequest != null) {
+            nextRequest.run();
+        }
+    }
+
+    private TokenBucket createTokenBucket(String requestType) {
+        double ratePerSecond = tgRequestLimiterProperty.ratePerSecond()
+            .getOrDefault(requestType, tgRequestLimiterProperty.defaultRatePerSecond());
+
+        return new TokenBucket(ratePerSecond, System.nanoTime());
+    }
+
+    private static String requestType(TdApi.Function<?> function) {
+        return function.getClass().getSimpleName();
+    }
+
+    /**
+     * @return время ожидания в секундах или -1, если ошибка не FLOOD_WAIT
+     */
+    private static long parseFloodWaitSeconds(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+        if (!(cause instanceof TelegramError telegramError) || telegramError.getErrorCode() != FLOOD_WAIT_ERROR_CODE) {
+            return -1L;
+        }
+
+        Matcher matcher = FLOOD_WAIT_SECONDS_PATTERN.matcher(String.valueOf(telegramError.getErrorMessage()));
+
+        // Если время не указано, ждем минимально
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : 1L;
+    }
+
+    /**
+     * Ограничение частоты запросов одного типа. Запас равен количеству запросов за секунду,
+     * при его исчерпании каждый следующий запрос резервирует время в будущем, поэтому
+     * запросы выстраиваются с равномерным интервалом, а не отправляются пачками
+     */
+    static final class TokenBucket {
+
+        private final double tokensPerNano;
+        private final double capacity;
+
+        private double tokens;
+        private long refilledAtNanos;
+
+        private TokenBucket(double ratePerSecond, long nowNanos) {
+            this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1.0, ratePerSecond);
+            this.tokens = capacity;
+            this.refilledAtNanos = nowNanos;
+        }
+
+        /**
+         * Резервирует один запрос
+         *
+         * @return через сколько наносекунд запрос можно отправить
+         */
+        synchronized long reserve(long nowNanos) {
+            if (nowNanos > refilledAtNanos) {
+                tokens = Math.min(capacity, tokens + (nowNanos - refilledAtNanos) * tokensPerNano);
+                refilledAtNanos = nowNanos;
+            }
+
+            tokens -= 1;
+
+            return tokens >= 0 ? 0L : (long) (-tokens / tokensPerNano);
+        }
+    }
+}
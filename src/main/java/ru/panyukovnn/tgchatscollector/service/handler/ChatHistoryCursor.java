@@ -0,0 +1,113 @@
+package ru.panyukovnn.tgchatscollector.service.handler;
+
+import jakarta.annotation.Nullable;
+import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryRequest;
+import ru.panyukovnn.tgchatscollector.exception.BusinessException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Base64;
+
+/**
+ * Позиция постраничной загрузки истории чата. Клиенту отдается в виде непрозрачной строки,
+ * по которой следующая страница загружается сразу с нужного сообщения, без повторного просмотра более новых
+ *
+ * @param chatId        идентификатор чата
+ * @param topicId       идентификатор топика (может быть null)
+ * @param lastMessageId ID самого старого сообщения предыдущей страницы, 0 для первой страницы
+ * @param dateFrom      дата начала периода в UTC (может быть null)
+ * @param dateTo        дата окончания периода в UTC (может быть null)
+ */
+record ChatHistoryCursor(long chatId,
+                         @Nullable Long topicId,
+                         long lastMessageId,
+                         @Nullable LocalDateTime dateFrom,
+                         @Nullable LocalDateTime dateTo) {
+
+    private static final String VERSION = "1";
+    private static final String SEPARATOR = ":";
+
+    /**
+     * Позиция загрузки по запросу: из курсора, если он передан, иначе первая страница.
+     * Чат, топик и период, указанные в запросе вместе с курсором, должны совпадать с курсором
+     */
+    static ChatHistoryCursor fromRequest(SearchChatHistoryRequest request) {
+        if (request.getCursor() == null) {
+            if (request.getChatId() == null) {
+                throw new BusinessException("7e3a", "Необходимо указать chatId либо курсор");
+            }
+
+            return new ChatHistoryCursor(request.getChatId(), request.getTopicId(), 0L, request.getDateFrom(), request.getDateTo());
+        }
+
+        ChatHistoryCursor cursor = decode(request.getCursor());
+
+        if (request.getChatId() != null && request.getChatId() != cursor.chatId()) {
+            throw new BusinessException("7e3b", "Курсор относится к другому чату");
+        }
+
+        if (request.getTopicId() != null && !request.getTopicId().equals(cursor.topicId())) {
+            throw new BusinessException("7e3d", "Курсор относится к другому топику");
+        }
+
+        if (!isSameDate(request.getDateFrom(), cursor.dateFrom()) || !isSameDate(request.getDateTo(), cursor.dateTo())) {
+            throw new BusinessException("7e3e", "Период запроса не совпадает с периодом курсора");
+        }
+
+        return cursor;
+    }
+
+    /**
+     * Позиция следующей страницы
+     *
+     * @param oldestMessageId ID самого старого сообщения загруженной страницы
+     */
+    ChatHistoryCursor next(long oldestMessageId) {
+        return new ChatHistoryCursor(chatId, topicId, oldestMessageId, dateFrom, dateTo);
+    }
+
+    String encode() {
+        String value = String.join(SEPARATOR,
+            VERSION,
+            Long.toString(chatId),
+            topicId != null ? topicId.toString() : "",
+            Long.toString(lastMessageId),
+            dateFrom != null ? Long.toString(dateFrom.toEpochSecond(ZoneOffset.UTC)) : "",
+            dateTo != null ? Long.toString(dateTo.toEpochSecond(ZoneOffset.UTC)) : ""
+        );
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Курсор хранит даты с точностью до секунды, поэтому и сравниваются они с этой точностью
+     */
+    private static boolean isSameDate(@Nullable LocalDateTime requestDate, @Nullable LocalDateTime cursorDate) {
+        if (requestDate == null) {
+            return true;
+        }
+
+        return cursorDate != null && requestDate.toEpochSecond(ZoneOffset.UTC) == cursorDate.toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static ChatHistoryCursor decode(String cursor) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(SEPARATOR, -1);
+
+            if (parts.length != 6 || !VERSION.equals(parts[0])) {
+                throw new IllegalArgumentException("Неизвестный формат курсора");
+            }
+
+            return new ChatHistoryCursor(
+                Long.parseLong(parts[1]),
+                parts[2].isEmpty() ? null : Long.valueOf(parts[2]),
+                Long.parseLong(parts[3]),
+                parts[4].isEmpty() ? null : LocalDateTime.ofEpochSecond(Long.parseLong(parts[4]), 0, ZoneOffset.UTC),
+                parts[5].isEmpty() ? null : LocalDateTime.ofEpochSecond(Long.parseLong(parts[5]), 0, ZoneOffset.UTC)
+            );
+        } catch (IllegalArgumentException e) {
+            throw new BusinessException("7e3c", "Некорректный курсор");
+        }
+    }
+}
@@ -1,117 +1,436 @@
 package ru.panyukovnn.tgchatscollector.service.handler;
 
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import jakarta.annotation.Nullable;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 import lombok.extern.slf4j.Slf4j;
 import ru.panyukovnn.tgchatscollector.exception.BusinessException;
-import ru.panyukovnn.tgchatscollector.dto.ChatInfoDto;
+import ru.panyukovnn.tgchatscollector.dto.bulkexport.BulkExportChatResult;
+import ru.panyukovnn.tgchatscollector.dto.bulkexport.BulkExportRequest;
+import ru.panyukovnn.tgchatscollector.dto.MediaMode;
 import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
 import ru.panyukovnn.tgchatscollector.dto.lastchats.LastChatsResponse;
+import ru.panyukovnn.tgchatscollector.dto.recentmessages.RecentMessagesRequest;
+import ru.panyukovnn.tgchatscollector.dto.response.CommonResponseError;
 import ru.panyukovnn.tgchatscollector.dto.searchchat.SearchChatsResponse;
 import ru.panyukovnn.tgchatscollector.dto.searchchat.SearchPrivateChatRequest;
 import ru.panyukovnn.tgchatscollector.dto.searchchat.SearchPublicChannelByIdRequest;
+import ru.panyukovnn.tgchatscollector.dto.searchchathistory.ChatHistoryStreamRecord;
 import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryRequest;
 import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryResponse;
+import ru.panyukovnn.tgchatscollector.dto.searchmessages.SearchMessagesRequest;
+import ru.panyukovnn.tgchatscollector.dto.searchmessages.SearchMessagesResponse;
 import ru.panyukovnn.tgchatscollector.dto.telegram.ChatInfo;
 import ru.panyukovnn.tgchatscollector.dto.telegram.TopicInfo;
+import ru.panyukovnn.tgchatscollector.property.TgBulkExportProperty;
+import ru.panyukovnn.tgchatscollector.property.TgChatLoaderProperty;
+import ru.panyukovnn.tgchatscollector.property.TgMessageIndexProperty;
+import ru.panyukovnn.tgchatscollector.service.LiveMessageBuffer;
+import ru.panyukovnn.tgchatscollector.service.MediaDownloadService;
+import ru.panyukovnn.tgchatscollector.service.MessageSearchIndex;
+import ru.panyukovnn.tgchatscollector.service.MessageStoreService;
 import ru.panyukovnn.tgchatscollector.service.TgClientService;
 
+import java.io.File;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 @Slf4j
 @ApplicationScoped
 public class TgCollectorHandler {
 
     private static final int SEARCH_CHATS_LIMIT = 5;
+    private static final String FATAL_DEFAULT_MESSAGE = "Что-то пошло не так, обратитесь к администратору";
 
     @Inject
     TgClientService tgClientService;
 
-    public LastChatsResponse handleLastChats(Integer count) {
-        List<ChatInfoDto> lastChatDtos = tgClientService.findLastChats(count);
+    @Inject
+    MessageStoreService messageStoreService;
+
+    @Inject
+    LiveMessageBuffer liveMessageBuffer;
+
+    @Inject
+    MessageSearchIndex messageSearchIndex;
+
+    @Inject
+    MediaDownloadService mediaDownloadService;
+
+    @Inject
+    TgBulkExportProperty tgBulkExportProperty;
+
+    @Inject
+    TgChatLoaderProperty tgChatLoaderProperty;
+
+    @Inject
+    TgMessageIndexProperty tgMessageIndexProperty;
 
-        return new LastChatsResponse(lastChatDtos);
+    public CompletableFuture<LastChatsResponse> handleLastChats(Integer count) {
+        return tgClientService.findLastChats(count)
+            .thenApply(LastChatsResponse::new);
     }
 
-    public SearchChatsResponse handleFindPrivateChat(SearchPrivateChatRequest searchRequest) {
+    public CompletableFuture<SearchChatsResponse> handleFindPrivateChat(SearchPrivateChatRequest searchRequest) {
         String privateChatNamePart = searchRequest.getPrivateChatNamePart();
         String topicNamePart = searchRequest.getTopicNamePart();
 
-        List<ChatInfo> chats = tgClientService.searchChats(null, null, privateChatNamePart);
+        return tgClientService.searchChats(null, null, privateChatNamePart, SEARCH_CHATS_LIMIT)
+            .thenCompose(chats -> {
+                if (chats == null || chats.isEmpty()) {
+                    throw new BusinessException("31ff", "Не удалось найти ни одного чата по заданным параметрам");
+                }
+
+                return createSearchChatResponse(chats, topicNamePart);
+            });
+    }
+
+    public CompletableFuture<SearchChatsResponse> handleFindPublicChannelById(SearchPublicChannelByIdRequest searchPublicChannelByIdRequest) {
+        String publicChatName = searchPublicChannelByIdRequest.getPublicChatName();
+
+        return tgClientService.searchChats(null, publicChatName, null, SEARCH_CHATS_LIMIT)
+            .thenCompose(chats -> {
+                if (chats == null || chats.isEmpty()) {
+                    throw new BusinessException("31ff", "Не удалось найти ни одного чата по заданным параметрам");
+                }
+
+                return createSearchChatResponse(chats, null);
+            });
+    }
+
+    /**
+     * Функционал намеренно предельно ограничен, можно грузить либо из бд, либо с последней даты, непосредственно из тг.
+     * При включенном локальном хранилище из тг догружаются только новые сообщения.
+     * Если сообщений набралось на полную страницу, в ответе возвращается курсор следующей, более старой страницы
+     *
+     * @param searchChatHistoryRequest запрос на поиск сообщений
+     * @return история сообщений
+     */
+    public CompletableFuture<SearchChatHistoryResponse> handleSearchChatHistoryByPeriod(SearchChatHistoryRequest searchChatHistoryRequest) {
+        return searchChatHistory(searchChatHistoryRequest, searchChatHistoryRequest.getMediaMode());
+    }
+
+    private CompletableFuture<SearchChatHistoryResponse> searchChatHistory(SearchChatHistoryRequest searchChatHistoryRequest,
+                                                                           @Nullable MediaMode mediaMode) {
+        ChatHistoryCursor cursor = ChatHistoryCursor.fromRequest(searchChatHistoryRequest);
+        long chatId = cursor.chatId();
+        int limit = resolveLimit(searchChatHistoryRequest);
+
+        CompletableFuture<ChatInfo> chatInfo = tgClientService.findChatById(chatId);
+
+        return tgClientService.findTopicInfoById(chatId, cursor.topicId())
+            .thenCompose(topicInfo -> messageStoreService.collectMessages(
+                    chatId, topicInfo, cursor.lastMessageId(), limit, cursor.dateFrom(), cursor.dateTo()
+                )
+                .thenCompose(messages -> mediaDownloadService.attachMedia(chatId, messages, mediaMode))
+                .thenCombine(chatInfo, (messages, chat) -> {
+                    List<TgMessageDto> messageDtos = sortByDateTime(messages);
+                    long oldestMessageId = messages.stream()
+                        .mapToLong(TgMessageDto::getMessageId)
+                        .min()
+                        .orElse(0L);
+
+                    SearchChatHistoryResponse response = createSearchChatHistoryResponse(chat, topicInfo, messageDtos.size(), messageDtos);
+                    response.setNextCursor(createNextCursor(cursor, messageDtos.size(), limit, oldestMessageId));
+
+                    return response;
+                }));
+    }
+
+    /**
+     * Потоковая выгрузка истории чата. Сообщения передаются обработчику по мере загрузки, от новых к старым,
+     * последней передается итоговая строка с общим количеством сообщений.
+     * Выгрузка всегда читает историю из телеграм, минуя локальное хранилище: хранилище отдает сообщения только
+     * после синхронизации всего запрошенного отрезка, что лишило бы выгрузку потоковости. Хранилище получает те же
+     * правки и удаления из обновлений, поэтому выгрузки расходятся только в правках, сделанных пока сервис был остановлен
+     *
+     * @param searchChatHistoryRequest запрос на поиск сообщений
+     * @param recordsConsumer          обработчик очередной пачки строк выгрузки, результат завершается, когда пачка принята.
+     *                                 Следующая страница обрабатывается после этого, так медленный клиент притормаживает сбор
+     * @return завершение выгрузки
+     */
+    public CompletableFuture<Void> handleStreamChatHistory(SearchChatHistoryRequest searchChatHistoryRequest,
+                                                           Function<List<ChatHistoryStreamRecord>, CompletableFuture<Void>> recordsConsumer) {
+        ChatHistoryCursor cursor = ChatHistoryCursor.fromRequest(searchChatHistoryRequest);
+        long chatId = cursor.chatId();
+        int limit = resolveLimit(searchChatHistoryRequest);
+        // Сообщения приходят от новых к старым, последнее переданное - самое старое
+        AtomicLong oldestMessageId = new AtomicLong();
+
+        CompletableFuture<ChatInfo> chatInfo = tgClientService.findChatById(chatId);
+
+        return tgClientService.findTopicInfoById(chatId, cursor.topicId())
+            .thenCompose(topicInfo -> tgClientService.collectMessages(
+                    chatId,
+                    topicInfo,
+                    cursor.lastMessageId(),
+                    limit,
+                    cursor.dateFrom(),
+                    cursor.dateTo(),
+                    pageMessages -> {
+                        if (!pageMessages.isEmpty()) {
+                            oldestMessageId.set(pageMessages.get(pageMessages.size() - 1).getMessageId());
+                        }
+
+                        return recordsConsumer.apply(pageMessages.stream()
+                            .map(message -> ChatHistoryStreamRecord.builder()
+                                .type(ChatHistoryStreamRecord.Type.MESSAGE)
+                                .message(message)
+                                .build())
+                            .toList());
+                    }
+                )
+                .thenCombine(chatInfo, (totalCount, chat) -> {
+                    SearchChatHistoryResponse summary = createSearchChatHistoryResponse(chat, topicInfo, totalCount, null);
+                    summary.setNextCursor(createNextCursor(cursor, totalCount, limit, oldestMessageId.get()));
+
+                    return ChatHistoryStreamRecord.builder()
+                        .type(ChatHistoryStreamRecord.Type.SUMMARY)
+                        .summary(summary)
+                        .build();
+                }))
+            .thenCompose(summaryRecord -> recordsConsumer.apply(List.of(summaryRecord)));
+    }
+
+    /**
+     * Выгрузка истории нескольких чатов. Одновременно выгружается не более parallelism чатов,
+     * результат по каждому чату передается обработчику сразу после завершения его выгрузки.
+     * Ошибка выгрузки одного чата не прерывает выгрузку остальных. Фото и документы не передаются, mediaMode чатов не учитывается:
+     * загрузка файлов множества чатов заняла бы очередь загрузок и лимиты запросов аккаунтов
+     *
+     * @param bulkExportRequest запрос на выгрузку
+     * @param resultConsumer    обработчик результата выгрузки чата, результат завершается, когда строка принята.
+     *                          Обработчик вызывается одновременно из нескольких выгрузок
+     * @return завершение выгрузки всех чатов
+     */
+    public CompletableFuture<Void> handleBulkExport(BulkExportRequest bulkExportRequest,
+                                                    Function<BulkExportChatResult, CompletableFuture<Void>> resultConsumer) {
+        Queue<SearchChatHistoryRequest> pendingChats = new ConcurrentLinkedQueue<>(bulkExportRequest.getChats());
+        int parallelism = Math.min(tgBulkExportProperty.parallelism(), pendingChats.size());
+
+        log.info("Начата выгрузка чатов: {}, одновременно: {}", pendingChats.size(), parallelism);
 
-        if (chats == null || chats.isEmpty()) {
-            throw new BusinessException("31ff", "Не удалось найти ни одного чата по заданным параметрам");
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[parallelism];
+
+        for (int i = 0; i < parallelism; i++) {
+            workers[i] = exportNextChat(pendingChats, resultConsumer);
         }
 
-        return createSearchChatResponse(chats, topicNamePart);
+        return CompletableFuture.allOf(workers);
     }
 
-    public SearchChatsResponse handleFindPublicChannelById(SearchPublicChannelByIdRequest searchPublicChannelByIdRequest) {
-        String publicChatName = searchPublicChannelByIdRequest.getPublicChatName();
+    /**
+     * Последние сообщения отслеживаемого чата из буфера новых сообщений, без запросов истории в телеграм
+     *
+     * @param recentMessagesRequest запрос последних сообщений
+     * @return последние сообщения от старых к новым
+     */
+    public CompletableFuture<SearchChatHistoryResponse> handleRecentMessages(RecentMessagesRequest recentMessagesRequest) {
+        Long chatId = recentMessagesRequest.getChatId();
+        Long topicId = recentMessagesRequest.getTopicId();
+
+        if (!liveMessageBuffer.isTracked(chatId)) {
+            throw new BusinessException("a4e2", "Новые сообщения чата не отслеживаются, воспользуйтесь поиском истории");
+        }
+
+        CompletableFuture<ChatInfo> chatInfo = tgClientService.findChatById(chatId);
+
+        return tgClientService.findTopicInfoById(chatId, topicId)
+            .thenCombine(chatInfo, (topicInfo, chat) -> {
+                List<TgMessageDto> messageDtos = liveMessageBuffer.findRecentMessages(chatId, topicInfo, recentMessagesRequest.getLimit());
+
+                return createSearchChatHistoryResponse(chat, topicInfo, messageDtos.size(), messageDtos);
+            });
+    }
+
+    /**
+     * Файл из сообщения по его постоянному идентификатору, из телеграм загружается только при первом запросе
+     *
+     * @param uniqueId идентификатор файла из описания медиа в истории сообщений
+     * @return файл на диске
+     */
+    public CompletableFuture<File> handleGetMedia(String uniqueId) {
+        return mediaDownloadService.getMedia(uniqueId)
+            .thenApply(Path::toFile);
+    }
+
+    /**
+     * Полнотекстовый поиск по проиндексированным сообщениям, без запросов истории в телеграм.
+     * В индекс попадают только сообщения, которые уже собирались из телеграм
+     *
+     * @param searchMessagesRequest поисковый запрос
+     * @return найденные сообщения в порядке релевантности
+     */
+    public CompletableFuture<SearchMessagesResponse> handleSearchMessages(SearchMessagesRequest searchMessagesRequest) {
+        Long chatId = searchMessagesRequest.getChatId();
+        Long topicId = searchMessagesRequest.getTopicId();
+        LocalDateTime dateFrom = searchMessagesRequest.getDateFrom();
+        LocalDateTime dateTo = searchMessagesRequest.getDateTo();
+        int limit = searchMessagesRequest.getLimit() != null
+            ? searchMessagesRequest.getLimit()
+            : tgMessageIndexProperty.defaultSearchLimit();
+
+        if (!messageSearchIndex.isEnabled()) {
+            throw new BusinessException("5b0c", "Полнотекстовый индекс сообщений отключен");
+        }
+
+        if (topicId != null && chatId == null) {
+            throw new BusinessException("5b0d", "Для поиска по топику необходимо указать chatId");
+        }
+
+        CompletableFuture<TopicInfo> topicInfo = chatId != null
+            ? tgClientService.findTopicInfoById(chatId, topicId)
+            : CompletableFuture.completedFuture(null);
 
-        List<ChatInfo> chats = tgClientService.searchChats(null, publicChatName, null);
+        // Поиск читает индекс с диска, поэтому выполняется в пуле воркеров
+        return topicInfo
+            .thenApplyAsync(topic -> messageSearchIndex.search(
+                searchMessagesRequest.getQuery(),
+                chatId,
+                topic,
+                dateFrom != null ? dateFrom.toEpochSecond(ZoneOffset.UTC) : null,
+                dateTo != null ? dateTo.toEpochSecond(ZoneOffset.UTC) : null,
+                limit
+            ), Infrastructure.getDefaultWorkerPool())
+            .thenApply(SearchMessagesResponse::new);
+    }
+
+    /**
+     * Берет следующий чат из очереди и после его выгрузки переходит к следующему, пока очередь не опустеет.
+     * Выгрузка чата может завершиться сразу, например при ошибке в курсоре, поэтому следующий чат берется в пуле воркеров,
+     * а не рекурсивным вызовом в том же стеке
+     */
+    private CompletableFuture<Void> exportNextChat(Queue<SearchChatHistoryRequest> pendingChats,
+                                                   Function<BulkExportChatResult, CompletableFuture<Void>> resultConsumer) {
+        SearchChatHistoryRequest chatRequest = pendingChats.poll();
 
-        if (chats == null || chats.isEmpty()) {
-            throw new BusinessException("31ff", "Не удалось найти ни одного чата по заданным параметрам");
+        if (chatRequest == null) {
+            return CompletableFuture.completedFuture(null);
         }
 
-        return createSearchChatResponse(chats, null);
+        return CompletableFuture.completedFuture(chatRequest)
+            .thenCompose(request -> searchChatHistory(request, MediaMode.NONE))
+            .handle((response, e) -> toBulkExportChatResult(chatRequest, response, e))
+            .thenCompose(chatResult -> resultConsumer.apply(chatResult)
+                .whenComplete((ignored, e) -> {
+                    if (e != null) {
+                        // Результат отдать некуда, оставшиеся чаты не выгружаем
+                        pendingChats.clear();
+                    }
+                }))
+            .thenComposeAsync(ignored -> exportNextChat(pendingChats, resultConsumer), Infrastructure.getDefaultWorkerPool());
+    }
+
+    private BulkExportChatResult toBulkExportChatResult(SearchChatHistoryRequest chatRequest,
+                                                        SearchChatHistoryResponse response,
+                                                        Throwable e) {
+        BulkExportChatResult.BulkExportChatResultBuilder chatResult = BulkExportChatResult.builder()
+            .chatId(chatRequest.getChatId())
+            .topicId(chatRequest.getTopicId());
+
+        if (e == null) {
+            return chatResult.result(response).build();
+        }
+
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        log.warn("Не удалось выгрузить чат {}: {}", chatRequest.getChatId(), cause.getMessage(), cause);
+
+        CommonResponseError error = cause instanceof BusinessException businessException
+            ? CommonResponseError.builder()
+                .location(businessException.getLocation())
+                .code(businessException.getCode())
+                .message(businessException.getDisplayMessage())
+                .build()
+            : CommonResponseError.builder()
+                .code("fatal")
+                .message(FATAL_DEFAULT_MESSAGE)
+                .build();
+
+        return chatResult.error(error).build();
+    }
+
+    private int resolveLimit(SearchChatHistoryRequest searchChatHistoryRequest) {
+        return searchChatHistoryRequest.getLimit() != null
+            ? searchChatHistoryRequest.getLimit()
+            : tgChatLoaderProperty.defaultMessagesLimit();
     }
 
     /**
-     * Функционал намеренно предельно ограничен, можно грузить либо из бд, либо с последней даты, непосредственно из тг
+     * Курсор следующей страницы. Если страница заполнена не полностью, история за период исчерпана
      *
-     * @param searchChatHistoryRequest запрос на поиск сообщений
-     * @return история сообщений
+     * @return курсор или null, если следующей страницы нет
      */
-    public SearchChatHistoryResponse handleSearchChatHistoryByPeriod(SearchChatHistoryRequest searchChatHistoryRequest) {
-        Long chatId = searchChatHistoryRequest.getChatId();
-        Long topicId = searchChatHistoryRequest.getTopicId();
-        Integer limit = searchChatHistoryRequest.getLimit();
-        LocalDateTime dateFrom = searchChatHistoryRequest.getDateFrom();
-        LocalDateTime dateTo = searchChatHistoryRequest.getDateTo();
+    private static String createNextCursor(ChatHistoryCursor cursor, int collectedCount, int limit, long oldestMessageId) {
+        if (collectedCount == 0 || collectedCount < limit) {
+            return null;
+        }
 
-        ChatInfo chatInfo = tgClientService.findChatById(chatId);
-        TopicInfo topicInfo = tgClientService.findTopicInfoById(chatId, topicId);
+        return cursor.next(oldestMessageId).encode();
+    }
 
-        List<TgMessageDto> messageDtos = tgClientService.collectMessages(chatId, topicInfo, limit, dateFrom, dateTo).stream()
+    /**
+     * Сортирует сообщения от старых к новым
+     */
+    static List<TgMessageDto> sortByDateTime(List<TgMessageDto> messages) {
+        return messages.stream()
             .sorted(Comparator.comparing(TgMessageDto::getDateTime))
             .toList();
+    }
 
+    static SearchChatHistoryResponse createSearchChatHistoryResponse(ChatInfo chatInfo,
+                                                                     TopicInfo topicInfo,
+                                                                     int totalCount,
+                                                                     List<TgMessageDto> messageDtos) {
         return SearchChatHistoryResponse.builder()
             .chatId(chatInfo.chatId())
             .chatTitle(chatInfo.title())
             .chatPublicName(chatInfo.chatPublicName())
             .topicId(topicInfo != null ? topicInfo.topicId() : null)
             .topicName(topicInfo != null ? topicInfo.title() : null)
-            .totalCount(messageDtos.size())
+            .totalCount(totalCount)
             .messages(messageDtos)
             .build();
     }
 
-    private SearchChatsResponse createSearchChatResponse(List<ChatInfo> chats, String topicNamePart) {
-        List<SearchChatsResponse.ChatInfo> chatInfos = chats.stream()
+    private CompletableFuture<SearchChatsResponse> createSearchChatResponse(List<ChatInfo> chats, String topicNamePart) {
+        List<CompletableFuture<SearchChatsResponse.ChatInfo>> chatInfos = chats.stream()
+            .limit(SEARCH_CHATS_LIMIT)
             .map(chat -> {
                 SearchChatsResponse.ChatInfo chatInfo = new SearchChatsResponse.ChatInfo();
                 chatInfo.setId(chat.chatId());
                 chatInfo.setTitle(chat.title());
                 chatInfo.setType(chat.type());
 
-                if (topicNamePart != null && !topicNamePart.isEmpty()) {
-                    List<SearchChatsResponse.TopicInfo> topics = tgClientService.findTopicsByName(chat.chatId(), topicNamePart).stream()
-                        .map(ts -> new SearchChatsResponse.TopicInfo(ts.topicId(), ts.title()))
-                        .toList();
-
-                    chatInfo.setTopics(topics);
+                if (topicNamePart == null || topicNamePart.isEmpty()) {
+                    return CompletableFuture.completedFuture(chatInfo);
                 }
 
-                return chatInfo;
+                return tgClientService.findTopicsByName(chat.chatId(), topicNamePart)
+                    .thenApply(topicInfos -> {
+                        List<SearchChatsResponse.TopicInfo> topics = topicInfos.stream()
+                            .map(ts -> new SearchChatsResponse.TopicInfo(ts.topicId(), ts.title()))
+                            .toList();
+
+                        chatInfo.setTopics(topics);
+
+                        return chatInfo;
+                    });
             })
-            .limit(SEARCH_CHATS_LIMIT)
             .toList();
 
-        return new SearchChatsResponse(chatInfos);
+        return CompletableFuture.allOf(chatInfos.toArray(CompletableFuture[]::new))
+            .thenApply(ignored -> new SearchChatsResponse(chatInfos.stream()
+                .map(CompletableFuture::join)
+                .toList()));
     }
 }
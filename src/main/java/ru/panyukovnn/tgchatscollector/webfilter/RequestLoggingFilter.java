@@ -1,52 +1,108 @@
 package ru.panyukovnn.tgchatscollector.webfilter;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
+import jakarta.inject.Inject;
 import jakarta.ws.rs.container.ContainerRequestContext;
 import jakarta.ws.rs.container.ContainerRequestFilter;
 import jakarta.ws.rs.container.ContainerResponseContext;
 import jakarta.ws.rs.container.ContainerResponseFilter;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.ext.Provider;
+import jakarta.ws.rs.ext.WriterInterceptor;
+import jakarta.ws.rs.ext.WriterInterceptorContext;
 import lombok.extern.slf4j.Slf4j;
+import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryResponse;
+import ru.panyukovnn.tgchatscollector.dto.searchmessages.SearchMessagesResponse;
+import ru.panyukovnn.tgchatscollector.property.TgRequestLoggingProperty;
 
 /**
- * Фильтр для логирования входящих HTTP-запросов и исходящих ответов
+ * Фильтр для логирования входящих HTTP-запросов и исходящих ответов.
+ * Ответ логируется после записи тела: сводка с объемом ответа и количеством сообщений пишется всегда,
+ * а начало тела, ограниченное по размеру, только для выборки запросов
  */
 @Slf4j
 @Provider
-public class RequestLoggingFilter implements ContainerRequestFilter, ContainerResponseFilter {
+public class RequestLoggingFilter implements ContainerRequestFilter, ContainerResponseFilter, WriterInterceptor {
 
     private static final String START_TIME_PROPERTY = "requestStartTime";
+    private static final String BODY_SAMPLED_PROPERTY = "requestBodySampled";
+    private static final String REQUEST_LINE_PROPERTY = "requestLine";
+    private static final String STATUS_PROPERTY = "responseStatus";
     private static final Set<String> METHODS_WITH_BODY = Set.of("POST", "PUT", "PATCH");
 
+    @Inject
+    TgRequestLoggingProperty tgRequestLoggingProperty;
+
     @Override
     public void filter(ContainerRequestContext requestContext) {
+        boolean bodySampled = ThreadLocalRandom.current().nextDouble() < tgRequestLoggingProperty.bodySampleRate();
+        String requestLine = "method=" + requestContext.getMethod() + " path=" + requestContext.getUriInfo().getPath();
+
         requestContext.setProperty(START_TIME_PROPERTY, System.currentTimeMillis());
+        requestContext.setProperty(BODY_SAMPLED_PROPERTY, bodySampled);
+        requestContext.setProperty(REQUEST_LINE_PROPERTY, requestLine);
 
-        String requestBody = readRequestBody(requestContext);
+        String requestBody = bodySampled ? readRequestBody(requestContext) : "";
 
-        log.info("Входящий запрос: {} {} {}{}",
-                requestContext.getMethod(),
-                requestContext.getUriInfo().getPath(),
+        log.info("Входящий запрос: {}{}{}",
+                requestLine,
                 formatQueryParams(requestContext),
-                requestBody.isEmpty() ? "" : ", тело: " + requestBody);
+                requestBody.isEmpty() ? "" : " body=" + requestBody);
     }
 
     @Override
     public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
-        long startTime = (long) requestContext.getProperty(START_TIME_PROPERTY);
-        long durationMs = System.currentTimeMillis() - startTime;
-        Object entity = responseContext.getEntity();
+        // Ответ с телом логируется после его записи, когда известен объем
+        if (responseContext.hasEntity()) {
+            requestContext.setProperty(STATUS_PROPERTY, responseContext.getStatus());
+
+            return;
+        }
 
-        log.info("Исходящий ответ: {} {} - статус: {}, время: {} мс{}",
-                requestContext.getMethod(),
-                requestContext.getUriInfo().getPath(),
+        log.info("Исходящий ответ: {} status={} durationMs={}",
+                requestContext.getProperty(REQUEST_LINE_PROPERTY),
                 responseContext.getStatus(),
-                durationMs,
-                entity != null ? ", тело: " + entity : "");
+                durationMs(requestContext.getProperty(START_TIME_PROPERTY)));
+    }
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        Object startTime = context.getProperty(START_TIME_PROPERTY);
+
+        // Запрос не прошел через фильтр запросов, например, не найден ресурс
+        if (startTime == null) {
+            context.proceed();
+
+            return;
+        }
+
+        int bodyCaptureSize = Boolean.TRUE.equals(context.getProperty(BODY_SAMPLED_PROPERTY)) && isTextual(context.getMediaType())
+                ? tgRequestLoggingProperty.maxBodySize()
+                : 0;
+        LoggingOutputStream loggingOutputStream = new LoggingOutputStream(context.getOutputStream(), bodyCaptureSize);
+        Integer messageCount = countMessages(context.getEntity());
+
+        context.setOutputStream(loggingOutputStream);
+
+        try {
+            context.proceed();
+        } finally {
+            log.info("Исходящий ответ: {} status={} durationMs={} bytes={}{}{}",
+                    context.getProperty(REQUEST_LINE_PROPERTY),
+                    context.getProperty(STATUS_PROPERTY),
+                    durationMs(startTime),
+                    loggingOutputStream.getByteCount(),
+                    messageCount != null ? " messages=" + messageCount : "",
+                    bodyCaptureSize > 0 ? " body=" + loggingOutputStream.getCapturedBody() : "");
+        }
     }
 
     private String readRequestBody(ContainerRequestContext requestContext) {
@@ -58,7 +114,7 @@ public class RequestLoggingFilter implements ContainerRequestFilter, ContainerRe
             byte[] body = requestContext.getEntityStream().readAllBytes();
             requestContext.setEntityStream(new ByteArrayInputStream(body));
 
-            return new String(body, StandardCharsets.UTF_8);
+            return truncate(body);
         } catch (IOException e) {
             log.warn("Не удалось прочитать тело запроса", e);
 
@@ -66,6 +122,16 @@ public class RequestLoggingFilter implements ContainerRequestFilter, ContainerRe
         }
     }
 
+    private String truncate(byte[] body) {
+        int maxBodySize = tgRequestLoggingProperty.maxBodySize();
+
+        if (body.length <= maxBodySize) {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        return new String(body, 0, maxBodySize, StandardCharsets.UTF_8) + "...(" + body.length + " байт)";
+    }
+
     private String formatQueryParams(ContainerRequestContext requestContext) {
         var queryParameters = requestContext.getUriInfo().getQueryParameters();
 
@@ -73,6 +139,83 @@ public class RequestLoggingFilter implements ContainerRequestFilter, ContainerRe
             return "";
         }
 
-        return ", параметры: " + queryParameters;
+        return " params=" + queryParameters;
+    }
+
+    private static long durationMs(Object startTime) {
+        return System.currentTimeMillis() - (long) startTime;
+    }
+
+    /**
+     * Бинарные тела (CBOR, Smile) в лог не пишутся
+     */
+    private static boolean isTextual(MediaType mediaType) {
+        return mediaType != null && (mediaType.getSubtype().endsWith("json") || "text".equals(mediaType.getType()));
+    }
+
+    /**
+     * @return количество сообщений в ответе, null если ответ не содержит сообщений
+     */
+    private static Integer countMessages(Object entity) {
+        if (entity instanceof SearchChatHistoryResponse response && response.getMessages() != null) {
+            return response.getMessages().size();
+        }
+
+        if (entity instanceof SearchMessagesResponse response && response.getMessages() != null) {
+            return response.getMessages().size();
+        }
+
+        return null;
+    }
+
+    /**
+     * Поток, считающий записанные байты и сохраняющий начало тела ответа для лога
+     */
+    private static class LoggingOutputStream extends FilterOutputStream {
+
+        private final ByteArrayOutputStream capturedBody;
+        private final int captureSize;
+        private long byteCount;
+
+        LoggingOutputStream(OutputStream out, int captureSize) {
+            super(out);
+            this.captureSize = captureSize;
+            this.capturedBody = new ByteArrayOutputStream(Math.min(captureSize, 1024));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+
+            if (capturedBody.size() < captureSize) {
+                capturedBody.write(b);
+            }
+
+            byteCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            capture(b, off, len);
+        }
+
+        private void capture(byte[] b, int off, int len) {
+            if (capturedBody.size() < captureSize) {
+                capturedBody.write(b, off, Math.min(len, captureSize - capturedBody.size()));
+            }
+
+            byteCount += len;
+        }
+
+        long getByteCount() {
+            return byteCount;
+        }
+
+        String getCapturedBody() {
+            String body = capturedBody.toString(StandardCharsets.UTF_8);
+
+            return byteCount > capturedBody.size() ? body + "...(" + byteCount + " байт)" : body;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,224 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.quarkus.runtime.configuration.MemorySize;
+import it.tdlight.jni.TdApi;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.panyukovnn.tgchatscollector.property.TgHistoryPageCacheProperty;
+
+import java.math.BigInteger;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class HistoryPageCacheTest {
+
+    private static final long CHAT_ID = -1001823804554L;
+    private static final long OTHER_CHAT_ID = -437083490L;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private HistoryPageCache historyPageCache;
+
+    @BeforeEach
+    void setUp() {
+        historyPageCache = new HistoryPageCache();
+        historyPageCache.tgHistoryPageCacheProperty = new TgHistoryPageCacheProperty() {
+            @Override
+            public Boolean enabled() {
+                return true;
+            }
+
+            @Override
+            public MemorySize maxMemory() {
+                return new MemorySize(BigInteger.valueOf(16 * 1024 * 1024));
+            }
+
+            @Override
+            public Duration expireAfterWrite() {
+                return Duration.ofMinutes(30);
+            }
+        };
+        historyPageCache.meterRegistry = new SimpleMeterRegistry();
+        historyPageCache.init();
+    }
+
+    @Test
+    void getPage_loadsPageOnlyOnce() {
+        TdApi.Messages page = page(CHAT_ID, 300, 200, 100);
+
+        TdApi.Messages first = getPage(CHAT_ID, 300, page);
+        TdApi.Messages second = getPage(CHAT_ID, 300, page(CHAT_ID, 300));
+
+        assertSame(page, first);
+        assertSame(page, second);
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void getPage_doesNotCacheLatestMessages() {
+        getPage(CHAT_ID, 0, page(CHAT_ID, 300));
+        getPage(CHAT_ID, 0, page(CHAT_ID, 300));
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void getPage_doesNotCacheEmptyPage() {
+        getPage(CHAT_ID, 300, page(CHAT_ID));
+        getPage(CHAT_ID, 300, page(CHAT_ID));
+
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void onUpdateDeleteMessages_evictsOnlyPagesWithDeletedMessages() {
+        getPage(CHAT_ID, 300, page(CHAT_ID, 300, 200));
+        getPage(CHAT_ID, 200, page(CHAT_ID, 200, 100));
+        getPage(OTHER_CHAT_ID, 300, page(OTHER_CHAT_ID, 300));
+
+        historyPageCache.onUpdateDeleteMessages(deleteMessages(CHAT_ID, true, false, 100));
+        historyPageCache.onUpdateDeleteMessages(deleteMessages(OTHER_CHAT_ID, true, false, 200));
+        loads.set(0);
+
+        getPage(CHAT_ID, 300, page(CHAT_ID, 300));
+        getPage(CHAT_ID, 200, page(CHAT_ID, 200));
+        getPage(OTHER_CHAT_ID, 300, page(OTHER_CHAT_ID, 300));
+
+        // Перезагружена только страница с удаленным сообщением
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void onUpdateDeleteMessages_evictsPageLoadedAgainAfterDeletion() {
+        getPage(CHAT_ID, 300, page(CHAT_ID, 300, 200));
+        historyPageCache.onUpdateDeleteMessages(deleteMessages(CHAT_ID, true, false, 200));
+        getPage(CHAT_ID, 300, page(CHAT_ID, 300, 100));
+
+        historyPageCache.onUpdateDeleteMessages(deleteMessages(CHAT_ID, true, false, 100));
+        getPage(CHAT_ID, 300, page(CHAT_ID, 300));
+
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    void onUpdateDeleteMessages_ignoresNotPermanentAndCacheDeletions() {
+        getPage(CHAT_ID, 300, page(CHAT_ID, 300, 200));
+
+        historyPageCache.onUpdateDeleteMessages(deleteMessages(CHAT_ID, false, false, 200));
+        historyPageCache.onUpdateDeleteMessages(deleteMessages(CHAT_ID, true, true, 200));
+        getPage(CHAT_ID, 300, page(CHAT_ID, 300));
+
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void onUpdateMessageContent_replacesPageWithPatchedCopy() {
+        TdApi.Messages page = page(CHAT_ID, 300, 200, 100);
+        TdApi.Message originalMessage = page.messages[1];
+        TdApi.MessageContent originalContent = originalMessage.content;
+        getPage(CHAT_ID, 300, page);
+
+        TdApi.UpdateMessageContent update = new TdApi.UpdateMessageContent();
+        update.chatId = CHAT_ID;
+        update.messageId = 200;
+        update.newContent = text("исправленный текст");
+        historyPageCache.onUpdateMessageContent(update);
+
+        TdApi.Messages patchedPage = getPage(CHAT_ID, 300, page(CHAT_ID, 300));
+
+        assertEquals(1, loads.get());
+        assertNotSame(page, patchedPage);
+        assertSame(update.newContent, patchedPage.messages[1].content);
+        assertEquals(200, patchedPage.messages[1].id);
+        assertEquals(CHAT_ID, patchedPage.messages[1].chatId);
+        assertSame(originalMessage.senderId, patchedPage.messages[1].senderId);
+        // Остальные сообщения не копируются
+        assertSame(page.messages[0], patchedPage.messages[0]);
+        // Выданная ранее страница не изменилась
+        assertSame(originalMessage, page.messages[1]);
+        assertSame(originalContent, originalMessage.content);
+    }
+
+    @Test
+    void onUpdateMessageEdited_replacesPageWithPatchedCopy() {
+        TdApi.Messages page = page(CHAT_ID, 300, 200);
+        getPage(CHAT_ID, 300, page);
+
+        TdApi.UpdateMessageEdited update = new TdApi.UpdateMessageEdited();
+        update.chatId = CHAT_ID;
+        update.messageId = 300;
+        update.editDate = 1_700_000_000;
+        historyPageCache.onUpdateMessageEdited(update);
+
+        TdApi.Messages patchedPage = getPage(CHAT_ID, 300, page(CHAT_ID, 300));
+
+        assertEquals(1_700_000_000, patchedPage.messages[0].editDate);
+        assertEquals(0, page.messages[0].editDate);
+    }
+
+    @Test
+    void getPage_doesNotCachePageLoadedBeforeUpdate() {
+        CompletableFuture<TdApi.Messages> pendingLoad = new CompletableFuture<>();
+        CompletableFuture<TdApi.Messages> page = historyPageCache.getPage(CHAT_ID, 0L, 300, () -> pendingLoad);
+
+        // Обновление пришло, пока страница загружалась: загруженная страница может его не содержать
+        historyPageCache.onUpdateDeleteMessages(deleteMessages(CHAT_ID, true, false, 999));
+        pendingLoad.complete(page(CHAT_ID, 300, 200));
+        page.join();
+
+        getPage(CHAT_ID, 300, page(CHAT_ID, 300, 200));
+
+        assertEquals(1, loads.get());
+    }
+
+    private TdApi.Messages getPage(long chatId, long fromMessageId, TdApi.Messages loadedPage) {
+        return historyPageCache.getPage(chatId, 0L, fromMessageId, () -> {
+                loads.incrementAndGet();
+
+                return CompletableFuture.completedFuture(loadedPage);
+            })
+            .join();
+    }
+
+    private static TdApi.Messages page(long chatId, long... messageIds) {
+        TdApi.Message[] messages = new TdApi.Message[messageIds.length];
+
+        for (int i = 0; i < messageIds.length; i++) {
+            TdApi.Message message = new TdApi.Message();
+            message.id = messageIds[i];
+            message.chatId = chatId;
+            message.senderId = new TdApi.MessageSenderUser(42L);
+            message.content = text("сообщение " + messageIds[i]);
+            messages[i] = message;
+        }
+
+        return new TdApi.Messages(messages.length, messages);
+    }
+
+    private static TdApi.MessageText text(String text) {
+        TdApi.FormattedText formattedText = new TdApi.FormattedText();
+        formattedText.text = text;
+        formattedText.entities = new TdApi.TextEntity[0];
+
+        TdApi.MessageText messageText = new TdApi.MessageText();
+        messageText.text = formattedText;
+
+        return messageText;
+    }
+
+    private static TdApi.UpdateDeleteMessages deleteMessages(long chatId, boolean isPermanent, boolean fromCache, long... messageIds) {
+        TdApi.UpdateDeleteMessages update = new TdApi.UpdateDeleteMessages();
+        update.chatId = chatId;
+        update.messageIds = messageIds;
+        update.isPermanent = isPermanent;
+        update.fromCache = fromCache;
+
+        return update;
+    }
+}
@@ -0,0 +1,118 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import org.junit.jupiter.api.Test;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+import ru.panyukovnn.tgchatscollector.dto.store.ChatSyncState;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageStoreServiceTest {
+
+    private static final long CHAT_ID = -1001823804554L;
+    private static final long TOPIC_ID = 0L;
+    private static final LocalDateTime DATE_FROM = LocalDateTime.of(2025, 1, 1, 0, 0);
+    private static final long DATE_FROM_EPOCH = DATE_FROM.toEpochSecond(ZoneOffset.UTC);
+
+    @Test
+    void initialSyncState_fullPage_coversOnlyLoadedMessages() {
+        List<TgMessageDto> messages = List.of(message(300, 3_000), message(200, 2_000), message(100, 1_000));
+
+        ChatSyncState syncState = MessageStoreService.initialSyncState(CHAT_ID, TOPIC_ID, messages, 3, null);
+
+        assertEquals(new ChatSyncState(CHAT_ID, TOPIC_ID, 300, 100, 1_000, false), syncState);
+    }
+
+    @Test
+    void initialSyncState_lessThanLimitWithoutDate_reachesHistoryStart() {
+        List<TgMessageDto> messages = List.of(message(200, 2_000), message(100, 1_000));
+
+        ChatSyncState syncState = MessageStoreService.initialSyncState(CHAT_ID, TOPIC_ID, messages, 10, null);
+
+        assertEquals(new ChatSyncState(CHAT_ID, TOPIC_ID, 200, 100, 1_000, true), syncState);
+    }
+
+    @Test
+    void initialSyncState_lessThanLimitWithDate_coversWholePeriod() {
+        long messageDate = DATE_FROM_EPOCH + 3_600;
+        List<TgMessageDto> messages = List.of(message(100, messageDate));
+
+        ChatSyncState syncState = MessageStoreService.initialSyncState(CHAT_ID, TOPIC_ID, messages, 10, DATE_FROM);
+
+        // История просмотрена до начала периода, но не до начала чата
+        assertEquals(new ChatSyncState(CHAT_ID, TOPIC_ID, 100, 100, DATE_FROM_EPOCH, false), syncState);
+    }
+
+    @Test
+    void withNewMessages_extendsUpperBound() {
+        ChatSyncState syncState = new ChatSyncState(CHAT_ID, TOPIC_ID, 300, 100, 1_000, true);
+
+        ChatSyncState actual = MessageStoreService.withNewMessages(syncState, List.of(message(500, 5_000), message(400, 4_000)), 10);
+
+        assertEquals(new ChatSyncState(CHAT_ID, TOPIC_ID, 500, 100, 1_000, true), actual);
+    }
+
+    @Test
+    void withNewMessages_deltaLimitReached_restartsContinuousRange() {
+        ChatSyncState syncState = new ChatSyncState(CHAT_ID, TOPIC_ID, 300, 100, 1_000, true);
+
+        ChatSyncState actual = MessageStoreService.withNewMessages(syncState, List.of(message(900, 9_000), message(800, 8_000)), 2);
+
+        // Сообщения между 300 и 800 могли не загрузиться
+        assertEquals(new ChatSyncState(CHAT_ID, TOPIC_ID, 900, 800, 8_000, false), actual);
+    }
+
+    @Test
+    void withOlderMessages_fullPage_extendsLowerBound() {
+        ChatSyncState syncState = new ChatSyncState(CHAT_ID, TOPIC_ID, 300, 200, 2_000, false);
+
+        ChatSyncState actual = MessageStoreService.withOlderMessages(syncState, List.of(message(150, 1_500), message(100, 1_000)), 2, null);
+
+        assertEquals(new ChatSyncState(CHAT_ID, TOPIC_ID, 300, 100, 1_000, false), actual);
+    }
+
+    @Test
+    void withOlderMessages_lessThanRequested_reachesHistoryStart() {
+        ChatSyncState syncState = new ChatSyncState(CHAT_ID, TOPIC_ID, 300, 200, 2_000, false);
+
+        ChatSyncState actual = MessageStoreService.withOlderMessages(syncState, List.of(message(100, 1_000)), 5, null);
+
+        assertEquals(new ChatSyncState(CHAT_ID, TOPIC_ID, 300, 100, 1_000, true), actual);
+    }
+
+    @Test
+    void withOlderMessages_noMessagesInPeriod_coversPeriodStart() {
+        ChatSyncState syncState = new ChatSyncState(CHAT_ID, TOPIC_ID, 300, 200, DATE_FROM_EPOCH + 86_400, false);
+
+        ChatSyncState actual = MessageStoreService.withOlderMessages(syncState, List.of(), 5, DATE_FROM_EPOCH);
+
+        assertEquals(new ChatSyncState(CHAT_ID, TOPIC_ID, 300, 200, DATE_FROM_EPOCH, false), actual);
+    }
+
+    @Test
+    void isCovered() {
+        ChatSyncState historyStart = new ChatSyncState(CHAT_ID, TOPIC_ID, 300, 100, 1_000, true);
+        ChatSyncState partial = new ChatSyncState(CHAT_ID, TOPIC_ID, 300, 100, DATE_FROM_EPOCH, false);
+
+        assertTrue(MessageStoreService.isCovered(historyStart, null));
+        assertTrue(MessageStoreService.isCovered(historyStart, 0L));
+        assertTrue(MessageStoreService.isCovered(partial, DATE_FROM_EPOCH));
+        assertTrue(MessageStoreService.isCovered(partial, DATE_FROM_EPOCH + 1));
+        assertFalse(MessageStoreService.isCovered(partial, DATE_FROM_EPOCH - 1));
+        // Без даты начала периода нужна история до начала чата
+        assertFalse(MessageStoreService.isCovered(partial, null));
+    }
+
+    private static TgMessageDto message(long messageId, long epochSecond) {
+        return TgMessageDto.builder()
+            .messageId(messageId)
+            .dateTime(LocalDateTime.ofEpochSecond(epochSecond, 0, TgMessageMapper.MESSAGE_DATE_TIME_OFFSET))
+            .text("сообщение " + messageId)
+            .build();
+    }
+}
@@ -0,0 +1,151 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.tdlight.jni.TdApi;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+import ru.panyukovnn.tgchatscollector.property.TgChatLoaderProperty;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TgClientServiceTest {
+
+    private static final long CHAT_ID = -1001823804554L;
+    private static final LocalDateTime DATE_FROM = LocalDateTime.of(2025, 1, 1, 0, 0);
+    private static final LocalDateTime DATE_TO = LocalDateTime.of(2025, 1, 31, 0, 0);
+    private static final int DATE_FROM_EPOCH = (int) DATE_FROM.toEpochSecond(ZoneOffset.UTC);
+    private static final int DATE_TO_EPOCH = (int) DATE_TO.toEpochSecond(ZoneOffset.UTC);
+    private static final int PAGE_SIZE = 3;
+
+    private final List<TdApi.GetChatHistory> historyRequests = new ArrayList<>();
+
+    private TgClientService tgClientService;
+
+    @BeforeEach
+    void setUp() {
+        tgClientService = new TgClientService();
+        tgClientService.tgRequestExecutor = new FakeTgRequestExecutor();
+        tgClientService.tgChatLoaderProperty = new TgChatLoaderProperty() {
+            @Override
+            public Integer defaultMessagesLimit() {
+                return 2000;
+            }
+
+            @Override
+            public Integer defaultDaysBeforeLimit() {
+                return 60;
+            }
+
+            @Override
+            public Integer dateRangeMessagesLimit() {
+                return 1000;
+            }
+
+            @Override
+            public Integer historyReadAheadDepth() {
+                return 0;
+            }
+        };
+        tgClientService.tgMessageMapper = new TgMessageMapper();
+        tgClientService.historyPageCache = new HistoryPageCache();
+        tgClientService.messageSearchIndex = new MessageSearchIndex();
+        tgClientService.meterRegistry = new SimpleMeterRegistry();
+        tgClientService.initMetrics();
+    }
+
+    @Test
+    void collectMessagesByDateRange_includesMessageFoundByDate() {
+        List<TgMessageDto> messages = tgClientService.collectMessagesByDateRange(CHAT_ID, null, 0L, 100, DATE_FROM, DATE_TO).join();
+
+        // 600 новее периода, 200 старше, 500 найдено по дате окончания периода и попадает в выгрузку
+        assertEquals(List.of(500L, 400L, 300L), messages.stream().map(TgMessageDto::getMessageId).toList());
+        assertEquals(-1, historyRequests.get(0).offset);
+        assertEquals(500L, historyRequests.get(0).fromMessageId);
+        // Следующие страницы начинаются после уже загруженного сообщения
+        assertEquals(0, historyRequests.get(1).offset);
+    }
+
+    @Test
+    void collectMessagesByDateRange_doesNotRepeatCursorMessage() {
+        List<TgMessageDto> messages = tgClientService.collectMessagesByDateRange(CHAT_ID, null, 500L, 100, DATE_FROM, DATE_TO).join();
+
+        assertEquals(List.of(400L, 300L), messages.stream().map(TgMessageDto::getMessageId).toList());
+        assertEquals(0, historyRequests.get(0).offset);
+    }
+
+    /**
+     * История чата: сообщения 600 (после периода), 500 и 400 (в периоде), 300 (в периоде) и 200 (до периода)
+     */
+    private class FakeTgRequestExecutor extends TgRequestExecutor {
+
+        private final List<TdApi.Message> history = List.of(
+            message(600, DATE_TO_EPOCH + 60),
+            message(500, DATE_TO_EPOCH),
+            message(400, DATE_TO_EPOCH - 60),
+            message(300, DATE_FROM_EPOCH),
+            message(200, DATE_FROM_EPOCH - 60)
+        );
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <R extends TdApi.Object> CompletableFuture<R> send(TdApi.Function<R> function) {
+            return switch (function) {
+                case TdApi.GetChatMessageByDate request -> CompletableFuture.completedFuture((R) history.stream()
+                    .filter(message -> message.date <= request.date)
+                    .findFirst()
+                    .orElseThrow());
+                case TdApi.GetChatHistory request -> {
+                    historyRequests.add(request);
+
+                    yield CompletableFuture.completedFuture((R) page(request));
+                }
+                default -> CompletableFuture.failedFuture(new IllegalArgumentException(function.getClass().getSimpleName()));
+            };
+        }
+
+        /**
+         * Отрицательное смещение добавляет сообщение fromMessageId и более новые, без смещения страница начинается со следующего
+         */
+        private TdApi.Messages page(TdApi.GetChatHistory request) {
+            int fromIndex = 0;
+
+            while (fromIndex < history.size() && history.get(fromIndex).id > request.fromMessageId) {
+                fromIndex++;
+            }
+
+            int startIndex = request.offset < 0
+                ? Math.max(0, fromIndex + request.offset)
+                : fromIndex + 1;
+            TdApi.Message[] messages = history.subList(Math.min(startIndex, history.size()), history.size()).stream()
+                .limit(Math.min(request.limit, PAGE_SIZE))
+                .toArray(TdApi.Message[]::new);
+
+            return new TdApi.Messages(messages.length, messages);
+        }
+    }
+
+    private static TdApi.Message message(long id, int date) {
+        TdApi.FormattedText formattedText = new TdApi.FormattedText();
+        formattedText.text = "сообщение " + id;
+        formattedText.entities = new TdApi.TextEntity[0];
+
+        TdApi.MessageText content = new TdApi.MessageText();
+        content.text = formattedText;
+
+        TdApi.Message message = new TdApi.Message();
+        message.id = id;
+        message.chatId = CHAT_ID;
+        message.date = date;
+        message.content = content;
+        message.senderId = new TdApi.MessageSenderUser(42L);
+
+        return message;
+    }
+}
@@ -0,0 +1,121 @@
+package ru.panyukovnn.tgchatscollector.service;
+
+import it.tdlight.jni.TdApi;
+import org.junit.jupiter.api.Test;
+import ru.panyukovnn.tgchatscollector.dto.TgMediaDto;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class TgMessageMapperTest {
+
+    private static final long CHAT_ID = -1001823804554L;
+
+    private final TgMessageMapper tgMessageMapper = new TgMessageMapper();
+
+    @Test
+    void toMessageDto_mapsTextMessage() {
+        TdApi.Message message = message(100, textContent("привет"));
+        message.senderId = new TdApi.MessageSenderUser(42L);
+
+        TgMessageDto dto = tgMessageMapper.toMessageDto(message, 90L, "вопрос");
+
+        assertEquals(100L, dto.getMessageId());
+        assertEquals(42L, dto.getSenderId());
+        // 2024-01-01T00:00:00Z в московском времени
+        assertEquals(LocalDateTime.of(2024, 1, 1, 3, 0), dto.getDateTime());
+        assertEquals("привет", dto.getText());
+        assertEquals(90L, dto.getReplyToMessageId());
+        assertEquals("вопрос", dto.getReplyToText());
+        assertNull(dto.getMediaType());
+    }
+
+    @Test
+    void toMessageDto_takesSenderFromChat() {
+        TdApi.Message message = message(100, textContent("пост"));
+        message.senderId = new TdApi.MessageSenderChat(CHAT_ID);
+
+        assertEquals(CHAT_ID, tgMessageMapper.toMessageDto(message, null, null).getSenderId());
+    }
+
+    @Test
+    void toMessageDto_marksPhotoAndDocument() {
+        TdApi.MessagePhoto photo = new TdApi.MessagePhoto();
+        photo.caption = formattedText("подпись");
+        TdApi.MessageDocument document = new TdApi.MessageDocument();
+        document.caption = formattedText("");
+
+        TgMessageDto photoDto = tgMessageMapper.toMessageDto(message(100, photo), null, null);
+        TgMessageDto documentDto = tgMessageMapper.toMessageDto(message(101, document), null, null);
+
+        assertEquals(TgMessageMapper.PHOTO_MEDIA_TYPE, photoDto.getMediaType());
+        assertEquals("<Приложено фото>\nподпись", photoDto.getText());
+        assertEquals(TgMessageMapper.DOCUMENT_MEDIA_TYPE, documentDto.getMediaType());
+        assertEquals("<Приложен документ>", documentDto.getText());
+    }
+
+    @Test
+    void toMessageDto_doesNotMarkTextStartingWithMediaLabel() {
+        TgMessageDto dto = tgMessageMapper.toMessageDto(message(100, textContent("<Приложено фото> не фото")), null, null);
+
+        assertNull(dto.getMediaType());
+    }
+
+    @Test
+    void extractMessageTextSafely_describesOtherContent() {
+        assertEquals("<Приложен стикер>", tgMessageMapper.extractMessageTextSafely(new TdApi.MessageSticker()));
+        assertEquals("<Неизвестный тип сообщения>", tgMessageMapper.extractMessageTextSafely(new TdApi.MessageContactRegistered()));
+    }
+
+    @Test
+    void copies_keepMediaTypeAndMedia() {
+        TdApi.MessagePhoto photo = new TdApi.MessagePhoto();
+        photo.caption = formattedText("");
+        TgMessageDto dto = tgMessageMapper.toMessageDto(message(100, photo), null, null);
+        TgMediaDto media = TgMediaDto.builder()
+            .uniqueId("AQADBAADr6kxG")
+            .type(TgMessageMapper.PHOTO_MEDIA_TYPE)
+            .build();
+
+        TgMessageDto withMedia = tgMessageMapper.withMedia(dto, media);
+        TgMessageDto withText = tgMessageMapper.withText(withMedia, "новый текст");
+        TgMessageDto withReplyTo = tgMessageMapper.withReplyTo(withText, 90L, "вопрос");
+
+        assertSame(media, withReplyTo.getMedia());
+        assertEquals(TgMessageMapper.PHOTO_MEDIA_TYPE, withReplyTo.getMediaType());
+        assertEquals("новый текст", withReplyTo.getText());
+        assertEquals(90L, withReplyTo.getReplyToMessageId());
+        // Исходный DTO мог быть уже отдан клиенту и не меняется
+        assertNull(dto.getMedia());
+        assertEquals("<Приложено фото>", dto.getText());
+    }
+
+    private static TdApi.Message message(long id, TdApi.MessageContent content) {
+        TdApi.Message message = new TdApi.Message();
+        message.id = id;
+        message.chatId = CHAT_ID;
+        message.date = 1_704_067_200;
+        message.content = content;
+
+        return message;
+    }
+
+    private static TdApi.MessageText textContent(String text) {
+        TdApi.MessageText messageText = new TdApi.MessageText();
+        messageText.text = formattedText(text);
+
+        return messageText;
+    }
+
+    private static TdApi.FormattedText formattedText(String text) {
+        TdApi.FormattedText formattedText = new TdApi.FormattedText();
+        formattedText.text = text;
+        formattedText.entities = new TdApi.TextEntity[0];
+
+        return formattedText;
+    }
+}
@@ -0,0 +1,133 @@
+package ru.panyukovnn.tgchatscollector.service.handler;
+
+import org.junit.jupiter.api.Test;
+import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryRequest;
+import ru.panyukovnn.tgchatscollector.exception.BusinessException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChatHistoryCursorTest {
+
+    private static final long CHAT_ID = -1001823804554L;
+    private static final long TOPIC_ID = 42L;
+    private static final LocalDateTime DATE_FROM = LocalDateTime.of(2025, 1, 1, 0, 0);
+    private static final LocalDateTime DATE_TO = LocalDateTime.of(2025, 6, 30, 23, 59, 59);
+
+    private final ChatHistoryCursor cursor = new ChatHistoryCursor(CHAT_ID, TOPIC_ID, 12345L, DATE_FROM, DATE_TO);
+
+    @Test
+    void fromRequest_restoresEncodedCursor() {
+        ChatHistoryCursor decoded = ChatHistoryCursor.fromRequest(requestWithCursor(cursor.encode()).build());
+
+        assertEquals(cursor, decoded);
+    }
+
+    @Test
+    void fromRequest_restoresCursorWithoutTopicAndPeriod() {
+        ChatHistoryCursor cursorWithoutFilters = new ChatHistoryCursor(CHAT_ID, null, 777L, null, null);
+
+        ChatHistoryCursor decoded = ChatHistoryCursor.fromRequest(requestWithCursor(cursorWithoutFilters.encode()).build());
+
+        assertEquals(cursorWithoutFilters, decoded);
+    }
+
+    @Test
+    void fromRequest_withoutCursor_startsFromFirstPage() {
+        SearchChatHistoryRequest request = SearchChatHistoryRequest.builder()
+            .chatId(CHAT_ID)
+            .topicId(TOPIC_ID)
+            .dateFrom(DATE_FROM)
+            .dateTo(DATE_TO)
+            .build();
+
+        assertEquals(new ChatHistoryCursor(CHAT_ID, TOPIC_ID, 0L, DATE_FROM, DATE_TO), ChatHistoryCursor.fromRequest(request));
+    }
+
+    @Test
+    void fromRequest_withoutChatIdAndCursor_isRejected() {
+        assertLocation("7e3a", SearchChatHistoryRequest.builder().build());
+    }
+
+    @Test
+    void next_keepsChatTopicAndPeriod() {
+        assertEquals(new ChatHistoryCursor(CHAT_ID, TOPIC_ID, 100L, DATE_FROM, DATE_TO), cursor.next(100L));
+    }
+
+    @Test
+    void fromRequest_acceptsFieldsMatchingCursor() {
+        SearchChatHistoryRequest request = requestWithCursor(cursor.encode())
+            .chatId(CHAT_ID)
+            .topicId(TOPIC_ID)
+            // Курсор хранит даты с точностью до секунды
+            .dateFrom(DATE_FROM.plusNanos(500_000_000))
+            .dateTo(DATE_TO)
+            .build();
+
+        assertEquals(cursor, ChatHistoryCursor.fromRequest(request));
+    }
+
+    @Test
+    void fromRequest_withAnotherChat_isRejected() {
+        assertLocation("7e3b", requestWithCursor(cursor.encode()).chatId(CHAT_ID + 1).build());
+    }
+
+    @Test
+    void fromRequest_withAnotherTopic_isRejected() {
+        assertLocation("7e3d", requestWithCursor(cursor.encode()).topicId(TOPIC_ID + 1).build());
+    }
+
+    @Test
+    void fromRequest_withTopicForCursorWithoutTopic_isRejected() {
+        String cursorWithoutTopic = new ChatHistoryCursor(CHAT_ID, null, 1L, null, null).encode();
+
+        assertLocation("7e3d", requestWithCursor(cursorWithoutTopic).topicId(TOPIC_ID).build());
+    }
+
+    @Test
+    void fromRequest_withAnotherPeriod_isRejected() {
+        assertLocation("7e3e", requestWithCursor(cursor.encode()).dateFrom(DATE_FROM.minusDays(1)).build());
+        assertLocation("7e3e", requestWithCursor(cursor.encode()).dateTo(DATE_TO.plusSeconds(1)).build());
+    }
+
+    @Test
+    void fromRequest_withPeriodForCursorWithoutPeriod_isRejected() {
+        String cursorWithoutPeriod = new ChatHistoryCursor(CHAT_ID, null, 1L, null, null).encode();
+
+        assertLocation("7e3e", requestWithCursor(cursorWithoutPeriod).dateFrom(DATE_FROM).build());
+    }
+
+    @Test
+    void fromRequest_withTamperedCursor_isRejected() {
+        // Не base64
+        assertLocation("7e3c", requestWithCursor("не курсор").build());
+        // Неизвестная версия формата
+        assertLocation("7e3c", requestWithCursor(encodeRaw("2:" + CHAT_ID + "::1::")).build());
+        // Не хватает частей
+        assertLocation("7e3c", requestWithCursor(encodeRaw("1:" + CHAT_ID + ":1")).build());
+        // Не число
+        assertLocation("7e3c", requestWithCursor(encodeRaw("1:" + CHAT_ID + "::abc::")).build());
+        // Обрезанная строка курсора
+        String encoded = cursor.encode();
+        assertLocation("7e3c", requestWithCursor(encoded.substring(0, encoded.length() / 2)).build());
+    }
+
+    private static SearchChatHistoryRequest.SearchChatHistoryRequestBuilder requestWithCursor(String cursor) {
+        return SearchChatHistoryRequest.builder()
+            .cursor(cursor);
+    }
+
+    private static String encodeRaw(String value) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertLocation(String expectedLocation, SearchChatHistoryRequest request) {
+        BusinessException exception = assertThrows(BusinessException.class, () -> ChatHistoryCursor.fromRequest(request));
+
+        assertEquals(expectedLocation, exception.getLocation());
+    }
+}
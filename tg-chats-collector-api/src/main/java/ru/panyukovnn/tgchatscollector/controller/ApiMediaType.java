@@ -0,0 +1,24 @@
+package ru.panyukovnn.tgchatscollector.controller;
+
+/**
+ * Форматы тела запросов и ответов, кроме JSON. Выбираются заголовками Content-Type и Accept,
+ * DTO сериализуются в них так же, как в JSON
+ */
+public final class ApiMediaType {
+
+    /**
+     * Бинарный JSON (RFC 8949)
+     */
+    public static final String APPLICATION_CBOR = "application/cbor";
+    /**
+     * Бинарный формат Jackson Smile, повторяющиеся названия полей и короткие строки передаются ссылками
+     */
+    public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+    /**
+     * JSON объекты, разделенные переводом строки, для потоковых выгрузок
+     */
+    public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+    private ApiMediaType() {
+    }
+}
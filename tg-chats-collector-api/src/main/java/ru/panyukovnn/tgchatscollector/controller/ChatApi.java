@@ -5,6 +5,8 @@ import ru.panyukovnn.tgchatscollector.dto.searchchat.SearchChatsResponse;
 import ru.panyukovnn.tgchatscollector.dto.searchchat.SearchPrivateChatRequest;
 import ru.panyukovnn.tgchatscollector.dto.searchchat.SearchPublicChannelByIdRequest;
 
+import java.util.concurrent.CompletionStage;
+
 /**
  * Контракт для работы с чатами
  */
@@ -16,7 +18,7 @@ public interface ChatApi {
      * @param count количество чатов
      * @return список последних чатов
      */
-    LastChatsResponse getLastChats(Integer count);
+    CompletionStage<LastChatsResponse> getLastChats(Integer count);
 
     /**
      * Поиск приватного чата по части имени
@@ -24,7 +26,7 @@ public interface ChatApi {
      * @param request запрос на поиск приватного чата
      * @return результат поиска чатов
      */
-    SearchChatsResponse searchPrivateChat(SearchPrivateChatRequest request);
+    CompletionStage<SearchChatsResponse> searchPrivateChat(SearchPrivateChatRequest request);
 
     /**
      * Поиск публичного канала по имени
@@ -32,5 +34,5 @@ public interface ChatApi {
      * @param request запрос на поиск публичного канала
      * @return результат поиска чатов
      */
-    SearchChatsResponse searchPublicChannel(SearchPublicChannelByIdRequest request);
+    CompletionStage<SearchChatsResponse> searchPublicChannel(SearchPublicChannelByIdRequest request);
 }
@@ -1,7 +1,17 @@
 package ru.panyukovnn.tgchatscollector.controller;
 
+import jakarta.validation.Valid;
+import jakarta.ws.rs.core.StreamingOutput;
+import ru.panyukovnn.tgchatscollector.dto.bulkexport.BulkExportChatResult;
+import ru.panyukovnn.tgchatscollector.dto.bulkexport.BulkExportRequest;
+import ru.panyukovnn.tgchatscollector.dto.recentmessages.RecentMessagesRequest;
+import ru.panyukovnn.tgchatscollector.dto.searchchathistory.ChatHistoryStreamRecord;
 import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryRequest;
 import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryResponse;
+import ru.panyukovnn.tgchatscollector.dto.searchmessages.SearchMessagesRequest;
+import ru.panyukovnn.tgchatscollector.dto.searchmessages.SearchMessagesResponse;
+
+import java.util.concurrent.CompletionStage;
 
 /**
  * Контракт для работы с историей сообщений
@@ -14,5 +24,39 @@ public interface ChatHistoryApi {
      * @param request запрос на поиск истории сообщений
      * @return результат поиска истории
      */
-    SearchChatHistoryResponse searchHistory(SearchChatHistoryRequest request);
+    CompletionStage<SearchChatHistoryResponse> searchHistory(SearchChatHistoryRequest request);
+
+    /**
+     * Потоковая выгрузка истории сообщений в формате {@link ApiMediaType#APPLICATION_NDJSON}:
+     * строка {@link ChatHistoryStreamRecord} на каждое сообщение, последней строкой итог либо ошибка
+     *
+     * @param request запрос на поиск истории сообщений
+     * @return поток строк выгрузки
+     */
+    StreamingOutput searchHistoryStream(SearchChatHistoryRequest request);
+
+    /**
+     * Выгрузка истории нескольких чатов в формате {@link ApiMediaType#APPLICATION_NDJSON}:
+     * строка {@link BulkExportChatResult} на каждый чат в порядке завершения выгрузки
+     *
+     * @param request запрос на выгрузку, проверяется до начала выгрузки
+     * @return поток строк выгрузки
+     */
+    StreamingOutput bulkExport(@Valid BulkExportRequest request);
+
+    /**
+     * Последние сообщения отслеживаемого чата, накопленные из обновлений телеграм
+     *
+     * @param request запрос последних сообщений
+     * @return последние сообщения чата
+     */
+    CompletionStage<SearchChatHistoryResponse> recentMessages(RecentMessagesRequest request);
+
+    /**
+     * Полнотекстовый поиск по собранным ранее сообщениям
+     *
+     * @param request поисковый запрос
+     * @return найденные сообщения в порядке релевантности
+     */
+    CompletionStage<SearchMessagesResponse> searchMessages(SearchMessagesRequest request);
 }
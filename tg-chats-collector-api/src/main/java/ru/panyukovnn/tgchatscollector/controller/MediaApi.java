@@ -0,0 +1,18 @@
+package ru.panyukovnn.tgchatscollector.controller;
+
+import java.io.File;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Контракт для загрузки фото и документов из сообщений
+ */
+public interface MediaApi {
+
+    /**
+     * Файл по его постоянному идентификатору. Файл загружается из телеграм только при первом запросе
+     *
+     * @param uniqueId идентификатор файла из описания медиа в истории сообщений
+     * @return файл
+     */
+    CompletionStage<File> getMedia(String uniqueId);
+}
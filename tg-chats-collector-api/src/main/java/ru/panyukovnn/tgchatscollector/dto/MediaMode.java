@@ -0,0 +1,22 @@
+package ru.panyukovnn.tgchatscollector.dto;
+
+/**
+ * Способ передачи фото и документов из сообщений
+ */
+public enum MediaMode {
+
+    /**
+     * Медиа не передается, в тексте сообщения только пометка о вложении
+     */
+    NONE,
+
+    /**
+     * Описание файла со ссылкой на его загрузку
+     */
+    LINK,
+
+    /**
+     * Описание файла с содержимым в base64. Файлы больше допустимого для встраивания размера передаются ссылкой
+     */
+    BASE64
+}
@@ -0,0 +1,33 @@
+package ru.panyukovnn.tgchatscollector.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class TgMediaDto {
+
+    /**
+     * Постоянный идентификатор файла в телеграм, одинаковый для всех сообщений с этим файлом
+     */
+    private String uniqueId;
+    /**
+     * PHOTO или DOCUMENT
+     */
+    private String type;
+    private String fileName;
+    private String mimeType;
+    private Long size;
+    /**
+     * Путь для загрузки файла, null если файл больше допустимого размера
+     */
+    private String url;
+    /**
+     * Содержимое файла в base64, только при запросе с mediaMode = BASE64
+     */
+    private String base64;
+}
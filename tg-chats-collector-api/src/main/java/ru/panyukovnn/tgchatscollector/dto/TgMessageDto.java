@@ -22,4 +22,12 @@ public class TgMessageDto {
      */
     private String replyToText;
     private Long replyToMessageId;
+    /**
+     * Тип вложения: PHOTO или DOCUMENT, null если в сообщении нет фото или документа
+     */
+    private String mediaType;
+    /**
+     * Фото или документ сообщения, только при запросе истории с mediaMode
+     */
+    private TgMediaDto media;
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+package ru.panyukovnn.tgchatscollector.dto.bulkexport;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.panyukovnn.tgchatscollector.dto.response.CommonResponseError;
+import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryResponse;
+
+/**
+ * Строка выгрузки нескольких чатов в формате NDJSON, результат по одному чату
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@Schema(description = "Результат выгрузки одного чата")
+public class BulkExportChatResult {
+
+    @Schema(description = "Идентификатор чата из запроса")
+    private Long chatId;
+
+    @Schema(description = "Идентификатор топика из запроса")
+    private Long topicId;
+
+    @Schema(description = "История сообщений чата, заполняется при успешной выгрузке")
+    private SearchChatHistoryResponse result;
+
+    @Schema(description = "Информация об ошибке, заполняется если выгрузить чат не удалось")
+    private CommonResponseError error;
+}
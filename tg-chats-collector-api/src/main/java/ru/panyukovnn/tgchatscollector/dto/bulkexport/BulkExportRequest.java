@@ -0,0 +1,28 @@
+package ru.panyukovnn.tgchatscollector.dto.bulkexport;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.Size;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.panyukovnn.tgchatscollector.dto.searchchathistory.SearchChatHistoryRequest;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class BulkExportRequest {
+
+    public static final int MAX_CHATS = 1000;
+
+    @Valid
+    @NotEmpty
+    @Size(max = MAX_CHATS)
+    @Schema(description = "Чаты для выгрузки, не более " + MAX_CHATS + ", параметры каждого чата как в поиске истории сообщений, кроме mediaMode: фото и документы не выгружаются")
+    private List<SearchChatHistoryRequest> chats;
+}
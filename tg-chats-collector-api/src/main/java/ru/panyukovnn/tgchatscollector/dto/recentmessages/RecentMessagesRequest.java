@@ -0,0 +1,25 @@
+package ru.panyukovnn.tgchatscollector.dto.recentmessages;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.constraints.NotNull;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RecentMessagesRequest {
+
+    @NotNull
+    @Schema(description = "Идентификатор отслеживаемого чата")
+    private Long chatId;
+
+    @Schema(description = "Идентификатор топика")
+    private Long topicId;
+
+    @Schema(description = "Предельное количество сообщений, по умолчанию весь накопленный буфер")
+    private Integer limit;
+}
@@ -0,0 +1,50 @@
+package ru.panyukovnn.tgchatscollector.dto.searchchathistory;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+import ru.panyukovnn.tgchatscollector.dto.response.CommonResponseError;
+
+/**
+ * Строка потоковой выгрузки истории чата в формате NDJSON
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@Schema(description = "Строка потоковой выгрузки истории чата")
+public class ChatHistoryStreamRecord {
+
+    @Schema(description = "Тип строки")
+    private Type type;
+
+    @Schema(description = "Сообщение, заполняется для строк с типом MESSAGE")
+    private TgMessageDto message;
+
+    @Schema(description = "Итоговая информация о выгрузке без сообщений, заполняется для завершающей строки с типом SUMMARY")
+    private SearchChatHistoryResponse summary;
+
+    @Schema(description = "Информация об ошибке, заполняется для завершающей строки с типом ERROR")
+    private CommonResponseError error;
+
+    public enum Type {
+
+        /**
+         * Очередное сообщение
+         */
+        MESSAGE,
+        /**
+         * Итоговая строка, выгрузка завершена успешно
+         */
+        SUMMARY,
+        /**
+         * Итоговая строка, выгрузка прервана ошибкой
+         */
+        ERROR
+    }
+}
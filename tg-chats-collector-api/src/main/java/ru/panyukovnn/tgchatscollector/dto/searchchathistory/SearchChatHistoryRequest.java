@@ -1,11 +1,11 @@
 package ru.panyukovnn.tgchatscollector.dto.searchchathistory;
 
 import io.swagger.v3.oas.annotations.media.Schema;
-import jakarta.validation.constraints.NotNull;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import ru.panyukovnn.tgchatscollector.dto.MediaMode;
 
 import java.time.LocalDateTime;
 
@@ -15,8 +15,7 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 public class SearchChatHistoryRequest {
 
-    @NotNull
-    @Schema(description = "Идентификатор чата")
+    @Schema(description = "Идентификатор чата, обязателен, если не указан курсор")
     private Long chatId;
 
     @Schema(description = "Идентификатор топика")
@@ -30,4 +29,10 @@ public class SearchChatHistoryRequest {
 
     @Schema(description = "Дата окончания периода, в UTC")
     private LocalDateTime dateTo;
+
+    @Schema(description = "Курсор следующей страницы из предыдущего ответа. Чат, топик и период берутся из курсора и, если указаны в запросе, должны с ним совпадать, limit задает размер страницы")
+    private String cursor;
+
+    @Schema(description = "Передавать ли фото и документы сообщений: NONE (по умолчанию), LINK или BASE64. Не поддерживается потоковой выгрузкой и выгрузкой нескольких чатов")
+    private MediaMode mediaMode;
 }
\ No newline at end of file
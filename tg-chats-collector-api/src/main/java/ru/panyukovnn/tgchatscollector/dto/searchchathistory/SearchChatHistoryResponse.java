@@ -1,6 +1,7 @@
 package ru.panyukovnn.tgchatscollector.dto.searchchathistory;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.v3.oas.annotations.media.Schema;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -23,4 +24,6 @@ public class SearchChatHistoryResponse {
     private Long topicId;
     private Integer totalCount;
     private List<TgMessageDto> messages;
+    @Schema(description = "Курсор следующей, более старой страницы истории; не заполняется, если история за период загружена полностью")
+    private String nextCursor;
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+package ru.panyukovnn.tgchatscollector.dto.searchmessages;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import jakarta.validation.constraints.NotBlank;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SearchMessagesRequest {
+
+    @NotBlank
+    @Schema(description = "Поисковый запрос. Слова ищутся с учетом словоформ, поддерживаются фразы в кавычках, префиксы со * и исключение слов через -")
+    private String query;
+
+    @Schema(description = "Идентификатор чата, если не указан - поиск по всем чатам")
+    private Long chatId;
+
+    @Schema(description = "Идентификатор топика, указывается вместе с идентификатором чата")
+    private Long topicId;
+
+    @Schema(description = "Дата начала периода, в UTC")
+    private LocalDateTime dateFrom;
+
+    @Schema(description = "Дата окончания периода, в UTC")
+    private LocalDateTime dateTo;
+
+    @Schema(description = "Предельное количество сообщений")
+    private Integer limit;
+}
@@ -0,0 +1,37 @@
+package ru.panyukovnn.tgchatscollector.dto.searchmessages;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import ru.panyukovnn.tgchatscollector.dto.TgMessageDto;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SearchMessagesResponse {
+
+    @Schema(description = "Найденные сообщения в порядке релевантности")
+    private List<FoundMessage> messages;
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class FoundMessage {
+
+        private Long chatId;
+        @Schema(description = "Идентификатор топика, для сообщений вне топиков не заполняется")
+        private Long topicId;
+        @Schema(description = "Релевантность сообщения запросу")
+        private Float score;
+        private TgMessageDto message;
+    }
+}